@@ -16,11 +16,19 @@
 
 package com.rackspace.salus.resource_management.config;
 
+import com.rackspace.salus.resource_management.entities.ResourceEventOutboxEntry;
+import com.rackspace.salus.resource_management.repositories.ResourceEventOutboxRepository;
 import com.rackspace.salus.telemetry.EnableSalusJpa;
+import com.rackspace.salus.telemetry.entities.Resource;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 
 @EnableSalusJpa
 @Configuration
+// The service's own entities are scanned in addition to the shared telemetry entities
+@EntityScan(basePackageClasses = {Resource.class, ResourceEventOutboxEntry.class})
+@EnableJpaRepositories(basePackageClasses = ResourceEventOutboxRepository.class)
 public class DatabaseConfig {
 
 }
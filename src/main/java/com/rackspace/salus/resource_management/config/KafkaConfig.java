@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.config;
+
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.services.AttachEventRetries;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.common.errors.TopicExistsException;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.boot.autoconfigure.kafka.ConcurrentKafkaListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.ContainerProperties.AckMode;
+
+@Configuration
+@Slf4j
+public class KafkaConfig {
+
+  public static final String BATCH_LISTENER_CONTAINER_FACTORY = "batchKafkaListenerContainerFactory";
+  public static final String RETRY_LISTENER_CONTAINER_FACTORY = "retryKafkaListenerContainerFactory";
+  public static final String UNCOMMITTED_LISTENER_CONTAINER_FACTORY = "uncommittedKafkaListenerContainerFactory";
+
+  /**
+   * Provides a listener container factory, configured like the default one, that delivers each
+   * poll's worth of records to the listener as a list.
+   */
+  @Bean(name = BATCH_LISTENER_CONTAINER_FACTORY)
+  public ConcurrentKafkaListenerContainerFactory<Object, Object> batchKafkaListenerContainerFactory(
+      ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+      ConsumerFactory<Object, Object> kafkaConsumerFactory) {
+    final ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+        new ConcurrentKafkaListenerContainerFactory<>();
+    configurer.configure(factory, kafkaConsumerFactory);
+    factory.setBatchListener(true);
+    return factory;
+  }
+
+  /**
+   * Provides a listener container factory, configured like the default one, whose listeners
+   * acknowledge each record once handled and whose containers publish idle events at the
+   * configured interval. The attach retry listener uses those to skip records that are not yet
+   * due without committing past them, and to resume the partitions it paused once they are due.
+   */
+  @Bean(name = RETRY_LISTENER_CONTAINER_FACTORY)
+  public ConcurrentKafkaListenerContainerFactory<Object, Object> retryKafkaListenerContainerFactory(
+      ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+      ConsumerFactory<Object, Object> kafkaConsumerFactory,
+      ResourceManagementProperties properties) {
+    final ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+        new ConcurrentKafkaListenerContainerFactory<>();
+    configurer.configure(factory, kafkaConsumerFactory);
+    factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+    factory.getContainerProperties().setIdleEventInterval(
+        properties.getAttachRetryResumeInterval().toMillis());
+    return factory;
+  }
+
+  /**
+   * Provides a listener container factory, configured like the default one, whose containers
+   * never commit offsets, since their listeners do not acknowledge records. It is used by
+   * listeners whose consumer group only lasts as long as this instance, so that the broker
+   * retains nothing for the group once the instance stops.
+   */
+  @Bean(name = UNCOMMITTED_LISTENER_CONTAINER_FACTORY)
+  public ConcurrentKafkaListenerContainerFactory<Object, Object> uncommittedKafkaListenerContainerFactory(
+      ConcurrentKafkaListenerContainerFactoryConfigurer configurer,
+      ConsumerFactory<Object, Object> kafkaConsumerFactory) {
+    final ConcurrentKafkaListenerContainerFactory<Object, Object> factory =
+        new ConcurrentKafkaListenerContainerFactory<>();
+    configurer.configure(factory, kafkaConsumerFactory);
+    factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+    return factory;
+  }
+
+  /**
+   * Creates the attach retry topics, one per backoff tier, at startup if the broker does not
+   * already have them, since the retry listener cannot start without them outside of the dev
+   * profile. They are created here rather than declared as {@link NewTopic} beans since the
+   * tiers depend on the configured backoff. This runs, like the {@link KafkaAdmin}, once the
+   * singletons are instantiated, which is before the listener containers are started.
+   */
+  @Bean
+  public SmartInitializingSingleton attachRetryTopicsCreator(KafkaAdmin kafkaAdmin,
+                                                             KafkaTopicProperties kafkaTopicProperties,
+                                                             ResourceManagementProperties properties) {
+    return () -> {
+      final List<NewTopic> topics =
+          AttachEventRetries.retryTopics(kafkaTopicProperties.getAttaches(), properties).stream()
+              .map(name -> new NewTopic(name,
+                  properties.getAttachRetryTopicPartitions(),
+                  properties.getAttachRetryTopicReplicationFactor()))
+              .collect(Collectors.toList());
+
+      try (AdminClient adminClient = AdminClient.create(kafkaAdmin.getConfig())) {
+        final Set<String> existing = adminClient.listTopics().names()
+            .get(kafkaAdmin.getOperationTimeout(), TimeUnit.SECONDS);
+        topics.removeIf(topic -> existing.contains(topic.name()));
+        if (!topics.isEmpty()) {
+          log.info("Creating attach retry topics={}", topics);
+          adminClient.createTopics(topics).all()
+              .get(kafkaAdmin.getOperationTimeout(), TimeUnit.SECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof TopicExistsException) {
+          // created by another instance in the meantime
+          log.debug("Attach retry topics already created", e);
+        } else {
+          log.warn("Unable to create attach retry topics={}", topics, e);
+        }
+      } catch (TimeoutException e) {
+        log.warn("Timed out creating attach retry topics={}", topics, e);
+      }
+    };
+  }
+
+  /**
+   * Declares the attach dead-letter topic so that the broker's admin client creates it at startup
+   * if it does not exist, so that exhausted attach events are not lost to a missing topic.
+   */
+  @Bean
+  public NewTopic attachDeadLetterTopic(KafkaTopicProperties kafkaTopicProperties,
+                                        ResourceManagementProperties properties) {
+    return new NewTopic(
+        kafkaTopicProperties.getAttaches() + AttachEventRetries.DLT_TOPIC_SUFFIX,
+        properties.getAttachRetryTopicPartitions(),
+        properties.getAttachRetryTopicReplicationFactor());
+  }
+}
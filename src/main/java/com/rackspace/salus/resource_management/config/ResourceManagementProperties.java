@@ -1,6 +1,12 @@
 package com.rackspace.salus.resource_management.config;
 
+import java.time.Duration;
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -17,4 +23,298 @@ public class ResourceManagementProperties {
    */
   @Min(1)
   int resourceMetadataFetchSize = 100;
+
+  /**
+   * When true, the envoy IDs of all active resources are loaded from etcd into an in-process
+   * index that is kept current by an etcd watch, so that DTO assembly becomes a map lookup.
+   * Envoys are read from etcd on demand while this is false or the index is being loaded.
+   */
+  boolean envoyIdIndexEnabled = false;
+
+  /**
+   * The time allowed for reading all of the active resources from etcd when loading the envoy ID
+   * index.
+   */
+  @NotNull
+  Duration envoyIdIndexLoadTimeout = Duration.ofSeconds(30);
+
+  /**
+   * How long to wait before reloading the envoy ID index after its etcd watch has failed, such
+   * as when the watched revision was compacted.
+   */
+  @NotNull
+  Duration envoyIdIndexReloadDelay = Duration.ofSeconds(5);
+
+  /**
+   * The maximum number of active resources held by the envoy ID index, which bounds its memory.
+   * When loading or watching would take the index past this, it stops being served and envoys are
+   * read from etcd on demand until a later reload finds the active resources within the bound.
+   */
+  @Min(1)
+  int envoyIdIndexMaxEntries = 1_000_000;
+
+  /**
+   * How long to wait before reloading the envoy ID index after it was found to exceed
+   * {@link #envoyIdIndexMaxEntries}, which is long since each reload reads all of the active
+   * resources.
+   */
+  @NotNull
+  Duration envoyIdIndexOverflowRetryInterval = Duration.ofMinutes(15);
+
+  /**
+   * The maximum number of tenants whose envoys are being read at once while building a page of
+   * resource DTOs, since the envoys of each tenant's resources on the page are read together.
+   */
+  @Min(1)
+  int envoyLookupConcurrency = 32;
+
+  /**
+   * The overall time allowed for the envoy lookups of a page of resource DTOs. Resources whose
+   * lookup has not completed by then are returned without an envoy ID.
+   */
+  @NotNull
+  Duration envoyLookupDeadline = Duration.ofSeconds(2);
+
+  /**
+   * The time allowed for an individual read of envoys from etcd before it is considered failed.
+   */
+  @NotNull
+  Duration envoyLookupTimeout = Duration.ofSeconds(1);
+
+  /**
+   * Configures the circuit breaker that guards envoy lookups. While the breaker is open,
+   * resource DTOs are served without an envoy ID rather than waiting on etcd.
+   */
+  @Valid
+  @NotNull
+  CircuitBreakerProperties envoyLookupCircuitBreaker = new CircuitBreakerProperties();
+
+  /**
+   * When true, each resource event sent to Kafka is waited on until the broker has acknowledged
+   * it and a failed send is raised to the caller. When false, events are sent asynchronously,
+   * with failures only logged and counted, so events that fail to send are lost unless the
+   * outbox is enabled.
+   */
+  boolean kafkaEgressSynchronous = true;
+
+  /**
+   * The maximum number of resource events that may be awaiting broker acknowledgement.
+   * Senders are blocked once this is reached.
+   */
+  @Min(1)
+  int kafkaEgressMaxInFlight = 1000;
+
+  /**
+   * Resource events for the same resource published within this window are merged into one
+   * event. Coalesced events are sent in the background once the window closes, so, as with
+   * asynchronous sends, their failures are only logged and counted. Coalescing is disabled when
+   * this is zero.
+   */
+  @NotNull
+  Duration kafkaEgressCoalescingWindow = Duration.ZERO;
+
+  /**
+   * When true, resource events are written to an outbox table in the same transaction as the
+   * resource change and relayed to Kafka in the background, rather than sent during the request.
+   * <p>
+   *   This service does not create its database schema, so the outbox table is not created
+   *   automatically. The script {@code db/resource_event_outbox.sql} must be applied manually to
+   *   the database, alongside the shared resource tables, before enabling this. Startup fails
+   *   when this is enabled and the table is missing.
+   * </p>
+   */
+  boolean outboxEnabled = false;
+
+  /**
+   * How long the outbox relay waits after draining the outbox before checking it again.
+   */
+  @NotNull
+  Duration outboxRelayInterval = Duration.ofMillis(500);
+
+  /**
+   * The maximum number of outbox events sent and acknowledged per relay transaction.
+   */
+  @Min(1)
+  int outboxRelayBatchSize = 500;
+
+  /**
+   * The number of resources deleted, and delete events sent, at a time when removing all of a
+   * tenant's resources.
+   */
+  @Min(1)
+  int tenantRemovalChunkSize = 1000;
+
+  /**
+   * The number of resources read at a time when passing all of the resources matching the
+   * presence monitoring criteria to a consumer, such as the envoys event stream.
+   */
+  @Min(1)
+  int resourceBatchSize = 500;
+
+  /**
+   * The number of worker lanes that a batch of attach events is split across, by tenant and
+   * resource. Each lane uses a database connection while it works, so this should be kept well
+   * below the connection pool size. When this is one, the default, attach events are handled
+   * on the listener's own thread.
+   */
+  @Min(1)
+  int attachProcessingLanes = 1;
+
+  /**
+   * The maximum number of resources whose most recent envoy labels are retained so that
+   * unchanged reattachments can skip the database. Disabled when zero.
+   */
+  @Min(0)
+  int attachFingerprintCacheMaxSize = 0;
+
+  /**
+   * When true, the attach event listener is paused while the database connection pool is
+   * saturated, or attach handling is slow, and resumed once it has recovered.
+   */
+  boolean attachThrottlingEnabled = false;
+
+  /**
+   * How often the connection pool and attach handling latency are checked.
+   */
+  @NotNull
+  Duration attachThrottlingInterval = Duration.ofSeconds(1);
+
+  /**
+   * The number of consecutive checks for which the attach listener must be found overloaded
+   * before it is paused, or recovered before it is resumed, so that transient conditions do not
+   * toggle it.
+   */
+  @Min(1)
+  int attachThrottlingChecks = 3;
+
+  /**
+   * The fraction of the maximum pool size in use at which the attach listener is paused. It is
+   * also paused while threads are waiting for a connection.
+   */
+  @DecimalMin("0.0") @DecimalMax("1.0")
+  double attachPausePoolUtilization = 0.9;
+
+  /**
+   * The fraction of the maximum pool size in use at or below which a paused attach listener is
+   * resumed.
+   */
+  @DecimalMin("0.0") @DecimalMax("1.0")
+  double attachResumePoolUtilization = 0.7;
+
+  /**
+   * The attach listener is paused when the mean time to handle each event of the last batch
+   * reaches this.
+   */
+  @NotNull
+  Duration attachPauseEventLatency = Duration.ofMillis(500);
+
+  /**
+   * An attach listener paused because attach handling was slow is only resumed once obtaining
+   * and validating a database connection takes less than this, since its own handling latency
+   * cannot be measured while it is paused.
+   */
+  @NotNull
+  Duration attachResumeProbeLatency = Duration.ofMillis(50);
+
+  /**
+   * The number of attempts, including the initial one, made to handle an attach event before
+   * it is published to the dead-letter topic.
+   */
+  @Min(1)
+  int attachRetryMaxAttempts = 5;
+
+  /**
+   * The delay before the first retry of an attach event, which doubles with each later attempt.
+   */
+  @NotNull
+  Duration attachRetryInitialBackoff = Duration.ofSeconds(1);
+
+  /**
+   * The longest delay between retries of an attach event. Each distinct delay reached before the
+   * attempts are exhausted gets its own retry topic.
+   */
+  @NotNull
+  Duration attachRetryMaxBackoff = Duration.ofSeconds(60);
+
+  /**
+   * While the attach retry consumer is not receiving records, how often it checks for the
+   * partitions it paused, until their next retry is due, that can be resumed.
+   */
+  @NotNull
+  Duration attachRetryResumeInterval = Duration.ofSeconds(1);
+
+  /**
+   * The number of partitions given to each attach retry topic and the dead-letter topic when they
+   * are created at startup. Topics that already exist are left as they are.
+   */
+  @Min(1)
+  int attachRetryTopicPartitions = 1;
+
+  /**
+   * The replication factor given to each attach retry topic and the dead-letter topic when
+   * they are created at startup, which should be raised to match the attach topic's in production.
+   */
+  @Min(1)
+  short attachRetryTopicReplicationFactor = 1;
+
+  /**
+   * The estimated memory, in bytes, that the per-tenant label indexes used to answer label
+   * selectors may occupy. Label selectors are answered by querying the database when this is zero.
+   */
+  @Min(0)
+  long labelIndexMaxBytes = 0;
+
+  /**
+   * The maximum number of resource IDs, across all cached label selector results, to cache.
+   * Each result also counts as one ID, regardless of its size. Label selector results are not
+   * cached when this is zero.
+   */
+  @Min(0)
+  long labelSelectorCacheMaxIds = 0;
+
+  @Data
+  public static class CircuitBreakerProperties {
+
+    /**
+     * The percentage of failed calls, including timeouts, at which the breaker opens.
+     */
+    @Min(1) @Max(100)
+    int failureRateThreshold = 50;
+
+    /**
+     * The percentage of slow calls at which the breaker opens.
+     */
+    @Min(1) @Max(100)
+    int slowCallRateThreshold = 80;
+
+    /**
+     * Calls taking longer than this are counted as slow.
+     */
+    @NotNull
+    Duration slowCallDurationThreshold = Duration.ofMillis(500);
+
+    /**
+     * The number of most recent calls used to compute the failure and slow call rates.
+     */
+    @Min(1)
+    int slidingWindowSize = 100;
+
+    /**
+     * The number of calls required before the rates are evaluated.
+     */
+    @Min(1)
+    int minimumNumberOfCalls = 20;
+
+    /**
+     * How long the breaker stays open before allowing probe calls through.
+     */
+    @NotNull
+    Duration waitDurationInOpenState = Duration.ofSeconds(30);
+
+    /**
+     * The number of probe calls permitted while half-open.
+     */
+    @Min(1)
+    int permittedNumberOfCallsInHalfOpenState = 5;
+  }
 }
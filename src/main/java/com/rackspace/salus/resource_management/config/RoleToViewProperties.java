@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Binds the same role-to-view mapping that is applied by
+ * {@link com.rackspace.salus.common.web.EnableRoleBasedJsonViews} so that request handling can
+ * determine ahead of serialization which JSON view the response will be rendered with.
+ */
+@ConfigurationProperties("salus.common.roles")
+@Component
+@Data
+public class RoleToViewProperties {
+
+  public static final String ADMIN_VIEW = "ADMIN";
+
+  /**
+   * Maps a granted authority, such as ROLE_CUSTOMER, to the name of a JSON view.
+   */
+  Map<String, String> roleToView = new HashMap<>();
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.entities;
+
+import java.time.Instant;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import lombok.Data;
+import org.hibernate.annotations.CreationTimestamp;
+
+/**
+ * A resource event that has been committed along with the resource change that produced it
+ * and is waiting to be relayed to the resources topic.
+ */
+@Entity
+@Table(name = "resource_event_outbox")
+@Data
+public class ResourceEventOutboxEntry {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  Long id;
+
+  @Column(name = "tenant_id", nullable = false)
+  String tenantId;
+
+  @Column(name = "resource_id", nullable = false)
+  String resourceId;
+
+  /**
+   * The JSON serialized {@link com.rackspace.salus.telemetry.messaging.ResourceEvent}
+   */
+  @Lob
+  @Column(nullable = false)
+  String payload;
+
+  @CreationTimestamp
+  @Column(name = "created_timestamp")
+  Instant createdTimestamp;
+}
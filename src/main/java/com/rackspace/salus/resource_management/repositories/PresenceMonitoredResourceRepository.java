@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.repositories;
+
+import com.rackspace.salus.telemetry.entities.Resource;
+import java.util.List;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.Repository;
+
+/**
+ * Bounded queries of a tenant's resources by presence monitoring, complementing the shared
+ * {@link com.rackspace.salus.telemetry.repositories.ResourceRepository} which only lists all of
+ * them at once.
+ */
+public interface PresenceMonitoredResourceRepository extends Repository<Resource, Long> {
+
+  Page<Resource> findByTenantIdAndPresenceMonitoringEnabled(String tenantId,
+                                                            boolean presenceMonitoringEnabled,
+                                                            Pageable page);
+
+  /**
+   * Selects the next batch of resources, in ID order, after the given ID so that all of them
+   * can be read in bounded batches that each cost the same.
+   * @param page limits the size of the batch, and must be the first page
+   */
+  List<Resource> findByPresenceMonitoringEnabledAndIdGreaterThanOrderByIdAsc(
+      boolean presenceMonitoringEnabled, long afterId, Pageable page);
+}
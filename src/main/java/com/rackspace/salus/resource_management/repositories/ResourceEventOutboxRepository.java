@@ -0,0 +1,34 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.repositories;
+
+import com.rackspace.salus.resource_management.entities.ResourceEventOutboxEntry;
+import java.util.List;
+import javax.persistence.LockModeType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+
+public interface ResourceEventOutboxRepository extends JpaRepository<ResourceEventOutboxEntry, Long> {
+
+  /**
+   * Gets the oldest entries in the outbox and locks them until the current transaction completes,
+   * so that concurrent relays across service instances cannot send them out of order.
+   */
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  List<ResourceEventOutboxEntry> findAllByOrderByIdAsc(Pageable page);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.repositories;
+
+import com.rackspace.salus.telemetry.entities.Resource;
+import java.util.Collection;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.repository.Repository;
+
+/**
+ * Variants of the {@link com.rackspace.salus.telemetry.repositories.ResourceRepository} page
+ * queries that return a {@link Slice}. A slice only reads one row beyond the page to determine
+ * if there is a next page, rather than running a separate count query for the total.
+ */
+public interface ResourceSliceRepository extends Repository<Resource, Long> {
+
+  Slice<Resource> findAllByTenantId(String tenantId, Pageable page);
+
+  Slice<Resource> findByTenantIdAndResourceIdContaining(String tenantId, String resourceId,
+                                                        Pageable page);
+
+  Slice<Resource> findByIdIn(Collection<Long> ids, Pageable page);
+}
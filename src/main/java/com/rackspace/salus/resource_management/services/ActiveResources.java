@@ -0,0 +1,246 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.telemetry.etcd.services.EnvoyResourceManagement;
+import com.rackspace.salus.telemetry.etcd.types.Keys;
+import com.rackspace.salus.telemetry.model.ResourceInfo;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Watch;
+import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.WatchOption;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reads the resources that currently have an envoy attached, as registered in etcd by the
+ * ambassador under the etcd adapter's {@link Keys#FMT_RESOURCES_ACTIVE} with a
+ * {@link ResourceInfo} value.
+ * <p>
+ *   Since the keys are grouped by tenant, the envoys of any number of a tenant's resources are
+ *   read with a single range request. All of the active resources can also be read at once and
+ *   then followed, from the revision of that read, with a watch. The tenant and resource of
+ *   each entry are taken from its {@link ResourceInfo}, so only the leading, tenant-scoped part
+ *   of the key format is relied upon.
+ * </p>
+ */
+@Service
+@Slf4j
+public class ActiveResources {
+
+  private final Client etcd;
+  private final EnvoyResourceManagement envoyResourceManagement;
+  private final ObjectMapper objectMapper;
+  private final Counter unreadableEntries;
+
+  @Autowired
+  public ActiveResources(Client etcd, EnvoyResourceManagement envoyResourceManagement,
+                         ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+    this.etcd = etcd;
+    this.envoyResourceManagement = envoyResourceManagement;
+    this.objectMapper = objectMapper;
+
+    unreadableEntries = Counter.builder("active_resources.unreadable")
+        .description("Active resource entries in etcd that could not be read as a ResourceInfo")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Gets the envoy attached to the given resource.
+   * @param tenantId The tenant owning the resource.
+   * @param resourceId The unique value representing the resource.
+   * @return a future of the envoy ID or of null if no envoy is attached
+   */
+  public CompletableFuture<String> getEnvoyId(String tenantId, String resourceId) {
+    return envoyResourceManagement.getOne(tenantId, resourceId)
+        .thenApply(resourceInfo -> resourceInfo != null ? resourceInfo.getEnvoyId() : null);
+  }
+
+  /**
+   * Gets the envoys attached to any of the given resources of a tenant with one range read of
+   * the tenant's active resources.
+   * @param tenantId The tenant owning the resources.
+   * @param resourceIds The resources of interest.
+   * @return a future of the envoy IDs keyed by resource ID, which omits the resources that have
+   * no envoy attached
+   */
+  public CompletableFuture<Map<String, String>> getEnvoyIds(String tenantId,
+                                                            Set<String> resourceIds) {
+    final ByteSequence tenantPrefix = toBytes(keyPrefix(Keys.FMT_RESOURCES_ACTIVE, tenantId));
+    return etcd.getKVClient()
+        .get(tenantPrefix, GetOption.newBuilder().withPrefix(tenantPrefix).build())
+        .thenApply(response -> {
+          final Map<String, String> envoyIds = new HashMap<>();
+          for (KeyValue keyValue : response.getKvs()) {
+            final ResourceInfo resourceInfo = readResourceInfo(keyValue);
+            if (resourceInfo != null && tenantId.equals(resourceInfo.getTenantId()) &&
+                resourceIds.contains(resourceInfo.getResourceId())) {
+              envoyIds.put(resourceInfo.getResourceId(), resourceInfo.getEnvoyId());
+            }
+          }
+          return envoyIds;
+        });
+  }
+
+  /**
+   * Reads all of the active resources.
+   * @return a future of the active resources along with the etcd revision they were read at
+   */
+  public CompletableFuture<Snapshot> getAll() {
+    final ByteSequence prefix = toBytes(keyPrefix(Keys.FMT_RESOURCES_ACTIVE));
+    return etcd.getKVClient()
+        .get(prefix, GetOption.newBuilder().withPrefix(prefix).build())
+        .thenApply(response -> {
+          final List<ActiveResource> resources = new ArrayList<>(response.getKvs().size());
+          for (KeyValue keyValue : response.getKvs()) {
+            final ResourceInfo resourceInfo = readResourceInfo(keyValue);
+            if (resourceInfo != null) {
+              resources.add(new ActiveResource(
+                  resourceInfo.getTenantId(), resourceInfo.getResourceId(),
+                  resourceInfo.getEnvoyId()));
+            }
+          }
+          return new Snapshot(resources, response.getHeader().getRevision());
+        });
+  }
+
+  /**
+   * Watches for resources becoming active or inactive.
+   * @param fromRevision The etcd revision of the first change to receive, which is normally one
+   * after that of a {@link #getAll()} snapshot.
+   * @param changeConsumer Receives each change, in order, where a null envoy ID indicates that the
+   * resource no longer has an envoy attached.
+   * @param errorConsumer Receives the error that ended the watch, such as the revision having
+   * been compacted, after which no more changes are received.
+   * @return the watcher, which must be closed to stop watching
+   */
+  public Watcher watch(long fromRevision, Consumer<ActiveResource> changeConsumer,
+                       Consumer<Throwable> errorConsumer) {
+    final ByteSequence prefix = toBytes(keyPrefix(Keys.FMT_RESOURCES_ACTIVE));
+    return etcd.getWatchClient().watch(
+        prefix,
+        WatchOption.newBuilder()
+            .withPrefix(prefix)
+            .withRevision(fromRevision)
+            // a deletion carries no value, so the removed resource is read from its prior value
+            .withPrevKV(true)
+            .build(),
+        Watch.listener(
+            response -> {
+              for (WatchEvent event : response.getEvents()) {
+                final boolean put = event.getEventType() == EventType.PUT;
+                final ResourceInfo resourceInfo =
+                    readResourceInfo(put ? event.getKeyValue() : event.getPrevKV());
+                if (resourceInfo != null) {
+                  changeConsumer.accept(new ActiveResource(
+                      resourceInfo.getTenantId(), resourceInfo.getResourceId(),
+                      put ? resourceInfo.getEnvoyId() : null));
+                }
+              }
+            },
+            errorConsumer
+        )
+    );
+  }
+
+  /**
+   * Builds the prefix of the keys of the given format by substituting its leading placeholders,
+   * such as the tenant, and cutting it at the first placeholder that remains.
+   * @param format a key format of the etcd adapter's {@link Keys}
+   * @param values the values of the leading placeholders
+   * @return the key prefix, which ends with a delimiter
+   */
+  static String keyPrefix(String format, String... values) {
+    final StringBuilder prefix = new StringBuilder();
+    int position = 0;
+    for (String value : values) {
+      final int start = format.indexOf('{', position);
+      final int end = format.indexOf('}', start);
+      if (start < 0 || end < 0) {
+        throw new IllegalArgumentException(
+            String.format("Key format %s has fewer than %d placeholders", format, values.length));
+      }
+      prefix.append(format, position, start).append(value);
+      position = end + 1;
+    }
+    final int next = format.indexOf('{', position);
+    prefix.append(format, position, next >= 0 ? next : format.length());
+    return prefix.toString();
+  }
+
+  /**
+   * @return the resource info of the entry or null, which is logged and counted, if it cannot be
+   * read, such as when the ambassador's format has diverged
+   */
+  private ResourceInfo readResourceInfo(KeyValue keyValue) {
+    if (keyValue == null || keyValue.getValue().isEmpty()) {
+      unreadableEntries.increment();
+      log.warn("Ignoring active resource without a value at key={}",
+          keyValue != null ? keyValue.getKey().toString(StandardCharsets.UTF_8) : null);
+      return null;
+    }
+    try {
+      final ResourceInfo resourceInfo =
+          objectMapper.readValue(keyValue.getValue().getBytes(), ResourceInfo.class);
+      if (resourceInfo.getTenantId() == null || resourceInfo.getResourceId() == null) {
+        throw new IOException("Missing tenantId or resourceId");
+      }
+      return resourceInfo;
+    } catch (IOException e) {
+      unreadableEntries.increment();
+      log.warn("Ignoring unreadable active resource at key={}",
+          keyValue.getKey().toString(StandardCharsets.UTF_8), e);
+      return null;
+    }
+  }
+
+  private static ByteSequence toBytes(String value) {
+    return ByteSequence.from(value, StandardCharsets.UTF_8);
+  }
+
+  @Value
+  public static class ActiveResource {
+    String tenantId;
+    String resourceId;
+    String envoyId;
+  }
+
+  @Value
+  public static class Snapshot {
+    List<ActiveResource> resources;
+    long revision;
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.common.errors.RuntimeKafkaException;
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.KafkaConfig;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.messaging.AttachEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+/**
+ * Retries attach events that failed to be handled without holding up the attach topic's
+ * partitions. A failed event is published to a retry topic along with its attempt number and
+ * the time before which it must not be retried, which grows exponentially with each attempt.
+ * Once the configured attempts are exhausted the event is published to a dead-letter topic.
+ *
+ * <p>
+ *   There is one retry topic per backoff tier, each with a fixed delay, so that the records of
+ *   a retry topic's partition come due in the order they arrived. A partition can then be paused
+ *   until its first record is due without delaying any record behind it, whereas with a single
+ *   retry topic a record with a long backoff would hold up the shorter ones queued behind it.
+ * </p>
+ * <p>
+ *   The retry topics are named after the attach topic with the suffix
+ *   {@value #RETRY_TOPIC_SUFFIX} followed by the tier's delay in milliseconds, and the
+ *   dead-letter topic with the suffix {@value #DLT_TOPIC_SUFFIX}. {@link KafkaConfig} creates
+ *   them at startup if the broker does not already have them.
+ * </p>
+ */
+@Service
+@Slf4j
+public class AttachEventRetries {
+
+  public static final String RETRY_TOPIC_SUFFIX = "-retry";
+  public static final String DLT_TOPIC_SUFFIX = "-dlt";
+  static final String ATTEMPT_HEADER = "salus-attempt";
+  static final String NOT_BEFORE_HEADER = "salus-not-before";
+  static final String EXCEPTION_HEADER = "salus-exception";
+  static final String FIRST_FAILED_HEADER = "salus-first-failed";
+  static final String RESOURCE_UPDATED_HEADER = "salus-resource-updated";
+
+  /**
+   * The ID of the retry listener container, which identifies its idle events.
+   */
+  public static final String RETRY_LISTENER_ID = "attachRetries";
+
+  private final KafkaTemplate<String, Object> kafkaTemplate;
+  private final ResourceManagement resourceManagement;
+  private final EnvoyIdLookup envoyIdLookup;
+  private final ResourceManagementProperties properties;
+  private final String attachesTopic;
+  private final String[] retryTopics;
+  private final String deadLetterTopic;
+
+  /**
+   * The time until which each partition paused by a consumer is held, per consumer thread. The
+   * listener and the container's idle events are both invoked on the consumer's thread.
+   */
+  private final ThreadLocal<Map<TopicPartition, Long>> pausedUntil =
+      ThreadLocal.withInitial(HashMap::new);
+
+  // metrics
+  private final Counter retriesScheduled;
+  private final Counter retriesSucceeded;
+  private final Counter retriesStale;
+  private final Counter deadLettered;
+
+  @Autowired
+  public AttachEventRetries(KafkaTemplate<String, Object> kafkaTemplate,
+                            KafkaTopicProperties kafkaTopicProperties,
+                            ResourceManagement resourceManagement,
+                            EnvoyIdLookup envoyIdLookup,
+                            ResourceManagementProperties properties,
+                            MeterRegistry meterRegistry) {
+    this.kafkaTemplate = kafkaTemplate;
+    this.resourceManagement = resourceManagement;
+    this.envoyIdLookup = envoyIdLookup;
+    this.properties = properties;
+    this.attachesTopic = kafkaTopicProperties.getAttaches();
+    this.retryTopics = retryTopics(attachesTopic, properties).toArray(new String[0]);
+    this.deadLetterTopic = kafkaTopicProperties.getAttaches() + DLT_TOPIC_SUFFIX;
+
+    retriesScheduled = Counter.builder("attach_retries.scheduled")
+        .register(meterRegistry);
+    retriesSucceeded = Counter.builder("attach_retries.succeeded")
+        .register(meterRegistry);
+    retriesStale = Counter.builder("attach_retries.stale")
+        .description("Retries discarded since the resource has since been attached again or changed")
+        .register(meterRegistry);
+    deadLettered = Counter.builder("attach_retries.dead_lettered")
+        .register(meterRegistry);
+  }
+
+  /**
+   * This method is used by the __listener.retryTopics magic in the KafkaListener
+   * @return The topics to consume
+   */
+  public String[] getRetryTopics() {
+    return retryTopics;
+  }
+
+  /**
+   * Names the retry topics of the backoff tiers that the configured attempts reach, which
+   * always includes the first tier.
+   * @param attachesTopic the name of the attach topic
+   * @return the names of the retry topics in the order of their tiers
+   */
+  public static List<String> retryTopics(String attachesTopic,
+                                         ResourceManagementProperties properties) {
+    final Set<String> topics = new LinkedHashSet<>();
+    final int lastRetriedAttempt = Math.max(properties.getAttachRetryMaxAttempts() - 1, 1);
+    for (int attempt = 1; attempt <= lastRetriedAttempt; attempt++) {
+      topics.add(retryTopic(attachesTopic, backoffMillis(properties, attempt)));
+    }
+    return new ArrayList<>(topics);
+  }
+
+  private static String retryTopic(String attachesTopic, long backoffMillis) {
+    return attachesTopic + RETRY_TOPIC_SUFFIX + "-" + backoffMillis;
+  }
+
+  /**
+   * @return the delay before the attempt following the given one, which doubles each time up to
+   * the maximum
+   */
+  private static long backoffMillis(ResourceManagementProperties properties, int attempt) {
+    return Math.min(
+        properties.getAttachRetryInitialBackoff().toMillis() << Math.min(attempt - 1, 30),
+        properties.getAttachRetryMaxBackoff().toMillis());
+  }
+
+  /**
+   * Publishes the failed event for another attempt, or to the dead-letter topic if the
+   * configured number of attempts have been made.
+   * @param attachEvent the event that failed
+   * @param attempt the number of the attempt that failed, starting at 1 for the initial attempt
+   * @param cause the reason the attempt failed
+   */
+  public void retry(AttachEvent attachEvent, int attempt, Throwable cause) {
+    retry(attachEvent, attempt, String.valueOf(System.currentTimeMillis()),
+        readResourceUpdated(attachEvent), cause);
+  }
+
+  /**
+   * @param firstFailed the time, in epoch milliseconds, at which the initial attempt failed,
+   * which is only informational since it is taken from this host's clock
+   * @param resourceUpdated the resource's updated timestamp when the initial attempt failed, as
+   * recorded by {@link #readResourceUpdated(AttachEvent)}, or null if it could not be read
+   */
+  private void retry(AttachEvent attachEvent, int attempt, String firstFailed,
+                     String resourceUpdated, Throwable cause) {
+    final ProducerRecord<String, Object> record;
+    if (attempt >= properties.getAttachRetryMaxAttempts()) {
+      log.error("Dead-lettering attach event after attempt={}: {}", attempt, attachEvent, cause);
+      record = new ProducerRecord<>(deadLetterTopic, buildKey(attachEvent), attachEvent);
+      deadLettered.increment();
+    } else {
+      final long backoffMillis = backoffMillis(properties, attempt);
+      log.warn("Retrying attach event in {}ms after attempt={}: {}", backoffMillis, attempt, attachEvent, cause);
+      record = new ProducerRecord<>(
+          retryTopic(attachesTopic, backoffMillis), buildKey(attachEvent), attachEvent);
+      addHeader(record, NOT_BEFORE_HEADER, String.valueOf(System.currentTimeMillis() + backoffMillis));
+      retriesScheduled.increment();
+    }
+    addHeader(record, ATTEMPT_HEADER, String.valueOf(attempt));
+    addHeader(record, FIRST_FAILED_HEADER, firstFailed);
+    if (resourceUpdated != null) {
+      addHeader(record, RESOURCE_UPDATED_HEADER, resourceUpdated);
+    }
+    addHeader(record, EXCEPTION_HEADER, String.valueOf(cause));
+
+    try {
+      kafkaTemplate.send(record).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeKafkaException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeKafkaException(e);
+    }
+  }
+
+  /**
+   * Receives events from the retry topics. An event that is not yet due is not waited on, since
+   * that would block the consumer. Instead the consumer is sought back to it and its partition
+   * is paused until the event is due, which leaves the consumer free to handle the other
+   * partitions and to take part in rebalances. Since the events of a retry topic all have the
+   * same backoff, none of those behind it in the partition are due any sooner. Only handled
+   * events are acknowledged, so the offset of a skipped event is never committed.
+   */
+  @KafkaListener(id = RETRY_LISTENER_ID, idIsGroup = false, topics = "#{__listener.retryTopics}",
+      containerFactory = KafkaConfig.RETRY_LISTENER_CONTAINER_FACTORY)
+  public void consumeRetry(ConsumerRecord<String, AttachEvent> record,
+                           Acknowledgment acknowledgment, Consumer<?, ?> consumer) {
+    resumeDuePartitions(consumer);
+
+    final TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+    if (pausedUntil.get().containsKey(partition)) {
+      // a later record from the same poll, which is fetched again once the partition resumes
+      return;
+    }
+
+    final long notBefore = Long.parseLong(readHeader(record, NOT_BEFORE_HEADER, "0"));
+    if (notBefore > System.currentTimeMillis()) {
+      consumer.seek(partition, record.offset());
+      consumer.pause(Collections.singleton(partition));
+      pausedUntil.get().put(partition, notBefore);
+      return;
+    }
+
+    handleRetry(record);
+    acknowledgment.acknowledge();
+  }
+
+  /**
+   * Resumes the partitions whose retries have become due while the retry consumer is not
+   * receiving any records, such as when all of its partitions are paused.
+   */
+  @EventListener(condition = "event.listenerId.startsWith('" + RETRY_LISTENER_ID + "-')")
+  public void handleRetryConsumerIdle(ListenerContainerIdleEvent event) {
+    resumeDuePartitions(event.getConsumer());
+  }
+
+  private void resumeDuePartitions(Consumer<?, ?> consumer) {
+    final Map<TopicPartition, Long> paused = pausedUntil.get();
+    if (paused.isEmpty()) {
+      return;
+    }
+
+    final Set<TopicPartition> stillPaused = consumer.paused();
+    final long now = System.currentTimeMillis();
+    final List<TopicPartition> due = new ArrayList<>();
+    paused.entrySet().removeIf(entry -> {
+      if (!stillPaused.contains(entry.getKey())) {
+        // revoked by a rebalance, after which a newly assigned partition is no longer paused
+        return true;
+      }
+      if (entry.getValue() <= now) {
+        due.add(entry.getKey());
+        return true;
+      }
+      return false;
+    });
+
+    if (!due.isEmpty()) {
+      log.debug("Resuming retry partitions={}", due);
+      consumer.resume(due);
+    }
+  }
+
+  private void handleRetry(ConsumerRecord<String, AttachEvent> record) {
+    final AttachEvent attachEvent = record.value();
+    final int attempt = Integer.parseInt(readHeader(record, ATTEMPT_HEADER, "1"));
+    final String firstFailed =
+        readHeader(record, FIRST_FAILED_HEADER, String.valueOf(record.timestamp()));
+    final String resourceUpdated = readHeader(record, RESOURCE_UPDATED_HEADER, null);
+
+    if (isStale(attachEvent, resourceUpdated)) {
+      log.debug("Discarding stale retry of attach event: {}", attachEvent);
+      retriesStale.increment();
+      return;
+    }
+
+    try {
+      resourceManagement.handleEnvoyAttach(attachEvent);
+      retriesSucceeded.increment();
+    } catch (RuntimeException e) {
+      retry(attachEvent, attempt + 1, firstFailed, resourceUpdated, e);
+    }
+  }
+
+  /**
+   * An attach event carries the complete envoy labels, so one that has been overtaken would
+   * revert the resource to stale labels. It has been overtaken when another envoy is now
+   * attached to the resource, or when the resource has been saved since the event first failed,
+   * such as by a later attachment of the same envoy with newer labels.
+   * <p>
+   *   The latter compares the resource's updated timestamp with the one recorded when the event
+   *   first failed, rather than with the time of the failure, since both are assigned by the
+   *   database and so are not subject to skew between this host's clock and the database's.
+   * </p>
+   * @param resourceUpdated the resource's updated timestamp recorded when the event first failed,
+   * which is empty if the resource did not exist then, or null if it could not be read, in which
+   * case only the attached envoy is checked
+   */
+  private boolean isStale(AttachEvent attachEvent, String resourceUpdated) {
+    final String currentEnvoyId = envoyIdLookup.getEnvoyId(
+        attachEvent.getTenantId(), attachEvent.getResourceId()).join();
+    if (currentEnvoyId != null && !currentEnvoyId.equals(attachEvent.getEnvoyId())) {
+      return true;
+    }
+    if (resourceUpdated == null) {
+      return false;
+    }
+
+    return resourceManagement.getResource(attachEvent.getTenantId(), attachEvent.getResourceId())
+        .map(AttachEventRetries::updatedTimestampOf)
+        // a resource that has since been created, or saved again, has been overtaken
+        .map(updated -> resourceUpdated.isEmpty() ||
+            Long.parseLong(updated) > Long.parseLong(resourceUpdated))
+        .orElse(false);
+  }
+
+  /**
+   * Reads the updated timestamp of the event's resource, which is compared on each retry to tell
+   * whether the resource has been saved since.
+   * @return the timestamp in epoch milliseconds, an empty string if the resource does not exist,
+   * or null if it could not be read, such as when the failure was the database's
+   */
+  private String readResourceUpdated(AttachEvent attachEvent) {
+    try {
+      return resourceManagement
+          .getResource(attachEvent.getTenantId(), attachEvent.getResourceId())
+          .map(AttachEventRetries::updatedTimestampOf)
+          .orElse("");
+    } catch (RuntimeException e) {
+      log.warn("Unable to read the resource of failed attach event: {}", attachEvent, e);
+      return null;
+    }
+  }
+
+  private static String updatedTimestampOf(Resource resource) {
+    return resource.getUpdatedTimestamp() != null ?
+        String.valueOf(resource.getUpdatedTimestamp().toEpochMilli()) : "0";
+  }
+
+  private static String buildKey(AttachEvent attachEvent) {
+    return attachEvent.getTenantId() + ":" + attachEvent.getResourceId();
+  }
+
+  private static void addHeader(ProducerRecord<String, Object> record, String name, String value) {
+    record.headers().add(name, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String readHeader(ConsumerRecord<?, ?> record, String name, String defaultValue) {
+    final Header header = record.headers().lastHeader(name);
+    return header != null ? new String(header.value(), StandardCharsets.UTF_8) : defaultValue;
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Remembers the envoy labels most recently applied to each resource by an envoy attachment.
+ * Once an attachment has been applied the resource is associated with an envoy, so a later
+ * attachment carrying the same labels is a reattachment that changes nothing in the database
+ * and can be handled without reading the resource.
+ *
+ * <p>
+ *   The cache is bounded to {@link ResourceManagementProperties#getAttachFingerprintCacheMaxSize()}
+ *   entries, evicting the least recently used, and is disabled when that is zero. Entries are
+ *   recorded only once the attachment's transaction has committed. They are invalidated by
+ *   this node's own writes to the resource and by resource events, including those published
+ *   by other nodes, that report changed labels or a deletion.
+ * </p>
+ */
+@Service
+@Slf4j
+public class AttachFingerprintCache {
+
+  private final ResourceManagementProperties properties;
+  private final Map<ResourceKey, Map<String, String>> envoyLabels;
+
+  // metrics
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter invalidations;
+
+  @Autowired
+  public AttachFingerprintCache(ResourceManagementProperties properties,
+                                MeterRegistry meterRegistry) {
+    this.properties = properties;
+
+    envoyLabels = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ResourceKey, Map<String, String>> eldest) {
+        return size() > properties.getAttachFingerprintCacheMaxSize();
+      }
+    });
+
+    hits = Counter.builder("attach_fingerprints.lookups")
+        .tag("result", "hit")
+        .register(meterRegistry);
+    misses = Counter.builder("attach_fingerprints.lookups")
+        .tag("result", "miss")
+        .register(meterRegistry);
+    invalidations = Counter.builder("attach_fingerprints.invalidations")
+        .register(meterRegistry);
+    Gauge.builder("attach_fingerprints.size", envoyLabels, Map::size)
+        .register(meterRegistry);
+  }
+
+  public boolean isEnabled() {
+    return properties.getAttachFingerprintCacheMaxSize() > 0;
+  }
+
+  /**
+   * Indicates if an attachment of the resource with the given envoy labels would be a
+   * reattachment that leaves the resource unchanged.
+   */
+  public boolean matches(String tenantId, String resourceId, Map<String, String> labels) {
+    if (!isEnabled()) {
+      return false;
+    }
+
+    final Map<String, String> previous = envoyLabels.get(new ResourceKey(tenantId, resourceId));
+    if (previous != null && previous.equals(labels)) {
+      hits.increment();
+      return true;
+    } else {
+      misses.increment();
+      return false;
+    }
+  }
+
+  /**
+   * Records the envoy labels applied to the resource by an attachment, deferred until the
+   * current transaction, if any, has committed.
+   */
+  public void record(String tenantId, String resourceId, Map<String, String> labels) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    final ResourceKey key = new ResourceKey(tenantId, resourceId);
+    final Map<String, String> copy = new HashMap<>(labels);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          envoyLabels.put(key, copy);
+        }
+      });
+    } else {
+      envoyLabels.put(key, copy);
+    }
+  }
+
+  public void invalidate(String tenantId, String resourceId) {
+    if (envoyLabels.remove(new ResourceKey(tenantId, resourceId)) != null) {
+      invalidations.increment();
+    }
+  }
+
+  public void invalidateTenant(String tenantId) {
+    synchronized (envoyLabels) {
+      envoyLabels.keySet().removeIf(key -> key.getTenantId().equals(tenantId));
+    }
+  }
+
+  /**
+   * Invalidates the resource's entry when the event, which may have been published by another
+   * node, reports changed labels or a deletion.
+   */
+  public void handleResourceEvent(ResourceEvent event) {
+    if (event.isLabelsChanged() || event.isDeleted()) {
+      log.trace("Invalidating attach fingerprint due to event={}", event);
+      invalidate(event.getTenantId(), event.getResourceId());
+    }
+  }
+
+  @Value
+  private static class ResourceKey {
+    String tenantId;
+    String resourceId;
+  }
+}
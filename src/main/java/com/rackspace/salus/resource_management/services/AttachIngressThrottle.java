@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Map;
+import javax.sql.DataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Pauses the attach event listener while the database connection pool is saturated, such as by
+ * REST traffic, or attach handling is slow, so that attach handling backs off rather than
+ * competing for connections until both time out.
+ *
+ * <p>
+ *   Either condition must persist for several consecutive checks before the listener is paused,
+ *   so that a transient wait for a connection or one slow batch does not pause it. The listener
+ *   is resumed once the pool's utilization has stayed below a lower threshold for as many
+ *   checks, which avoids rapidly toggling between the two. When it was paused because attach
+ *   handling was slow, the database must also respond promptly to a connection probe, since the
+ *   handling latency itself is not measured while paused.
+ * </p>
+ * <p>
+ *   The checks are only made by the scheduler's single thread, which is what guards the state
+ *   kept between them.
+ * </p>
+ */
+@Service
+@Slf4j
+public class AttachIngressThrottle {
+
+  private final KafkaListenerEndpointRegistry listenerRegistry;
+  private final KafkaIngress kafkaIngress;
+  private final ResourceManagementProperties properties;
+  private final HikariDataSource hikariDataSource;
+
+  private int overloadedChecks;
+  private int recoveredChecks;
+  private boolean pausedForLatency;
+  private long lastBatchCount;
+
+  // metrics
+  private final Counter pauses;
+
+  @Autowired
+  public AttachIngressThrottle(KafkaListenerEndpointRegistry listenerRegistry,
+                               KafkaIngress kafkaIngress,
+                               DataSource dataSource,
+                               ResourceManagementProperties properties,
+                               MeterRegistry meterRegistry) {
+    this.listenerRegistry = listenerRegistry;
+    this.kafkaIngress = kafkaIngress;
+    this.properties = properties;
+    this.hikariDataSource = unwrapHikari(dataSource);
+
+    pauses = Counter.builder("attach_ingress.pauses")
+        .register(meterRegistry);
+    Gauge.builder("attach_ingress.paused", this, throttle -> throttle.isPaused() ? 1 : 0)
+        .register(meterRegistry);
+    Gauge.builder("attach_ingress.consumer_lag", this, AttachIngressThrottle::getConsumerLag)
+        .description("The maximum records lag across the attach listener's consumers")
+        .register(meterRegistry);
+  }
+
+  private static HikariDataSource unwrapHikari(DataSource dataSource) {
+    try {
+      if (dataSource.isWrapperFor(HikariDataSource.class)) {
+        return dataSource.unwrap(HikariDataSource.class);
+      }
+    } catch (SQLException e) {
+      log.warn("Unable to access the connection pool of dataSource={}", dataSource, e);
+    }
+    log.warn("Attach throttling is unavailable since the data source is not a Hikari pool");
+    return null;
+  }
+
+  @Scheduled(fixedDelayString = "#{@resourceManagementProperties.attachThrottlingInterval.toMillis()}")
+  public void evaluate() {
+    if (!properties.isAttachThrottlingEnabled() || hikariDataSource == null) {
+      return;
+    }
+    final MessageListenerContainer container = getContainer();
+    final HikariPoolMXBean pool = hikariDataSource.getHikariPoolMXBean();
+    if (container == null || pool == null) {
+      return;
+    }
+
+    final double utilization =
+        (double) pool.getActiveConnections() / hikariDataSource.getMaximumPoolSize();
+    final int waiting = pool.getThreadsAwaitingConnection();
+
+    // only a batch handled since the previous check says anything about the current latency
+    final long batchCount = kafkaIngress.getBatchCount();
+    final boolean measured = batchCount != lastBatchCount;
+    lastBatchCount = batchCount;
+
+    if (!container.isPauseRequested()) {
+      recoveredChecks = 0;
+      final boolean saturated =
+          utilization >= properties.getAttachPausePoolUtilization() || waiting > 0;
+      final boolean slow = measured && kafkaIngress.getLastBatchTimePerEvent()
+          .compareTo(properties.getAttachPauseEventLatency()) >= 0;
+      overloadedChecks = saturated || slow ? overloadedChecks + 1 : 0;
+
+      if (overloadedChecks >= properties.getAttachThrottlingChecks()) {
+        log.warn("Pausing attach event consumption with pool utilization={}, waiting={}, slow={}",
+            utilization, waiting, slow);
+        container.pause();
+        pauses.increment();
+        overloadedChecks = 0;
+        pausedForLatency = slow;
+      }
+    } else {
+      overloadedChecks = 0;
+      final boolean recovered =
+          utilization <= properties.getAttachResumePoolUtilization() && waiting == 0
+              && (!pausedForLatency || isDatabaseResponsive());
+      recoveredChecks = recovered ? recoveredChecks + 1 : 0;
+
+      if (recoveredChecks >= properties.getAttachThrottlingChecks()) {
+        log.info("Resuming attach event consumption with pool utilization={}", utilization);
+        // the latency measured before pausing no longer reflects the pool's state
+        kafkaIngress.resetLastBatchTime();
+        container.resume();
+        recoveredChecks = 0;
+        pausedForLatency = false;
+      }
+    }
+  }
+
+  /**
+   * @return true if a connection could be obtained and validated within
+   * {@link ResourceManagementProperties#getAttachResumeProbeLatency()}
+   */
+  private boolean isDatabaseResponsive() {
+    final Duration threshold = properties.getAttachResumeProbeLatency();
+    final long startNanos = System.nanoTime();
+    try (Connection connection = hikariDataSource.getConnection()) {
+      if (!connection.isValid((int) Math.max(1, threshold.toSeconds()))) {
+        return false;
+      }
+    } catch (SQLException e) {
+      log.debug("Connection probe failed while attach consumption is paused", e);
+      return false;
+    }
+    return Duration.ofNanos(System.nanoTime() - startNanos).compareTo(threshold) < 0;
+  }
+
+  private MessageListenerContainer getContainer() {
+    return listenerRegistry.getListenerContainer(KafkaIngress.ATTACH_LISTENER_ID);
+  }
+
+  private boolean isPaused() {
+    final MessageListenerContainer container = getContainer();
+    return container != null && container.isPauseRequested();
+  }
+
+  private double getConsumerLag() {
+    final MessageListenerContainer container = getContainer();
+    if (container == null) {
+      return Double.NaN;
+    }
+
+    double lag = 0;
+    for (Map<MetricName, ? extends Metric> clientMetrics : container.metrics().values()) {
+      for (Map.Entry<MetricName, ? extends Metric> entry : clientMetrics.entrySet()) {
+        if (entry.getKey().name().equals("records-lag-max")
+            && entry.getKey().group().equals("consumer-fetch-manager-metrics")
+            && entry.getValue().metricValue() instanceof Double) {
+          final double value = (Double) entry.getValue().metricValue();
+          if (!Double.isNaN(value)) {
+            lag = Math.max(lag, value);
+          }
+        }
+      }
+    }
+    return lag;
+  }
+}
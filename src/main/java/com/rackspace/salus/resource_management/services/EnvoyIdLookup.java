@@ -0,0 +1,548 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties.CircuitBreakerProperties;
+import com.rackspace.salus.resource_management.services.ActiveResources.ActiveResource;
+import com.rackspace.salus.resource_management.services.ActiveResources.Snapshot;
+import com.rackspace.salus.telemetry.entities.Resource;
+import io.etcd.jetcd.Watch.Watcher;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.Data;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Resolves the envoy currently attached to a resource.
+ *
+ * <p>
+ *   The envoys of a page of resources are read from etcd with one range read per tenant on the
+ *   page, via {@link ActiveResources}, rather than one read per resource.
+ * </p>
+ *
+ * <p>
+ *   When {@link ResourceManagementProperties#isEnvoyIdIndexEnabled()}, all of the active
+ *   resources are instead loaded into an in-process index with a single range read at startup,
+ *   which is then kept current by watching etcd from the revision of that read, so that DTO
+ *   assembly becomes a map lookup. Attachments and detachments made through any ambassador are
+ *   seen by every node. If the watch fails, such as when its revision has been compacted, the
+ *   index is reloaded and lookups go to etcd until it has been. The index holds at most
+ *   {@link ResourceManagementProperties#getEnvoyIdIndexMaxEntries()} resources; once loading or
+ *   watching would exceed that, it is dropped and lookups go to etcd until a later reload, after
+ *   {@link ResourceManagementProperties#getEnvoyIdIndexOverflowRetryInterval()}, fits.
+ * </p>
+ *
+ * <p>
+ *   Calls to etcd are guarded by a circuit breaker. A lookup that fails, times out, or is
+ *   rejected by the open breaker yields a null envoy ID, so that resources continue to be served
+ *   without that field rather than holding request threads while etcd is unavailable.
+ * </p>
+ */
+@Service
+@Slf4j
+public class EnvoyIdLookup {
+
+  private final ActiveResources activeResources;
+  private final ResourceManagementProperties properties;
+  private final CircuitBreaker circuitBreaker;
+  private final ScheduledExecutorService indexLoader;
+
+  /**
+   * The envoy IDs of the active resources, which is null until the index has been loaded and
+   * while it is being reloaded.
+   */
+  private volatile Map<ResourceKey, String> loadedIndex;
+  /**
+   * Incremented by each load of the index so that changes and errors from the watch of an earlier
+   * load are ignored. Guarded by this.
+   */
+  private long indexGeneration;
+  /**
+   * Guarded by this.
+   */
+  private Watcher indexWatcher;
+  /**
+   * The {@link System#nanoTime()} at which the served index was loaded and at which it was last
+   * changed by its watch, from which its staleness is reported.
+   */
+  private volatile long indexLoadedNanos;
+  private volatile long indexChangedNanos;
+
+  // metrics
+  private final Counter indexHits;
+  private final Counter indexMisses;
+  private final Counter indexUnloaded;
+  private final Counter indexReloads;
+  private final Counter indexOverflows;
+  private final Counter deadlineMisses;
+
+  @Autowired
+  public EnvoyIdLookup(ActiveResources activeResources,
+                       ResourceManagementProperties properties,
+                       MeterRegistry meterRegistry) {
+    this.activeResources = activeResources;
+    this.properties = properties;
+
+    final CircuitBreakerRegistry circuitBreakerRegistry = CircuitBreakerRegistry.of(
+        buildCircuitBreakerConfig(properties.getEnvoyLookupCircuitBreaker()));
+    circuitBreaker = circuitBreakerRegistry.circuitBreaker("envoyLookup");
+    circuitBreaker.getEventPublisher()
+        .onStateTransition(event ->
+            log.warn("Envoy lookup circuit breaker transitioned: {}", event.getStateTransition()));
+    TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakerRegistry)
+        .bindTo(meterRegistry);
+
+    indexHits = Counter.builder("envoy_id_index.lookups")
+        .description("Resources looked up in the loaded index, by whether an envoy was found")
+        .tag("result", "hit")
+        .register(meterRegistry);
+    indexMisses = Counter.builder("envoy_id_index.lookups")
+        .description("Resources looked up in the loaded index, by whether an envoy was found")
+        .tag("result", "miss")
+        .register(meterRegistry);
+    indexUnloaded = Counter.builder("envoy_id_index.unloaded_lookups")
+        .description("Resources looked up in etcd since the enabled index was not loaded")
+        .register(meterRegistry);
+    indexReloads = Counter.builder("envoy_id_index.reloads")
+        .description("Reloads of the index after its etcd watch failed")
+        .register(meterRegistry);
+    indexOverflows = Counter.builder("envoy_id_index.overflows")
+        .description("Times the index was dropped for exceeding its maximum entries")
+        .register(meterRegistry);
+    Gauge.builder("envoy_id_index.size", this, EnvoyIdLookup::indexSize)
+        .register(meterRegistry);
+    Gauge.builder("envoy_id_index.loaded", this, lookup -> lookup.loadedIndex != null ? 1 : 0)
+        .register(meterRegistry);
+    Gauge.builder("envoy_id_index.age", this, lookup -> lookup.indexAgeSeconds(lookup.indexLoadedNanos))
+        .description("Time since the served index was loaded, or NaN while it is not loaded")
+        .baseUnit("seconds")
+        .register(meterRegistry);
+    Gauge.builder("envoy_id_index.last_change_age", this,
+        lookup -> lookup.indexAgeSeconds(lookup.indexChangedNanos))
+        .description("Time since the served index was loaded or last changed by its watch, "
+            + "or NaN while it is not loaded")
+        .baseUnit("seconds")
+        .register(meterRegistry);
+    deadlineMisses = Counter.builder("envoy_id_lookups.deadline_exceeded")
+        .description("Resources returned without an envoy ID since the lookup missed the deadline")
+        .register(meterRegistry);
+
+    indexLoader = isIndexEnabled() ?
+        Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("envoy-id-index-"))
+        : null;
+  }
+
+  @PostConstruct
+  public void start() {
+    if (indexLoader != null) {
+      indexLoader.execute(this::loadIndex);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (indexLoader != null) {
+      indexLoader.shutdownNow();
+      synchronized (this) {
+        indexGeneration++;
+        closeIndexWatcher();
+      }
+    }
+  }
+
+  /**
+   * Gets the envoy IDs attached to each of the given resources, from the index when it is loaded.
+   * Otherwise, the envoys of each tenant's resources are read from etcd together, so the number of reads depends on the number of
+   * tenants rather than resources. At most
+   * {@link ResourceManagementProperties#getEnvoyLookupConcurrency()} of these reads are
+   * outstanding at once and a null envoy ID is given for any resource whose read has not
+   * completed within {@link ResourceManagementProperties#getEnvoyLookupDeadline()}.
+   * @param resources The resources to look up.
+   * @return a future of the envoy IDs in the same order as the given resources
+   */
+  public CompletableFuture<List<String>> getEnvoyIds(List<Resource> resources) {
+    final String[] envoyIds = new String[resources.size()];
+    final Map<ResourceKey, String> loadedIndex = this.loadedIndex;
+    if (loadedIndex != null) {
+      for (int i = 0; i < resources.size(); i++) {
+        final Resource resource = resources.get(i);
+        envoyIds[i] = lookupIndex(loadedIndex, resource.getTenantId(), resource.getResourceId());
+      }
+      return CompletableFuture.completedFuture(Arrays.asList(envoyIds));
+    }
+    if (isIndexEnabled()) {
+      indexUnloaded.increment(resources.size());
+    }
+
+    final Map<String, TenantLookup> tenantLookups = new LinkedHashMap<>();
+    for (int i = 0; i < resources.size(); i++) {
+      final Resource resource = resources.get(i);
+      tenantLookups.computeIfAbsent(resource.getTenantId(), TenantLookup::new)
+          .add(i, resource.getResourceId());
+    }
+
+    final List<TenantLookup> lookups = new ArrayList<>(tenantLookups.values());
+    final Duration deadline = properties.getEnvoyLookupDeadline();
+    final long deadlineNanos = System.nanoTime() + deadline.toNanos();
+    final AtomicInteger nextLookup = new AtomicInteger();
+    final int lanes = Math.min(properties.getEnvoyLookupConcurrency(), lookups.size());
+    for (int lane = 0; lane < lanes; lane++) {
+      runLookups(lookups, nextLookup, deadlineNanos);
+    }
+
+    return CompletableFuture.allOf(
+        lookups.stream().map(TenantLookup::getResult).toArray(CompletableFuture[]::new))
+        .completeOnTimeout(null, deadline.toMillis(), TimeUnit.MILLISECONDS)
+        .thenApply(ignored -> {
+          int missed = 0;
+          for (TenantLookup lookup : lookups) {
+            if (lookup.getResult().isDone()) {
+              final Map<String, String> tenantEnvoyIds = lookup.getResult().join();
+              for (int position : lookup.getPositions()) {
+                envoyIds[position] = tenantEnvoyIds.get(resources.get(position).getResourceId());
+              }
+            } else {
+              missed += lookup.getPositions().size();
+            }
+          }
+          if (missed > 0) {
+            log.debug("Envoy lookups for {} of {} resources missed the deadline", missed, resources.size());
+            deadlineMisses.increment(missed);
+          }
+          return Arrays.asList(envoyIds);
+        });
+  }
+
+  /**
+   * Works through the remaining tenant reads one at a time, continuing from the completion of
+   * each read, which allows a fixed number of these "lanes" to bound the concurrency.
+   */
+  private void runLookups(List<TenantLookup> lookups, AtomicInteger nextLookup,
+                          long deadlineNanos) {
+    int i;
+    while ((i = nextLookup.getAndIncrement()) < lookups.size()) {
+      if (System.nanoTime() - deadlineNanos > 0) {
+        // the remaining resources will be returned without an envoy ID
+        return;
+      }
+
+      final TenantLookup tenantLookup = lookups.get(i);
+      final CompletableFuture<Map<String, String>> read = readTenant(tenantLookup);
+      read.thenAccept(tenantLookup.getResult()::complete);
+
+      if (!read.isDone()) {
+        read.whenComplete((envoyIds, throwable) ->
+            runLookups(lookups, nextLookup, deadlineNanos));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads the envoys of the tenant's resources from etcd.
+   * @return a future of the envoy IDs keyed by resource ID, which is empty if the read failed
+   */
+  private CompletableFuture<Map<String, String>> readTenant(TenantLookup tenantLookup) {
+    final String tenantId = tenantLookup.getTenantId();
+    return guarded(() -> activeResources.getEnvoyIds(tenantId, tenantLookup.getResourceIds()))
+        .exceptionally(throwable -> {
+          log.debug("Serving {} resources of tenant={} without envoy ID since lookup failed",
+              tenantLookup.getResourceIds().size(), tenantId, throwable);
+          return Collections.emptyMap();
+        });
+  }
+
+  /**
+   * Gets the envoy ID attached to the given resource, if any.
+   * @param tenantId The tenant owning the resource.
+   * @param resourceId The unique value representing the resource.
+   * @return a future of the envoy ID or of null if no envoy is attached
+   */
+  public CompletableFuture<String> getEnvoyId(String tenantId, String resourceId) {
+    final Map<ResourceKey, String> loadedIndex = this.loadedIndex;
+    if (loadedIndex != null) {
+      return CompletableFuture.completedFuture(lookupIndex(loadedIndex, tenantId, resourceId));
+    }
+    if (isIndexEnabled()) {
+      indexUnloaded.increment();
+    }
+
+    return withoutEnvoyIdOnFailure(
+        guarded(() -> activeResources.getEnvoyId(tenantId, resourceId)), tenantId, resourceId);
+  }
+
+  private boolean isIndexEnabled() {
+    return properties.isEnvoyIdIndexEnabled();
+  }
+
+  /**
+   * Counts each lookup as a hit or miss, where a miss is a resource without an envoy attached,
+   * or one attached too recently for the watch to have delivered.
+   */
+  private String lookupIndex(Map<ResourceKey, String> loadedIndex, String tenantId,
+                             String resourceId) {
+    final String envoyId = loadedIndex.get(new ResourceKey(tenantId, resourceId));
+    if (envoyId != null) {
+      indexHits.increment();
+    } else {
+      indexMisses.increment();
+    }
+    return envoyId;
+  }
+
+  private int indexSize() {
+    final Map<ResourceKey, String> loadedIndex = this.loadedIndex;
+    return loadedIndex != null ? loadedIndex.size() : 0;
+  }
+
+  private double indexAgeSeconds(long sinceNanos) {
+    if (loadedIndex == null) {
+      return Double.NaN;
+    }
+    return (System.nanoTime() - sinceNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+  /**
+   * Loads all of the active resources into a new index and watches for changes made after they
+   * were read, retrying after {@link ResourceManagementProperties#getEnvoyIdIndexReloadDelay()}
+   * if that fails.
+   */
+  private void loadIndex() {
+    final long generation;
+    synchronized (this) {
+      generation = ++indexGeneration;
+      closeIndexWatcher();
+    }
+
+    final Snapshot snapshot;
+    try {
+      snapshot = activeResources.getAll()
+          .get(properties.getEnvoyIdIndexLoadTimeout().toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (Exception e) {
+      log.warn("Failed to load envoy ID index, will retry", e);
+      scheduleIndexReload();
+      return;
+    }
+
+    final int maxEntries = properties.getEnvoyIdIndexMaxEntries();
+    if (snapshot.getResources().size() > maxEntries) {
+      indexOverflowed(generation, snapshot.getResources().size());
+      return;
+    }
+    final Map<ResourceKey, String> index = new ConcurrentHashMap<>();
+    for (ActiveResource resource : snapshot.getResources()) {
+      if (resource.getEnvoyId() != null) {
+        index.put(new ResourceKey(resource.getTenantId(), resource.getResourceId()),
+            resource.getEnvoyId());
+      }
+    }
+
+    synchronized (this) {
+      if (generation != indexGeneration) {
+        return;
+      }
+      // changes from the watch are applied to the index even after it is being served
+      indexLoadedNanos = System.nanoTime();
+      indexChangedNanos = indexLoadedNanos;
+      loadedIndex = index;
+      indexWatcher = activeResources.watch(snapshot.getRevision() + 1,
+          change -> applyIndexChange(generation, index, change),
+          throwable -> indexWatchFailed(generation, throwable));
+    }
+    log.info("Loaded envoy IDs of {} active resources at etcd revision={}",
+        index.size(), snapshot.getRevision());
+  }
+
+  private void applyIndexChange(long generation, Map<ResourceKey, String> index,
+                                ActiveResource change) {
+    synchronized (this) {
+      if (generation != indexGeneration) {
+        return;
+      }
+    }
+    final ResourceKey key = new ResourceKey(change.getTenantId(), change.getResourceId());
+    if (change.getEnvoyId() != null) {
+      // changes are delivered one at a time, so the size cannot grow between the check and put
+      if (index.size() >= properties.getEnvoyIdIndexMaxEntries() && !index.containsKey(key)) {
+        indexOverflowed(generation, index.size() + 1);
+        return;
+      }
+      index.put(key, change.getEnvoyId());
+    } else {
+      index.remove(key);
+    }
+    indexChangedNanos = System.nanoTime();
+  }
+
+  /**
+   * Drops the index, so that lookups go to etcd, and tries loading it again after
+   * {@link ResourceManagementProperties#getEnvoyIdIndexOverflowRetryInterval()}.
+   */
+  private void indexOverflowed(long generation, int entries) {
+    final Watcher abandonedWatcher;
+    synchronized (this) {
+      if (generation != indexGeneration) {
+        return;
+      }
+      // ignores any further changes from the watch
+      indexGeneration++;
+      loadedIndex = null;
+      abandonedWatcher = indexWatcher;
+      indexWatcher = null;
+    }
+    log.warn("Envoy ID index of {} entries exceeds maximum of {}, reading envoys from etcd instead",
+        entries, properties.getEnvoyIdIndexMaxEntries());
+    indexOverflows.increment();
+    if (!indexLoader.isShutdown()) {
+      if (abandonedWatcher != null) {
+        // not closed here, since this may be running within the watch's own listener
+        indexLoader.execute(abandonedWatcher::close);
+      }
+      indexLoader.schedule(this::loadIndex,
+          properties.getEnvoyIdIndexOverflowRetryInterval().toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void indexWatchFailed(long generation, Throwable throwable) {
+    synchronized (this) {
+      if (generation != indexGeneration) {
+        return;
+      }
+      // lookups go to etcd until the index has been reloaded
+      loadedIndex = null;
+    }
+    log.warn("Envoy ID index watch failed, will reload", throwable);
+    indexReloads.increment();
+    scheduleIndexReload();
+  }
+
+  private void scheduleIndexReload() {
+    if (!indexLoader.isShutdown()) {
+      indexLoader.schedule(this::loadIndex,
+          properties.getEnvoyIdIndexReloadDelay().toMillis(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Must be called while holding this.
+   */
+  private void closeIndexWatcher() {
+    if (indexWatcher != null) {
+      indexWatcher.close();
+      indexWatcher = null;
+    }
+  }
+
+  /**
+   * Reads from etcd through the circuit breaker.
+   * @return a future of the read that completes exceptionally if the call was not permitted,
+   * failed, or timed out
+   */
+  private <T> CompletableFuture<T> guarded(Supplier<CompletableFuture<T>> read) {
+    if (!circuitBreaker.tryAcquirePermission()) {
+      return CompletableFuture.failedFuture(
+          CallNotPermittedException.createCallNotPermittedException(circuitBreaker));
+    }
+
+    final long startNanos = System.nanoTime();
+    return read.get()
+        .orTimeout(properties.getEnvoyLookupTimeout().toNanos(), TimeUnit.NANOSECONDS)
+        .whenComplete((result, throwable) -> {
+          final long durationNanos = System.nanoTime() - startNanos;
+          if (throwable != null) {
+            circuitBreaker.onError(durationNanos, TimeUnit.NANOSECONDS, throwable);
+          } else {
+            circuitBreaker.onSuccess(durationNanos, TimeUnit.NANOSECONDS);
+          }
+        });
+  }
+
+  private CompletableFuture<String> withoutEnvoyIdOnFailure(CompletableFuture<String> lookup,
+                                                           String tenantId, String resourceId) {
+    return lookup.exceptionally(throwable -> {
+      log.debug("Serving resource={} of tenant={} without envoy ID since lookup failed",
+          resourceId, tenantId, throwable);
+      return null;
+    });
+  }
+
+  private static CircuitBreakerConfig buildCircuitBreakerConfig(CircuitBreakerProperties properties) {
+    return CircuitBreakerConfig.custom()
+        .failureRateThreshold(properties.getFailureRateThreshold())
+        .slowCallRateThreshold(properties.getSlowCallRateThreshold())
+        .slowCallDurationThreshold(properties.getSlowCallDurationThreshold())
+        .slidingWindowSize(properties.getSlidingWindowSize())
+        .minimumNumberOfCalls(properties.getMinimumNumberOfCalls())
+        .waitDurationInOpenState(properties.getWaitDurationInOpenState())
+        .permittedNumberOfCallsInHalfOpenState(properties.getPermittedNumberOfCallsInHalfOpenState())
+        .build();
+  }
+
+  @Value
+  private static class ResourceKey {
+    String tenantId;
+    String resourceId;
+  }
+
+  /**
+   * The resources of a tenant, and their positions on the page, whose envoys are read together.
+   */
+  @Data
+  private static class TenantLookup {
+    private final String tenantId;
+    private final List<Integer> positions = new ArrayList<>();
+    private final Set<String> resourceIds = new HashSet<>();
+    private final CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+
+    void add(int position, String resourceId) {
+      positions.add(position);
+      resourceIds.add(resourceId);
+    }
+  }
+}
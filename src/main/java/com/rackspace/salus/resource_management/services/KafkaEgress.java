@@ -17,15 +17,30 @@
 package com.rackspace.salus.resource_management.services;
 
 import com.rackspace.salus.common.errors.RuntimeKafkaException;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
 import com.rackspace.salus.telemetry.messaging.KafkaMessageKeyBuilder;
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
 import com.rackspace.salus.telemetry.messaging.KafkaMessageType;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.KafkaException;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
+import org.springframework.util.concurrent.ListenableFuture;
 
 @Service
 @Slf4j
@@ -33,14 +48,79 @@ public class KafkaEgress {
 
     private final KafkaTemplate<String,Object> kafkaTemplate;
     private final KafkaTopicProperties kafkaTopicProperties;
+    private final ResourceManagementProperties properties;
+    private final Semaphore inFlightSends;
+    private final MeterRegistry meterRegistry;
+
+    // metrics, tagged by the resources topic
+    private final Timer sendLatency;
+    private final Timer sendBlocked;
+    private final DistributionSummary recordSize;
+    private final ConcurrentMap<OutcomeKey, Counter> sendOutcomes = new ConcurrentHashMap<>();
 
     @Autowired
-    public KafkaEgress(KafkaTemplate<String,Object> kafkaTemplate, KafkaTopicProperties kafkaTopicProperties) {
+    public KafkaEgress(KafkaTemplate<String,Object> kafkaTemplate, KafkaTopicProperties kafkaTopicProperties,
+                       ResourceManagementProperties properties, MeterRegistry meterRegistry) {
         this.kafkaTemplate = kafkaTemplate;
         this.kafkaTopicProperties = kafkaTopicProperties;
+        this.properties = properties;
+        this.inFlightSends = new Semaphore(properties.getKafkaEgressMaxInFlight());
+        this.meterRegistry = meterRegistry;
+
+        final String topicTag = tagValue(kafkaTopicProperties.getResources());
+        sendLatency = Timer.builder("kafka_egress.send_latency")
+            .description("Time from handing a record to the producer until the broker acknowledges it")
+            .publishPercentileHistogram()
+            .tag("topic", topicTag)
+            .register(meterRegistry);
+        sendBlocked = Timer.builder("kafka_egress.send_blocked")
+            .description("Time the sending thread is blocked waiting for in-flight capacity and the producer")
+            .publishPercentileHistogram()
+            .tag("topic", topicTag)
+            .register(meterRegistry);
+        recordSize = DistributionSummary.builder("kafka_egress.record_size")
+            .baseUnit("bytes")
+            .publishPercentileHistogram()
+            .tag("topic", topicTag)
+            .register(meterRegistry);
+        final int maxInFlight = properties.getKafkaEgressMaxInFlight();
+        Gauge.builder("kafka_egress.in_flight", inFlightSends, semaphore -> maxInFlight - semaphore.availablePermits())
+            .tag("topic", topicTag)
+            .register(meterRegistry);
+        Gauge.builder("kafka_egress.waiting_senders", inFlightSends, Semaphore::getQueueLength)
+            .description("Threads blocked waiting for in-flight capacity")
+            .tag("topic", topicTag)
+            .register(meterRegistry);
     }
 
+    /**
+     * Sends the event to the resources topic. When configured for synchronous egress, this waits
+     * for the broker to acknowledge the event; otherwise, it only waits when the maximum number of
+     * sends are already in flight.
+     * @param event the event to send
+     */
     public void sendResourceEvent(ResourceEvent event) {
+        final CompletableFuture<SendResult<String, Object>> sent = sendResourceEventAsync(event);
+
+        if (properties.isKafkaEgressSynchronous()) {
+            try {
+                sent.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeKafkaException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeKafkaException(e);
+            }
+        }
+    }
+
+    /**
+     * Sends the event to the resources topic without waiting for the broker's acknowledgement.
+     * The caller is blocked only while the maximum number of sends are already in flight.
+     * @param event the event to send
+     * @return a future that completes when the broker has acknowledged the event
+     */
+    public CompletableFuture<SendResult<String, Object>> sendResourceEventAsync(ResourceEvent event) {
         final String topic = kafkaTopicProperties.getResources();
         if (topic == null) {
             throw new IllegalArgumentException(String.format("No topic configured for %s", KafkaMessageType.RESOURCE));
@@ -49,10 +129,81 @@ public class KafkaEgress {
         log.debug("Sending event={} on topic={}", event, topic);
         final String key = KafkaMessageKeyBuilder.buildMessageKey(event);
 
+        final long blockedStartNanos = System.nanoTime();
         try {
-            kafkaTemplate.send(topic, key, event).get();
-        } catch (InterruptedException|ExecutionException e) {
+            inFlightSends.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeKafkaException(e);
         }
+
+        final long startNanos = System.nanoTime();
+        final ListenableFuture<SendResult<String, Object>> future;
+        try {
+            // the producer itself may block, such as while fetching metadata or when its buffer is full
+            future = kafkaTemplate.send(topic, key, event);
+        } catch (RuntimeException e) {
+            inFlightSends.release();
+            countOutcome(e);
+            throw e;
+        } finally {
+            sendBlocked.record(System.nanoTime() - blockedStartNanos, TimeUnit.NANOSECONDS);
+        }
+
+        future.addCallback(
+            result -> {
+                inFlightSends.release();
+                sendLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                countOutcome(null);
+                if (result != null && result.getRecordMetadata() != null) {
+                    recordSize.record(Math.max(result.getRecordMetadata().serializedKeySize(), 0)
+                        + Math.max(result.getRecordMetadata().serializedValueSize(), 0));
+                }
+            },
+            throwable -> {
+                inFlightSends.release();
+                sendLatency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                countOutcome(throwable);
+                log.warn("Failed to send event={} on topic={}", event, topic, throwable);
+            }
+        );
+
+        return future.completable();
+    }
+
+    /**
+     * Counts the outcome of a send. Failures are tagged with the simple class name of the
+     * exception, or its cause when wrapped by Spring Kafka, which keeps the tag values bounded.
+     * This is called from both the sending and the producer's callback threads, so each counter
+     * is built from its own builder and then reused.
+     */
+    private void countOutcome(Throwable throwable) {
+        final String exception;
+        if (throwable == null) {
+            exception = "none";
+        } else if (throwable instanceof KafkaException && throwable.getCause() != null) {
+            exception = throwable.getCause().getClass().getSimpleName();
+        } else {
+            exception = throwable.getClass().getSimpleName();
+        }
+
+        final String outcome = throwable == null ? "success" : "failure";
+        sendOutcomes.computeIfAbsent(new OutcomeKey(outcome, exception),
+            key -> Counter.builder("kafka_egress.sends")
+                .tags("topic", tagValue(kafkaTopicProperties.getResources()),
+                    "outcome", key.getOutcome(),
+                    "exception", key.getException())
+                .register(meterRegistry))
+            .increment();
+    }
+
+    @Value
+    private static class OutcomeKey {
+        String outcome;
+        String exception;
+    }
+
+    private static String tagValue(String value) {
+        return value != null ? value : "none";
     }
-}
\ No newline at end of file
+}
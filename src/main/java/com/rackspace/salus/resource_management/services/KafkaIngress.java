@@ -17,23 +17,70 @@
 package com.rackspace.salus.resource_management.services;
 
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.KafkaConfig;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
 import com.rackspace.salus.telemetry.messaging.AttachEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
 public class KafkaIngress {
 
+    /**
+     * The ID of the attach event listener container, which is used to pause and resume it.
+     */
+    public static final String ATTACH_LISTENER_ID = "attachEvents";
+
     private final ResourceManagement resourceManagement;
+    private final AttachEventRetries attachEventRetries;
     private final String topic;
+    private final List<ThreadPoolExecutor> lanes;
+    private final List<Timer> laneProcessingTimers;
+    private final AtomicLong lastBatchNanosPerEvent = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
 
     @Autowired
-    public KafkaIngress(KafkaTopicProperties kafkaTopicProperties, ResourceManagement resourceManagement) {
+    public KafkaIngress(KafkaTopicProperties kafkaTopicProperties, ResourceManagement resourceManagement,
+                        AttachEventRetries attachEventRetries, ResourceManagementProperties properties,
+                        MeterRegistry meterRegistry) {
         this.resourceManagement = resourceManagement;
+        this.attachEventRetries = attachEventRetries;
         this.topic = kafkaTopicProperties.getAttaches();
+
+        final int laneCount = properties.getAttachProcessingLanes();
+        lanes = new ArrayList<>(laneCount);
+        laneProcessingTimers = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            final String lane = String.valueOf(i);
+            laneProcessingTimers.add(Timer.builder("attach_ingress.lane_processing")
+                .tag("lane", lane)
+                .register(meterRegistry));
+            if (laneCount > 1) {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), new CustomizableThreadFactory("attach-lane-" + lane + "-"));
+                Gauge.builder("attach_ingress.lane_queue_depth", executor, e -> e.getQueue().size())
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+                lanes.add(executor);
+            }
+        }
     }
 
     /**
@@ -45,13 +92,102 @@ public class KafkaIngress {
     }
 
     /**
-     * This receives an envoy attach event from Kafka and passes it to the resource manager to do whatever is needed.
-     * @param attachEvent The AttachEvent read from Kafka.
-     * @throws Exception
+     * This receives a batch of envoy attach events from Kafka and passes them to the resource manager to do
+     * whatever is needed.
+     * <p>
+     * When configured with more than one lane, the events are split across the lanes by tenant and resource
+     * so that events for the same resource are still handled in order. This method returns, allowing the
+     * batch's offsets to be committed, only after every lane has finished its share of the batch.
+     * </p>
+     * @param attachEvents The AttachEvents read from Kafka in a single poll.
+     */
+    @KafkaListener(id = ATTACH_LISTENER_ID, idIsGroup = false, topics = "#{__listener.topic}",
+        containerFactory = KafkaConfig.BATCH_LISTENER_CONTAINER_FACTORY)
+    public void consumeAttachEvents(List<AttachEvent> attachEvents) {
+        log.debug("Processing {} new attach events", attachEvents.size());
+        if (attachEvents.isEmpty()) {
+            return;
+        }
+
+        final long startNanos = System.nanoTime();
+        if (lanes.isEmpty()) {
+            laneProcessingTimers.get(0).record(() -> handleAttachEvents(attachEvents));
+        } else {
+            dispatchToLanes(attachEvents);
+        }
+        lastBatchNanosPerEvent.set((System.nanoTime() - startNanos) / attachEvents.size());
+        batchCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of non-empty batches consumed, so that callers can tell whether
+     * {@link #getLastBatchTimePerEvent()} has been measured again since they last read it
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the mean time taken per event of the most recently consumed batch
+     */
+    public Duration getLastBatchTimePerEvent() {
+        return Duration.ofNanos(lastBatchNanosPerEvent.get());
+    }
+
+    /**
+     * Clears the batch timing, such as when resuming consumption after a pause.
+     */
+    public void resetLastBatchTime() {
+        lastBatchNanosPerEvent.set(0);
+    }
+
+    private void dispatchToLanes(List<AttachEvent> attachEvents) {
+        final List<List<AttachEvent>> laneEvents = new ArrayList<>(lanes.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            laneEvents.add(new ArrayList<>());
+        }
+        for (AttachEvent attachEvent : attachEvents) {
+            laneEvents.get(laneOf(attachEvent)).add(attachEvent);
+        }
+
+        final List<CompletableFuture<Void>> laneCompletions = new ArrayList<>(lanes.size());
+        for (int i = 0; i < lanes.size(); i++) {
+            final List<AttachEvent> events = laneEvents.get(i);
+            if (!events.isEmpty()) {
+                final Timer timer = laneProcessingTimers.get(i);
+                laneCompletions.add(CompletableFuture.runAsync(
+                    () -> timer.record(() -> handleAttachEvents(events)), lanes.get(i)));
+            }
+        }
+        CompletableFuture.allOf(laneCompletions.toArray(new CompletableFuture[0])).join();
+    }
+
+    private int laneOf(AttachEvent attachEvent) {
+        return Math.floorMod(Objects.hash(attachEvent.getTenantId(), attachEvent.getResourceId()), lanes.size());
+    }
+
+    /**
+     * Handles the events as a batch. If the batch as a whole cannot be handled, each event is retried on its
+     * own so that one bad event does not prevent the others from being handled. Events that still fail are
+     * handed off to the retry topic rather than holding up the partition.
      */
-    @KafkaListener(topics = "#{__listener.topic}")
-    public void consumeAttachEvents(AttachEvent attachEvent) {
-        log.debug("Processing new attach event: {}", attachEvent);
-        resourceManagement.handleEnvoyAttach(attachEvent);
+    private void handleAttachEvents(List<AttachEvent> attachEvents) {
+        try {
+            resourceManagement.handleEnvoyAttaches(attachEvents);
+        } catch (RuntimeException e) {
+            log.warn("Failed to process batch of {} attach events, processing individually", attachEvents.size(), e);
+            for (AttachEvent attachEvent : attachEvents) {
+                try {
+                    resourceManagement.handleEnvoyAttach(attachEvent);
+                } catch (RuntimeException individualException) {
+                    attachEventRetries.retry(attachEvent, 1, individualException);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        lanes.forEach(ThreadPoolExecutor::shutdown);
     }
 }
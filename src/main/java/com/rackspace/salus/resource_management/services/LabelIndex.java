@@ -0,0 +1,427 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+
+/**
+ * An in-memory inverted index, per tenant, from each label to a compressed bitmap of the
+ * internal IDs of the resources having that label. Label selectors are evaluated against it by
+ * intersecting (AND) or unioning (OR) the bitmaps of the selected labels.
+ *
+ * <p>
+ *   A tenant's index is built with a single query the first time the tenant is selected. When one
+ *   of the tenant's resources changes, either by this node, once the change has committed, or by
+ *   any node as reported by resource events (see {@link ResourceEventListener}), only that
+ *   resource's labels are read again and its entries in the index are replaced. A change made by
+ *   this node is applied twice, once locally and again when its own event is received, which
+ *   costs one single-resource query since the update is idempotent. The index is only discarded
+ *   when all of the tenant's resources are removed.
+ * </p>
+ * <p>
+ *   The least recently used tenant indexes are evicted to keep the estimated size of all of
+ *   them within {@link ResourceManagementProperties#getLabelIndexMaxBytes()}. The index is
+ *   disabled when that is zero.
+ * </p>
+ */
+@Service
+@Slf4j
+public class LabelIndex {
+
+  private static final String TENANT_LABELS_QUERY =
+      "SELECT rl.id, rl.labels_key, rl.labels, r.resource_id FROM resource_labels AS rl"
+          + " JOIN resources AS r ON r.id = rl.id WHERE r.tenant_id = ?";
+
+  /**
+   * Selects the labels of a single resource. A resource without labels is returned as one row
+   * with null label columns and no rows are returned when the resource does not exist.
+   */
+  private static final String RESOURCE_LABELS_QUERY =
+      "SELECT r.id, rl.labels_key, rl.labels, r.resource_id FROM resources AS r"
+          + " LEFT JOIN resource_labels AS rl ON rl.id = r.id"
+          + " WHERE r.tenant_id = ? AND r.resource_id = ?";
+
+  /**
+   * A rough allowance for the map entries and strings of each indexed label
+   */
+  private static final int LABEL_OVERHEAD_BYTES = 96;
+
+  /**
+   * A rough allowance for the map entry that maps each indexed resource to its internal ID
+   */
+  private static final int RESOURCE_OVERHEAD_BYTES = 64;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ResourceManagementProperties properties;
+
+  /**
+   * Tenant indexes in least recently used order. Guarded by this.
+   */
+  private final Map<String, TenantIndex> tenantIndexes = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  private final TenantGenerations generations = new TenantGenerations();
+
+  // metrics
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter evictions;
+
+  @Autowired
+  public LabelIndex(JdbcTemplate jdbcTemplate, ResourceManagementProperties properties,
+                    MeterRegistry meterRegistry) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.properties = properties;
+
+    hits = Counter.builder("label_index.lookups")
+        .tag("result", "hit")
+        .register(meterRegistry);
+    misses = Counter.builder("label_index.lookups")
+        .tag("result", "miss")
+        .register(meterRegistry);
+    evictions = Counter.builder("label_index.evictions")
+        .register(meterRegistry);
+    Gauge.builder("label_index.size", this, LabelIndex::getTotalBytes)
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("label_index.tenants", this, LabelIndex::getTenantCount)
+        .register(meterRegistry);
+  }
+
+  public boolean isEnabled() {
+    return properties.getLabelIndexMaxBytes() > 0;
+  }
+
+  /**
+   * Finds the resources of the tenant that match the label selector.
+   * @param tenantId The tenant to select resources from.
+   * @param labels The labels to select, which must not be empty.
+   * @param logicalOperation Whether resources must have all, or at least one, of the labels.
+   * @return the internal IDs of the matching resources in ascending order
+   */
+  public List<Long> findMatchingIds(String tenantId, Map<String, String> labels,
+                                    LabelSelectorMethod logicalOperation) {
+    final TenantIndex tenantIndex = getTenantIndex(tenantId);
+    final Roaring64NavigableMap matches;
+    tenantIndex.lock.readLock().lock();
+    try {
+      matches = tenantIndex.match(labels, logicalOperation);
+    } finally {
+      tenantIndex.lock.readLock().unlock();
+    }
+
+    final List<Long> ids = new ArrayList<>(matches.getIntCardinality());
+    matches.forEach(ids::add);
+    return ids;
+  }
+
+  /**
+   * Discards the tenant's index. Within a transaction, this is deferred until it has committed
+   * so that the index is not rebuilt from the data prior to the change.
+   */
+  public void invalidateTenant(String tenantId) {
+    if (isEnabled()) {
+      generations.changed(tenantId, () -> discard(tenantId));
+    }
+  }
+
+  /**
+   * Updates the tenant's index, if it is held, with the current labels of the resource, or
+   * removes the resource when it no longer exists. Within a transaction, this is deferred until
+   * it has committed so that the labels are read after the change.
+   */
+  public void resourceChanged(String tenantId, String resourceId) {
+    if (isEnabled()) {
+      generations.changed(tenantId, () -> update(tenantId, resourceId));
+    }
+  }
+
+  /**
+   * Updates the tenant's index when the event, which may have been published by another
+   * node, reports changed labels or a deletion.
+   */
+  public void handleResourceEvent(ResourceEvent event) {
+    if (event.isLabelsChanged() || event.isDeleted()) {
+      resourceChanged(event.getTenantId(), event.getResourceId());
+    }
+  }
+
+  private void update(String tenantId, String resourceId) {
+    final TenantIndex tenantIndex;
+    synchronized (this) {
+      tenantIndex = tenantIndexes.get(tenantId);
+    }
+    if (tenantIndex == null) {
+      return;
+    }
+
+    final long sizeChange;
+    // The labels are read while holding the write lock so that concurrent updates of the
+    // resource are applied in the order they read it.
+    tenantIndex.lock.writeLock().lock();
+    try {
+      final List<Long> ids = new ArrayList<>(1);
+      final Map<String, String> labels = new HashMap<>();
+      jdbcTemplate.query(RESOURCE_LABELS_QUERY, (RowCallbackHandler) resultSet -> {
+            if (ids.isEmpty()) {
+              ids.add(resultSet.getLong(1));
+            }
+            if (resultSet.getString(2) != null) {
+              labels.put(resultSet.getString(2), resultSet.getString(3));
+            }
+          },
+          tenantId, resourceId);
+
+      sizeChange = tenantIndex.replace(resourceId, ids.isEmpty() ? null : ids.get(0), labels);
+    } finally {
+      tenantIndex.lock.writeLock().unlock();
+    }
+
+    synchronized (this) {
+      // unless it was evicted in the meantime
+      if (tenantIndexes.get(tenantId) == tenantIndex) {
+        tenantIndex.sizeInBytes += sizeChange;
+        totalBytes += sizeChange;
+        evictOverBudget(tenantId);
+      }
+    }
+    log.trace("Updated label index of tenant={} for resource={}", tenantId, resourceId);
+  }
+
+  private void discard(String tenantId) {
+    synchronized (this) {
+      final TenantIndex removed = tenantIndexes.remove(tenantId);
+      if (removed != null) {
+        totalBytes -= removed.sizeInBytes;
+      }
+    }
+  }
+
+  private TenantIndex getTenantIndex(String tenantId) {
+    synchronized (this) {
+      final TenantIndex existing = tenantIndexes.get(tenantId);
+      if (existing != null) {
+        hits.increment();
+        return existing;
+      }
+    }
+    misses.increment();
+
+    final long generation = generations.current(tenantId);
+    final TenantIndex built = buildTenantIndex(tenantId);
+
+    synchronized (this) {
+      if (generations.current(tenantId) == generation && !tenantIndexes.containsKey(tenantId)) {
+        tenantIndexes.put(tenantId, built);
+        totalBytes += built.sizeInBytes;
+        evictOverBudget(tenantId);
+      }
+    }
+    return built;
+  }
+
+  /**
+   * Evicts the least recently used tenant indexes, other than the one just added, while the
+   * total exceeds the budget. Must be called while synchronized on this.
+   */
+  private void evictOverBudget(String retainedTenantId) {
+    final Iterator<Entry<String, TenantIndex>> it = tenantIndexes.entrySet().iterator();
+    while (totalBytes > properties.getLabelIndexMaxBytes() && it.hasNext()) {
+      final Entry<String, TenantIndex> eldest = it.next();
+      if (!eldest.getKey().equals(retainedTenantId)) {
+        it.remove();
+        totalBytes -= eldest.getValue().sizeInBytes;
+        evictions.increment();
+      }
+    }
+  }
+
+  private TenantIndex buildTenantIndex(String tenantId) {
+    final Map<String, Map<String, Roaring64NavigableMap>> bitmaps = new HashMap<>();
+    final Map<String, Long> ids = new HashMap<>();
+    jdbcTemplate.query(TENANT_LABELS_QUERY, (RowCallbackHandler) resultSet -> {
+          bitmaps
+              .computeIfAbsent(resultSet.getString(2), key -> new HashMap<>())
+              .computeIfAbsent(resultSet.getString(3), value -> new Roaring64NavigableMap())
+              .addLong(resultSet.getLong(1));
+          ids.put(resultSet.getString(4), resultSet.getLong(1));
+        },
+        tenantId);
+
+    long sizeInBytes = (long) ids.size() * RESOURCE_OVERHEAD_BYTES;
+    for (Map<String, Roaring64NavigableMap> values : bitmaps.values()) {
+      for (Roaring64NavigableMap bitmap : values.values()) {
+        bitmap.runOptimize();
+        sizeInBytes += bitmap.getLongSizeInBytes() + LABEL_OVERHEAD_BYTES;
+      }
+    }
+    log.debug("Built label index of {} bytes for tenant={}", sizeInBytes, tenantId);
+    return new TenantIndex(bitmaps, ids, sizeInBytes);
+  }
+
+  private synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  private synchronized int getTenantCount() {
+    return tenantIndexes.size();
+  }
+
+  private static class TenantIndex {
+
+    /**
+     * Bitmaps of internal resource IDs by label key and then label value
+     */
+    final Map<String, Map<String, Roaring64NavigableMap>> bitmaps;
+    /**
+     * The internal IDs of the indexed resources by resource ID, so that the entries of a deleted
+     * resource can still be found
+     */
+    final Map<String, Long> ids;
+    /**
+     * Guards the bitmaps and IDs, which are matched concurrently and updated in place
+     */
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Guarded by the enclosing LabelIndex
+     */
+    long sizeInBytes;
+
+    TenantIndex(Map<String, Map<String, Roaring64NavigableMap>> bitmaps, Map<String, Long> ids,
+                long sizeInBytes) {
+      this.bitmaps = bitmaps;
+      this.ids = ids;
+      this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Replaces the labels indexed for the resource. Must be called with the write lock held.
+     * @param resourceId the resource that changed
+     * @param id the resource's internal ID, or null if it no longer exists
+     * @param labels the resource's current labels
+     * @return the change in the estimated size of this index
+     */
+    long replace(String resourceId, Long id, Map<String, String> labels) {
+      long sizeChange = 0;
+
+      final Long previousId = id != null ? ids.put(resourceId, id) : ids.remove(resourceId);
+      if (previousId == null && id != null) {
+        sizeChange += RESOURCE_OVERHEAD_BYTES;
+      } else if (previousId != null && id == null) {
+        sizeChange -= RESOURCE_OVERHEAD_BYTES;
+      }
+      if (previousId != null) {
+        sizeChange += remove(previousId);
+      }
+
+      if (id != null) {
+        for (Entry<String, String> label : labels.entrySet()) {
+          final Map<String, Roaring64NavigableMap> values =
+              bitmaps.computeIfAbsent(label.getKey(), key -> new HashMap<>());
+          Roaring64NavigableMap bitmap = values.get(label.getValue());
+          if (bitmap == null) {
+            bitmap = new Roaring64NavigableMap();
+            values.put(label.getValue(), bitmap);
+            sizeChange += LABEL_OVERHEAD_BYTES;
+          }
+          final long sizeBefore = bitmap.getLongSizeInBytes();
+          bitmap.addLong(id);
+          sizeChange += bitmap.getLongSizeInBytes() - sizeBefore;
+        }
+      }
+      return sizeChange;
+    }
+
+    /**
+     * Removes the internal ID from every bitmap, dropping those left empty.
+     * @return the change in the estimated size of this index
+     */
+    private long remove(long id) {
+      long sizeChange = 0;
+      final Iterator<Map<String, Roaring64NavigableMap>> keys = bitmaps.values().iterator();
+      while (keys.hasNext()) {
+        final Map<String, Roaring64NavigableMap> values = keys.next();
+        final Iterator<Roaring64NavigableMap> it = values.values().iterator();
+        while (it.hasNext()) {
+          final Roaring64NavigableMap bitmap = it.next();
+          if (bitmap.contains(id)) {
+            final long sizeBefore = bitmap.getLongSizeInBytes();
+            bitmap.removeLong(id);
+            if (bitmap.isEmpty()) {
+              it.remove();
+              sizeChange -= sizeBefore + LABEL_OVERHEAD_BYTES;
+            } else {
+              sizeChange += bitmap.getLongSizeInBytes() - sizeBefore;
+            }
+          }
+        }
+        if (values.isEmpty()) {
+          keys.remove();
+        }
+      }
+      return sizeChange;
+    }
+
+    /**
+     * Must be called with the read lock held.
+     */
+    Roaring64NavigableMap match(Map<String, String> labels, LabelSelectorMethod logicalOperation) {
+      final Roaring64NavigableMap result = new Roaring64NavigableMap();
+      boolean first = true;
+      for (Entry<String, String> label : labels.entrySet()) {
+        final Roaring64NavigableMap bitmap =
+            bitmaps.getOrDefault(label.getKey(), Map.of()).get(label.getValue());
+
+        if (logicalOperation == LabelSelectorMethod.AND) {
+          if (bitmap == null) {
+            return new Roaring64NavigableMap();
+          }
+          // the indexed bitmaps are only ever combined into a new result
+          if (first) {
+            result.or(bitmap);
+          } else {
+            result.and(bitmap);
+          }
+        } else if (bitmap != null) {
+          result.or(bitmap);
+        }
+        first = false;
+      }
+      return result;
+    }
+  }
+}
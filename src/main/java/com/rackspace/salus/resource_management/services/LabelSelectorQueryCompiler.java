@@ -0,0 +1,293 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.common.util.SpringResourceUtils;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import lombok.Value;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compiles label selectors into the SQL of the label matching queries.
+ *
+ * <p>
+ *   The SQL only depends on the operator and the number of labels in the selector, or the
+ *   operators of its {@link LabelExpression}s, since the label keys and values are bound as
+ *   parameters. Label selector queries are compiled once for each combination and reused.
+ *   Along with a shared {@link org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate},
+ *   that lets the parsed named-parameter SQL and the driver's prepared statements be reused
+ *   across selectors of the same shape.
+ * </p>
+ * <p>
+ *   Label expression queries are built on each use instead, since the number of combinations
+ *   of their operators is too large to cache without bound and building them is cheap compared
+ *   to evaluating them. The same expressions still produce the same SQL, so the template's and
+ *   driver's own bounded caches can reuse it.
+ * </p>
+ */
+@Service
+public class LabelSelectorQueryCompiler {
+
+  /**
+   * Selectors with more labels than this are compiled on each use to keep the cache bounded. It
+   * matches the most labels the API accepts in a selector body, but the labels of the
+   * resources-by-label endpoints are query parameters that are not bounded.
+   */
+  static final int MAX_CACHED_LABEL_COUNT = LabelSelector.MAX_LABELS;
+
+  enum QueryType {
+    MATCH,
+    COUNT
+  }
+
+  private final String labelMatchQuery;
+  private final String labelMatchOrQuery;
+  private final String labelMatchCountQuery;
+  private final String labelMatchOrCountQuery;
+  private final String labelExpressionQuery;
+  private final String labelExpressionCountQuery;
+
+  private final ConcurrentMap<QueryKey, String> compiledQueries = new ConcurrentHashMap<>();
+
+  public LabelSelectorQueryCompiler() throws IOException {
+    labelMatchQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_query.sql");
+    labelMatchOrQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_OR_query.sql");
+    labelMatchCountQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_count_query.sql");
+    labelMatchOrCountQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_OR_count_query.sql");
+    labelExpressionQuery = SpringResourceUtils.readContent("sql-queries/resource_label_expression_query.sql");
+    labelExpressionCountQuery = SpringResourceUtils.readContent("sql-queries/resource_label_expression_count_query.sql");
+  }
+
+  /**
+   * @return the SQL that selects, in ID order, one page of the IDs of the resources matching a
+   * selector of the given shape. The page is bound by the <code>afterId</code>,
+   * <code>offset</code> and <code>limit</code> parameters.
+   */
+  public String matchQuery(LabelSelectorMethod logicalOperation, int labelCount) {
+    return compile(QueryType.MATCH, logicalOperation, labelCount);
+  }
+
+  /**
+   * @return the SQL that counts the resources matching a selector of the given shape
+   */
+  public String countQuery(LabelSelectorMethod logicalOperation, int labelCount) {
+    return compile(QueryType.COUNT, logicalOperation, labelCount);
+  }
+
+  /**
+   * Binds the tenant and labels of a selector to the parameters of its compiled queries.
+   */
+  public MapSqlParameterSource bind(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation) {
+    final MapSqlParameterSource paramSource = new MapSqlParameterSource();
+    paramSource.addValue("tenantId", tenantId);
+    int i = 0;
+    for (Map.Entry<String, String> entry : labels.entrySet()) {
+      paramSource.addValue("label" + i, entry.getValue());
+      paramSource.addValue("labelKey" + i, entry.getKey());
+      i++;
+    }
+    if (logicalOperation.equals(LabelSelectorMethod.AND)) {
+      paramSource.addValue("i", i);
+    }
+    return paramSource;
+  }
+
+  /**
+   * @return the SQL that selects, in ID order, one page of the IDs of the resources matching the
+   * label expressions, bound as for {@link #matchQuery(LabelSelectorMethod, int)}
+   */
+  public String expressionMatchQuery(List<LabelExpression> expressions,
+                                     LabelSelectorMethod logicalOperation) {
+    return compileExpressions(QueryType.MATCH, expressions, logicalOperation);
+  }
+
+  /**
+   * @return the SQL that counts the resources matching the label expressions
+   */
+  public String expressionCountQuery(List<LabelExpression> expressions,
+                                     LabelSelectorMethod logicalOperation) {
+    return compileExpressions(QueryType.COUNT, expressions, logicalOperation);
+  }
+
+  /**
+   * Binds the tenant and the keys and values of label expressions to the parameters of their
+   * compiled queries.
+   * @throws IllegalArgumentException if an expression has the wrong number of values for its
+   * operator
+   */
+  public MapSqlParameterSource bindExpressions(List<LabelExpression> expressions, String tenantId) {
+    final MapSqlParameterSource paramSource = new MapSqlParameterSource();
+    paramSource.addValue("tenantId", tenantId);
+    for (int i = 0; i < expressions.size(); i++) {
+      final LabelExpression expression = validate(expressions.get(i));
+      paramSource.addValue("key" + i, expression.getKey());
+      switch (expression.getOperator()) {
+        case EQUALS:
+        case NOT:
+          paramSource.addValue("value" + i, expression.getValues().get(0));
+          break;
+        case IN:
+          paramSource.addValue("value" + i, expression.getValues());
+          break;
+        case PREFIX:
+          paramSource.addValue("value" + i, escapeLike(expression.getValues().get(0)) + "%");
+          break;
+        default:
+          // EXISTS and ABSENT only bind the key
+      }
+    }
+    return paramSource;
+  }
+
+  int cachedQueryCount() {
+    return compiledQueries.size();
+  }
+
+  private String compile(QueryType type, LabelSelectorMethod logicalOperation, int labelCount) {
+    if (labelCount < 1) {
+      throw new IllegalArgumentException("A label selector requires at least one label");
+    }
+    if (labelCount > MAX_CACHED_LABEL_COUNT) {
+      return buildQuery(type, logicalOperation, labelCount);
+    }
+    return compiledQueries.computeIfAbsent(
+        new QueryKey(type, logicalOperation, labelCount),
+        key -> buildQuery(key.getType(), key.getLogicalOperation(), key.getLabelCount())
+    );
+  }
+
+  private String compileExpressions(QueryType type, List<LabelExpression> expressions,
+                                    LabelSelectorMethod logicalOperation) {
+    if (expressions.isEmpty()) {
+      throw new IllegalArgumentException("A label selector requires at least one expression");
+    }
+    final List<LabelExpression.Operator> operators = expressions.stream()
+        .map(expression -> validate(expression).getOperator())
+        .collect(Collectors.toList());
+    return buildExpressionQuery(type, operators, logicalOperation);
+  }
+
+  /**
+   * Builds a query with one EXISTS, or NOT EXISTS, predicate over the resource's labels for each
+   * expression, so that the database evaluates the whole selector in a single statement.
+   */
+  private String buildExpressionQuery(QueryType type, List<LabelExpression.Operator> operators,
+                                      LabelSelectorMethod logicalOperation) {
+    final String separator = logicalOperation.equals(LabelSelectorMethod.AND) ? " AND " : " OR ";
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < operators.size(); i++) {
+      if (i > 0) {
+        builder.append(separator);
+      }
+      final LabelExpression.Operator operator = operators.get(i);
+      if (operator == LabelExpression.Operator.NOT || operator == LabelExpression.Operator.ABSENT) {
+        builder.append("NOT ");
+      }
+      builder.append("EXISTS (SELECT 1 FROM resource_labels AS rl WHERE rl.id = resources.id")
+          .append(" AND rl.labels_key = :key").append(i);
+      switch (operator) {
+        case EQUALS:
+        case NOT:
+          builder.append(" AND rl.labels = :value").append(i);
+          break;
+        case IN:
+          builder.append(" AND rl.labels IN (:value").append(i).append(")");
+          break;
+        case PREFIX:
+          builder.append(" AND rl.labels LIKE :value").append(i);
+          break;
+        default:
+          // EXISTS and ABSENT only test the key
+      }
+      builder.append(")");
+    }
+    return String.format(
+        type == QueryType.MATCH ? labelExpressionQuery : labelExpressionCountQuery,
+        builder.toString());
+  }
+
+  private static LabelExpression validate(LabelExpression expression) {
+    final int valueCount = expression.getValues() == null ? 0 : expression.getValues().size();
+    final boolean valid;
+    switch (expression.getOperator()) {
+      case EQUALS:
+      case NOT:
+      case PREFIX:
+        valid = valueCount == 1;
+        break;
+      case IN:
+        valid = valueCount > 0;
+        break;
+      default:
+        valid = valueCount == 0;
+    }
+    if (!valid) {
+      throw new IllegalArgumentException(String.format(
+          "The %s label expression on '%s' was given %d values",
+          expression.getOperator(), expression.getKey(), valueCount));
+    }
+    return expression;
+  }
+
+  /**
+   * Escapes the wildcards of a LIKE pattern using the default escape character.
+   */
+  private static String escapeLike(String value) {
+    return value
+        .replace("\\", "\\\\")
+        .replace("%", "\\%")
+        .replace("_", "\\_");
+  }
+
+  private String buildQuery(QueryType type, LabelSelectorMethod logicalOperation, int labelCount) {
+    final boolean and = logicalOperation.equals(LabelSelectorMethod.AND);
+    final String template;
+    if (type == QueryType.MATCH) {
+      template = and ? labelMatchQuery : labelMatchOrQuery;
+    } else {
+      template = and ? labelMatchCountQuery : labelMatchOrCountQuery;
+    }
+
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < labelCount; i++) {
+      if (i > 0) {
+        builder.append(" OR ");
+      }
+      builder.append("(labels = :label").append(i)
+          .append(" AND labels_key = :labelKey").append(i)
+          .append(")");
+    }
+    return String.format(template, builder.toString());
+  }
+
+  @Value
+  private static class QueryKey {
+    QueryType type;
+    LabelSelectorMethod logicalOperation;
+    int labelCount;
+  }
+}
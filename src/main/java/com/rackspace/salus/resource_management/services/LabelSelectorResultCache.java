@@ -0,0 +1,223 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import lombok.Value;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Caches the IDs of the resources matching each label selector, keyed by tenant, the sorted
+ * labels of the selector and its operator, since the same selectors are evaluated repeatedly
+ * by monitor management and UI clients.
+ *
+ * <p>
+ *   All of a tenant's entries are discarded when any of its resources change, either by this
+ *   node, once the change has committed, or by any node as reported by resource events; see
+ *   {@link ResourceEventListener}. The least recently used entries are evicted to keep the total
+ *   number of cached IDs within {@link ResourceManagementProperties#getLabelSelectorCacheMaxIds()}
+ *   and the cache is disabled when that is zero.
+ * </p>
+ */
+@Service
+public class LabelSelectorResultCache {
+
+  private final ResourceManagementProperties properties;
+
+  /**
+   * Entries in least recently used order. Guarded by this.
+   */
+  private final Map<SelectorKey, List<Long>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * The sum of the weights of the entries. Guarded by this.
+   */
+  private long totalIds;
+
+  private final TenantGenerations generations = new TenantGenerations();
+
+  // metrics
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter evictions;
+
+  @Autowired
+  public LabelSelectorResultCache(ResourceManagementProperties properties,
+                                  MeterRegistry meterRegistry) {
+    this.properties = properties;
+
+    hits = Counter.builder("label_selector_cache.lookups")
+        .tag("result", "hit")
+        .register(meterRegistry);
+    misses = Counter.builder("label_selector_cache.lookups")
+        .tag("result", "miss")
+        .register(meterRegistry);
+    evictions = Counter.builder("label_selector_cache.evictions")
+        .register(meterRegistry);
+    Gauge.builder("label_selector_cache.size", this, LabelSelectorResultCache::size)
+        .register(meterRegistry);
+    Gauge.builder("label_selector_cache.ids", this, LabelSelectorResultCache::getTotalIds)
+        .register(meterRegistry);
+  }
+
+  public boolean isEnabled() {
+    return properties.getLabelSelectorCacheMaxIds() > 0;
+  }
+
+  /**
+   * Gets the cached result of the label selector or loads and caches it.
+   * @param loader evaluates the selector when it is not cached
+   * @return the internal IDs of the matching resources in ascending order
+   */
+  public List<Long> getMatchingIds(String tenantId, Map<String, String> labels,
+                                   LabelSelectorMethod logicalOperation,
+                                   Supplier<List<Long>> loader) {
+    if (!isEnabled()) {
+      return loader.get();
+    }
+
+    final SelectorKey key = new SelectorKey(tenantId, new TreeMap<>(labels), logicalOperation);
+    final List<Long> existing = lookup(key);
+    if (existing != null) {
+      return existing;
+    }
+
+    final long generation = generations.current(tenantId);
+    final List<Long> loaded = Collections.unmodifiableList(loader.get());
+
+    synchronized (this) {
+      if (generations.current(tenantId) == generation && weight(loaded) <= maxIds()) {
+        final List<Long> replaced = entries.put(key, loaded);
+        if (replaced != null) {
+          totalIds -= weight(replaced);
+        }
+        totalIds += weight(loaded);
+        evictOverCapacity();
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Gets the cached result of the label selector without loading it when it is not cached,
+   * for callers that only need part of the result and can select that more cheaply.
+   * @return the internal IDs of the matching resources in ascending order or null if not cached
+   */
+  public List<Long> getMatchingIdsIfPresent(String tenantId, Map<String, String> labels,
+                                            LabelSelectorMethod logicalOperation) {
+    if (!isEnabled()) {
+      return null;
+    }
+    return lookup(new SelectorKey(tenantId, new TreeMap<>(labels), logicalOperation));
+  }
+
+  /**
+   * Discards the tenant's entries. Within a transaction, this is deferred until it has committed
+   * so that the results are not reloaded from the data prior to the change.
+   */
+  public void invalidateTenant(String tenantId) {
+    if (isEnabled()) {
+      generations.changed(tenantId, () -> discard(tenantId));
+    }
+  }
+
+  /**
+   * Invalidates the tenant's entries when the event, which may have been published by another
+   * node, reports changed labels or a deletion.
+   */
+  public void handleResourceEvent(ResourceEvent event) {
+    if (event.isLabelsChanged() || event.isDeleted()) {
+      invalidateTenant(event.getTenantId());
+    }
+  }
+
+  private List<Long> lookup(SelectorKey key) {
+    final List<Long> existing;
+    synchronized (this) {
+      existing = entries.get(key);
+    }
+    if (existing != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return existing;
+  }
+
+  private synchronized void discard(String tenantId) {
+    final Iterator<Entry<SelectorKey, List<Long>>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      final Entry<SelectorKey, List<Long>> entry = it.next();
+      if (entry.getKey().getTenantId().equals(tenantId)) {
+        it.remove();
+        totalIds -= weight(entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Must be called while synchronized on this.
+   */
+  private void evictOverCapacity() {
+    final Iterator<Entry<SelectorKey, List<Long>>> it = entries.entrySet().iterator();
+    while (totalIds > maxIds() && it.hasNext()) {
+      final Entry<SelectorKey, List<Long>> eldest = it.next();
+      it.remove();
+      totalIds -= weight(eldest.getValue());
+      evictions.increment();
+    }
+  }
+
+  private long maxIds() {
+    return properties.getLabelSelectorCacheMaxIds();
+  }
+
+  /**
+   * Counts an entry as its IDs plus one so that empty results are also bounded.
+   */
+  private static long weight(List<Long> ids) {
+    return ids.size() + 1L;
+  }
+
+  private synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized long getTotalIds() {
+    return totalIds;
+  }
+
+  @Value
+  private static class SelectorKey {
+    String tenantId;
+    Map<String, String> labels;
+    LabelSelectorMethod logicalOperation;
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.KafkaMessageKeyBuilder;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Collapses the resource events published for the same resource within a configurable window
+ * into a single event before handing them to {@link KafkaEgress}. Events are keyed the same
+ * way as their Kafka messages, so at most one event per key is sent per window and the order
+ * of events for a key is preserved.
+ * <p>
+ * When the window is zero, events are passed straight through to the egress. Otherwise, the
+ * events are sent after the call that submitted them has returned, so a failed send is only
+ * logged, regardless of {@link ResourceManagementProperties#isKafkaEgressSynchronous()}.
+ * </p>
+ */
+@Service
+@Slf4j
+public class ResourceEventCoalescer {
+
+  private final KafkaEgress kafkaEgress;
+  private final Duration window;
+  private final ScheduledExecutorService flushExecutor;
+
+  /**
+   * Pending events by message key, in order of their first arrival. Guarded by this.
+   */
+  private Map<String, ResourceEvent> pending = new LinkedHashMap<>();
+
+  /**
+   * Held while pending events are taken and sent, so that a flush only returns once any flush
+   * already in progress has also finished sending.
+   */
+  private final Object flushLock = new Object();
+
+  // metrics
+  private final Counter eventsReceived;
+  private final Counter eventsEmitted;
+
+  @Autowired
+  public ResourceEventCoalescer(KafkaEgress kafkaEgress, ResourceManagementProperties properties,
+                                MeterRegistry meterRegistry) {
+    this.kafkaEgress = kafkaEgress;
+    this.window = properties.getKafkaEgressCoalescingWindow();
+
+    eventsReceived = Counter.builder("resource_event_coalescer.received")
+        .register(meterRegistry);
+    eventsEmitted = Counter.builder("resource_event_coalescer.emitted")
+        .register(meterRegistry);
+    meterRegistry.gauge("resource_event_coalescer.pending", this, ResourceEventCoalescer::pendingCount);
+
+    if (isEnabled()) {
+      flushExecutor = Executors.newSingleThreadScheduledExecutor(
+          new CustomizableThreadFactory("resource-event-coalescer-"));
+      flushExecutor.scheduleWithFixedDelay(
+          this::flush, window.toMillis(), window.toMillis(), TimeUnit.MILLISECONDS);
+    } else {
+      flushExecutor = null;
+    }
+  }
+
+  private boolean isEnabled() {
+    return !window.isZero() && !window.isNegative();
+  }
+
+  /**
+   * Submits the event to be sent once the current window closes, merged with any other events
+   * for the same resource submitted within the window.
+   * @param event the event to send
+   */
+  public void submit(ResourceEvent event) {
+    eventsReceived.increment();
+    if (!isEnabled()) {
+      eventsEmitted.increment();
+      kafkaEgress.sendResourceEvent(event);
+      return;
+    }
+
+    final String key = KafkaMessageKeyBuilder.buildMessageKey(event);
+    synchronized (this) {
+      pending.merge(key, event, ResourceEventCoalescer::merge);
+    }
+  }
+
+  /**
+   * Sends the events pending in the current window. This is also used ahead of sending events
+   * that bypass the coalescer so that those cannot overtake pending events.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      final Map<String, ResourceEvent> flushing;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        flushing = pending;
+        pending = new LinkedHashMap<>();
+      }
+
+      for (ResourceEvent event : flushing.values()) {
+        eventsEmitted.increment();
+        try {
+          kafkaEgress.sendResourceEvent(event);
+        } catch (RuntimeException e) {
+          log.warn("Failed to send coalesced event={}", event, e);
+        }
+      }
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (flushExecutor != null) {
+      flushExecutor.shutdown();
+      flush();
+    }
+  }
+
+  private synchronized int pendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Merges two events for the same resource. A label change in either is retained and the
+   * deletion state follows the later event. The re-attached envoy is that of the later event
+   * when it has one, otherwise that of the earlier event, so that a plain update following a
+   * re-attachment does not lose it; it is dropped when the later event is a deletion.
+   */
+  static ResourceEvent merge(ResourceEvent earlier, ResourceEvent later) {
+    final String reattachedEnvoyId = later.getReattachedEnvoyId() != null ?
+        later.getReattachedEnvoyId() : earlier.getReattachedEnvoyId();
+
+    return new ResourceEvent()
+        .setTenantId(later.getTenantId())
+        .setResourceId(later.getResourceId())
+        .setLabelsChanged(earlier.isLabelsChanged() || later.isLabelsChanged())
+        .setDeleted(later.isDeleted())
+        .setReattachedEnvoyId(later.isDeleted() ? null : reattachedEnvoyId);
+  }
+}
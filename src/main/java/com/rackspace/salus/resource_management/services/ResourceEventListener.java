@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.KafkaConfig;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Service;
+
+/**
+ * Consumes the resource events published by every node of this service so that the in-memory
+ * views of resources held by this node are invalidated when resources are changed elsewhere.
+ * The listener is only started when at least one of those views is enabled.
+ *
+ * <p>
+ *   Each instance must receive every event, so it consumes through a consumer group of its own,
+ *   named uniquely each time it starts. The views start empty, so there is nothing to resume
+ *   from a previous start. The group never commits offsets, so the broker does not retain it
+ *   once the instance stops.
+ * </p>
+ */
+@Service
+@Slf4j
+public class ResourceEventListener {
+
+  private final AttachFingerprintCache attachFingerprintCache;
+  private final LabelIndex labelIndex;
+  private final LabelSelectorResultCache labelSelectorResultCache;
+  private final String topic;
+
+  @Autowired
+  public ResourceEventListener(KafkaTopicProperties kafkaTopicProperties,
+                               AttachFingerprintCache attachFingerprintCache,
+                               LabelIndex labelIndex,
+                               LabelSelectorResultCache labelSelectorResultCache) {
+    this.attachFingerprintCache = attachFingerprintCache;
+    this.labelIndex = labelIndex;
+    this.labelSelectorResultCache = labelSelectorResultCache;
+    this.topic = kafkaTopicProperties.getResources();
+  }
+
+  /**
+   * This method is used by the __listener.topic magic in the KafkaListener
+   * @return The topic to consume
+   */
+  public String getTopic() {
+    return topic;
+  }
+
+  @KafkaListener(topics = "#{__listener.topic}",
+      groupId = "${spring.application.name}-${salus.environment}-resource-views-"
+          + "#{T(java.util.UUID).randomUUID()}",
+      containerFactory = KafkaConfig.UNCOMMITTED_LISTENER_CONTAINER_FACTORY,
+      properties = {"auto.offset.reset=latest", "enable.auto.commit=false"},
+      autoStartup = "#{@resourceManagementProperties.attachFingerprintCacheMaxSize > 0"
+          + " || @resourceManagementProperties.labelIndexMaxBytes > 0"
+          + " || @resourceManagementProperties.labelSelectorCacheMaxIds > 0}")
+  public void consumeResourceEvent(ResourceEvent event) {
+    log.trace("Applying resource event={} to local views", event);
+    attachFingerprintCache.handleResourceEvent(event);
+    labelIndex.handleResourceEvent(event);
+    labelSelectorResultCache.handleResourceEvent(event);
+  }
+}
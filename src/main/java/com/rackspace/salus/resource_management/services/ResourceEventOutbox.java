@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.entities.ResourceEventOutboxEntry;
+import com.rackspace.salus.resource_management.repositories.ResourceEventOutboxRepository;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Holds resource events in a table written within the same transaction as the resource change
+ * that produced them, and relays them to the resources topic in the background.
+ * <p>
+ * Events are relayed in outbox order and only removed from the outbox once the broker has
+ * acknowledged them, so delivery is at-least-once. The rows being relayed are locked for the
+ * duration of a batch so that relays on other instances wait rather than reordering events.
+ * </p>
+ */
+@Service
+@Slf4j
+public class ResourceEventOutbox {
+
+  private final ResourceEventOutboxRepository outboxRepository;
+  private final KafkaEgress kafkaEgress;
+  private final ObjectMapper objectMapper;
+  private final ResourceManagementProperties properties;
+  private final TransactionTemplate transactionTemplate;
+
+  // metrics
+  private final Counter eventsRelayed;
+  private final Counter relayFailures;
+  private final Timer batchDuration;
+
+  @Autowired
+  public ResourceEventOutbox(ResourceEventOutboxRepository outboxRepository,
+                             KafkaEgress kafkaEgress,
+                             ObjectMapper objectMapper,
+                             ResourceManagementProperties properties,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry) {
+    this.outboxRepository = outboxRepository;
+    this.kafkaEgress = kafkaEgress;
+    this.objectMapper = objectMapper;
+    this.properties = properties;
+
+    transactionTemplate = new TransactionTemplate(transactionManager);
+    // avoids gap locks that would block resource changes from appending while a batch is relayed
+    transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+
+    eventsRelayed = Counter.builder("resource_event_outbox.relayed")
+        .register(meterRegistry);
+    relayFailures = Counter.builder("resource_event_outbox.relay_failures")
+        .register(meterRegistry);
+    batchDuration = Timer.builder("resource_event_outbox.batch_duration")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Fails startup when the outbox is enabled but its table, created by
+   * {@code db/resource_event_outbox.sql}, cannot be read. Otherwise every resource change would
+   * fail once appending its event.
+   */
+  @PostConstruct
+  public void verifyTable() {
+    if (!properties.isOutboxEnabled()) {
+      return;
+    }
+
+    try {
+      outboxRepository.existsById(0L);
+    } catch (DataAccessException e) {
+      throw new IllegalStateException(
+          "The resource event outbox is enabled, but its table resource_event_outbox is not "
+              + "available. Apply db/resource_event_outbox.sql or disable "
+              + "salus.resource-management.outbox-enabled", e);
+    }
+  }
+
+  /**
+   * Appends the event to the outbox. This must be called within the transaction that makes the
+   * corresponding resource change.
+   * @param event the event to relay once the transaction commits
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  public void append(ResourceEvent event) {
+    final String payload;
+    try {
+      payload = objectMapper.writeValueAsString(event);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Unable to serialize resource event", e);
+    }
+
+    outboxRepository.save(
+        new ResourceEventOutboxEntry()
+            .setTenantId(event.getTenantId())
+            .setResourceId(event.getResourceId())
+            .setPayload(payload)
+    );
+  }
+
+  /**
+   * Relays batches of events until the outbox has been drained or a send fails.
+   */
+  @Scheduled(fixedDelayString = "#{@resourceManagementProperties.outboxRelayInterval.toMillis()}")
+  public void relay() {
+    if (!properties.isOutboxEnabled()) {
+      return;
+    }
+
+    final int batchSize = properties.getOutboxRelayBatchSize();
+    Integer relayed;
+    do {
+      relayed = batchDuration.record(() -> transactionTemplate.execute(status -> relayBatch(batchSize)));
+    } while (relayed != null && relayed == batchSize);
+  }
+
+  /**
+   * Sends the oldest events in the outbox, waits for the broker to acknowledge them, and deletes
+   * the acknowledged entries. When a send fails, only the entries before it are deleted so that
+   * the failed event and those after it are retried in order by the next relay.
+   * @return the number of entries relayed
+   */
+  int relayBatch(int batchSize) {
+    final List<ResourceEventOutboxEntry> entries =
+        outboxRepository.findAllByOrderByIdAsc(PageRequest.of(0, batchSize));
+    if (entries.isEmpty()) {
+      return 0;
+    }
+
+    final List<CompletableFuture<?>> sends = new ArrayList<>(entries.size());
+    for (ResourceEventOutboxEntry entry : entries) {
+      final ResourceEvent event;
+      try {
+        event = objectMapper.readValue(entry.getPayload(), ResourceEvent.class);
+      } catch (IOException e) {
+        // an unreadable entry would otherwise block the outbox indefinitely
+        log.error("Discarding unreadable outbox entry={}", entry, e);
+        sends.add(CompletableFuture.completedFuture(null));
+        continue;
+      }
+
+      try {
+        sends.add(kafkaEgress.sendResourceEventAsync(event));
+      } catch (RuntimeException e) {
+        sends.add(CompletableFuture.failedFuture(e));
+        break;
+      }
+    }
+
+    int acknowledged = 0;
+    for (CompletableFuture<?> send : sends) {
+      try {
+        send.join();
+      } catch (CompletionException e) {
+        relayFailures.increment();
+        log.warn("Failed to relay outbox entry={}, will retry", entries.get(acknowledged), e.getCause());
+        break;
+      }
+      acknowledged++;
+    }
+
+    if (acknowledged > 0) {
+      outboxRepository.deleteInBatch(entries.subList(0, acknowledged));
+      eventsRelayed.increment(acknowledged);
+    }
+    return acknowledged;
+  }
+}
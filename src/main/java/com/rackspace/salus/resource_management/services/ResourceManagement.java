@@ -22,109 +22,248 @@ import static com.rackspace.salus.telemetry.model.LabelNamespaces.labelHasNamesp
 import com.rackspace.salus.common.config.MetricNames;
 import com.rackspace.salus.common.config.MetricTagValues;
 import com.rackspace.salus.common.config.MetricTags;
-import com.rackspace.salus.common.util.SpringResourceUtils;
+import com.rackspace.salus.common.errors.RuntimeKafkaException;
 import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.repositories.PresenceMonitoredResourceRepository;
+import com.rackspace.salus.resource_management.repositories.ResourceSliceRepository;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.resource_management.web.model.ResourceUpdate;
 import com.rackspace.salus.telemetry.entities.Resource;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
-import com.rackspace.salus.telemetry.etcd.services.EnvoyResourceManagement;
 import com.rackspace.salus.telemetry.messaging.AttachEvent;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
 import com.rackspace.salus.telemetry.model.LabelNamespaces;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
 import com.rackspace.salus.telemetry.model.NotFoundException;
-import com.rackspace.salus.telemetry.model.ResourceInfo;
 import com.rackspace.salus.telemetry.repositories.ResourceRepository;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
-import java.io.IOException;
+import io.micrometer.core.instrument.Timer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.validation.Valid;
 import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.PropertyMapper;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.repository.support.PageableExecutionUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 @Slf4j
 @Service
 public class ResourceManagement {
+
+  /**
+   * Selects the labels of each of a tenant's resources, grouped by resource. Resources without
+   * labels are included with null label columns.
+   */
+  private static final String TENANT_LABELS_BY_RESOURCE_QUERY =
+      "SELECT r.id, r.resource_id, rl.labels_key, rl.labels FROM resources AS r"
+          + " LEFT JOIN resource_labels AS rl ON rl.id = r.id"
+          + " WHERE r.tenant_id = :tenantId ORDER BY r.id";
+
+  /**
+   * Delete a chunk of resources by ID without loading them. The labels are deleted first since
+   * they reference the resources.
+   */
+  private static final String DELETE_RESOURCE_LABELS_BY_ID =
+      "DELETE FROM resource_labels WHERE id IN (:ids)";
+  private static final String DELETE_RESOURCES_BY_ID =
+      "DELETE FROM resources WHERE id IN (:ids)";
+
   private final ResourceRepository resourceRepository;
+  private final PresenceMonitoredResourceRepository presenceMonitoredResourceRepository;
+  private final ResourceSliceRepository resourceSliceRepository;
+  private final TransactionTemplate transactionTemplate;
+  private final TransactionTemplate readOnlyTransactionTemplate;
   private final KafkaEgress kafkaEgress;
-  private final String labelMatchQuery;
-  private final String labelMatchOrQuery;
 
-  JdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+  private final LabelSelectorQueryCompiler labelSelectorQueryCompiler;
   private final EntityManager entityManager;
   private final ResourceManagementProperties resourceManagementProperties;
-  private final EnvoyResourceManagement envoyResourceManagement;
+  private final EnvoyIdLookup envoyIdLookup;
+  private final ResourceEventOutbox resourceEventOutbox;
+  private final ResourceEventCoalescer resourceEventCoalescer;
+  private final AttachFingerprintCache attachFingerprintCache;
+  private final LabelIndex labelIndex;
+  private final LabelSelectorResultCache labelSelectorResultCache;
 
   MeterRegistry meterRegistry;
 
   // metrics counters
   private final Counter.Builder resourceManagementSuccess;
+  private final Counter tenantResourcesRemoved;
+  private final Timer tenantRemovalDuration;
 
   @Autowired
   public ResourceManagement(ResourceRepository resourceRepository,
+                            PresenceMonitoredResourceRepository presenceMonitoredResourceRepository,
+                            ResourceSliceRepository resourceSliceRepository,
                             KafkaEgress kafkaEgress,
                             JdbcTemplate jdbcTemplate,
                             EntityManager entityManager,
                             ResourceManagementProperties resourceManagementProperties,
-                            EnvoyResourceManagement envoyResourceManagement,
-                            MeterRegistry meterRegistry) throws IOException {
+                            EnvoyIdLookup envoyIdLookup,
+                            ResourceEventOutbox resourceEventOutbox,
+                            ResourceEventCoalescer resourceEventCoalescer,
+                            AttachFingerprintCache attachFingerprintCache,
+                            LabelIndex labelIndex,
+                            LabelSelectorResultCache labelSelectorResultCache,
+                            LabelSelectorQueryCompiler labelSelectorQueryCompiler,
+                            PlatformTransactionManager transactionManager,
+                            MeterRegistry meterRegistry) {
     this.resourceRepository = resourceRepository;
+    this.presenceMonitoredResourceRepository = presenceMonitoredResourceRepository;
+    this.resourceSliceRepository = resourceSliceRepository;
     this.kafkaEgress = kafkaEgress;
-    this.jdbcTemplate = jdbcTemplate;
+    this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    this.labelSelectorQueryCompiler = labelSelectorQueryCompiler;
     this.entityManager = entityManager;
-    this.envoyResourceManagement = envoyResourceManagement;
+    this.envoyIdLookup = envoyIdLookup;
+    this.resourceEventOutbox = resourceEventOutbox;
+    this.resourceEventCoalescer = resourceEventCoalescer;
+    this.attachFingerprintCache = attachFingerprintCache;
+    this.labelIndex = labelIndex;
+    this.labelSelectorResultCache = labelSelectorResultCache;
     this.resourceManagementProperties = resourceManagementProperties;
-    labelMatchQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_query.sql");
-    labelMatchOrQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_OR_query.sql");
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+    this.readOnlyTransactionTemplate.setReadOnly(true);
 
     this.meterRegistry = meterRegistry;
     resourceManagementSuccess = Counter.builder(MetricNames.SERVICE_OPERATION_SUCCEEDED)
         .tag(MetricTags.SERVICE_METRIC_TAG,"ResourceManagement");
+    tenantResourcesRemoved = Counter.builder("tenant_removal.resources_removed")
+        .register(meterRegistry);
+    tenantRemovalDuration = Timer.builder("tenant_removal.duration")
+        .register(meterRegistry);
 
   }
 
+  /**
+   * Writes the event to the outbox within the current transaction when the outbox is enabled.
+   * Otherwise, the event is sent once the current transaction has committed so that consumers
+   * never observe an event before the change it describes, or for a change that rolled back.
+   */
   private void publishResourceEvent(ResourceEvent event) {
-    kafkaEgress.sendResourceEvent(event);
+    if (resourceManagementProperties.isOutboxEnabled()) {
+      resourceEventOutbox.append(event);
+    } else {
+      afterCommit(() -> resourceEventCoalescer.submit(event));
+    }
+  }
+
+  /**
+   * Publishes the events together, waiting until the broker has acknowledged all of them
+   * when they are sent directly rather than through the outbox. As with
+   * {@link #publishResourceEvent(ResourceEvent)}, direct sends wait for the current transaction
+   * to commit.
+   */
+  private void publishResourceEvents(List<ResourceEvent> events) {
+    if (resourceManagementProperties.isOutboxEnabled()) {
+      events.forEach(resourceEventOutbox::append);
+    } else {
+      afterCommit(() -> sendResourceEvents(events));
+    }
+  }
+
+  private void sendResourceEvents(List<ResourceEvent> events) {
+    // so that these cannot overtake events still waiting to be coalesced
+    resourceEventCoalescer.flush();
+    final CompletableFuture<?>[] sends = events.stream()
+        .map(kafkaEgress::sendResourceEventAsync)
+        .toArray(CompletableFuture[]::new);
+    try {
+      CompletableFuture.allOf(sends).join();
+    } catch (CompletionException e) {
+      // failures have already been logged and counted by the egress
+      if (resourceManagementProperties.isKafkaEgressSynchronous()) {
+        throw new RuntimeKafkaException(e);
+      }
+    }
+  }
+
+  /**
+   * Runs the action once the current transaction has committed, or immediately when there is
+   * no transaction. Since it runs after the commit, an exception thrown by the action is still
+   * raised to the caller, but the change is not rolled back.
+   */
+  private static void afterCommit(Runnable action) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          action.run();
+        }
+      });
+    } else {
+      action.run();
+    }
   }
 
   /**
    * Creates or updates the resource depending on whether the ID already exists.
-   * Also sends a resource event to kafka for consumption by other services.
+   * Also sends a resource event to kafka for consumption by other services, which is written to
+   * the outbox within this transaction when the outbox is enabled, or sent once it has committed
+   * otherwise.
    *
    * @param resource The resource object to create/update in the database.
    * @param labelsChanged
    * @param reattachedEnvoyId
    * @return
    */
+  @Transactional
   public Resource saveAndPublishResource(Resource resource, boolean labelsChanged,
       String reattachedEnvoyId) {
     log.debug("Saving resource: {}", resource);
     resourceRepository.save(resource);
+    attachFingerprintCache.invalidate(resource.getTenantId(), resource.getResourceId());
+    labelIndex.resourceChanged(resource.getTenantId(), resource.getResourceId());
+    labelSelectorResultCache.invalidateTenant(resource.getTenantId());
     publishResourceEvent(
         new ResourceEvent()
             .setTenantId(resource.getTenantId())
@@ -155,12 +294,20 @@ public class ResourceManagement {
     return resourceRepository.findByTenantIdAndResourceId(tenantId, resourceId);
   }
 
-  public ResourceDTO getResourceDTO(String tenantId, String resourceId) {
+  /**
+   * Gets an individual resource by the public facing id and converts it into a DTO.
+   * @param tenantId The tenant owning the resource.
+   * @param resourceId The unique value representing the resource.
+   * @param includeEnvoyId Whether the envoy currently attached to the resource should be looked up.
+   * Callers whose JSON view does not include the envoy ID should pass false to avoid the lookup.
+   * @return The resourceDTO.
+   */
+  public ResourceDTO getResourceDTO(String tenantId, String resourceId, boolean includeEnvoyId) {
     Resource resource = resourceRepository.findByTenantIdAndResourceId(tenantId, resourceId)
         .orElseThrow(() -> new NotFoundException(
             String.format("No resource found for %s on tenant %s", resourceId, tenantId)));
 
-    ResourceDTO resourceDTO = getResourceDTOFromResource(resource);
+    ResourceDTO resourceDTO = getResourceDTOFromResource(resource, includeEnvoyId);
     resourceManagementSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG,"get",MetricTags.OBJECT_TYPE_METRIC_TAG,"resource")
         .register(meterRegistry).increment();
@@ -170,22 +317,85 @@ public class ResourceManagement {
   /**
    * Get a selection of resource objects across all accounts.
    * @param page The slice of results to be returned.
-   * @return The resourceDTOs found that match the page criteria.
+   * @param includeEnvoyId Whether the envoy currently attached to each resource should be looked up.
+   * @return A future of the resourceDTOs found that match the page criteria.
    */
-  public Page<ResourceDTO> getAllResourceDTOs(Pageable page) {
-    return resourceRepository.findAll(page)
-        .map(this::getResourceDTOFromResource);
+  public CompletableFuture<Page<ResourceDTO>> getAllResourceDTOs(Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOsFromResources(resourceRepository.findAll(page), includeEnvoyId);
   }
 
   /**
-   * Same as {@link #getAllResourceDTOs(Pageable page) getAllResourceDTOs} except restricted to a single tenant.
+   * Same as {@link #getAllResourceDTOs(Pageable page, boolean includeEnvoyId) getAllResourceDTOs} except restricted to a single tenant.
    * @param tenantId The tenant to select resources from.
    * @param page The slice of results to be returned.
-   * @return The resources found for the tenant that match the page criteria.
+   * @param includeEnvoyId Whether the envoy currently attached to each resource should be looked up.
+   * @return A future of the resources found for the tenant that match the page criteria.
+   */
+  public CompletableFuture<Page<ResourceDTO>> getResourceDTOs(String tenantId, Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOsFromResources(resourceRepository.findAllByTenantId(tenantId, page), includeEnvoyId);
+  }
+
+  /**
+   * Same as {@link #getResourceDTOs(String, Pageable, boolean)} except the total number of the
+   * tenant's resources is not counted.
    */
-  public Page<ResourceDTO> getResourceDTOs(String tenantId, Pageable page) {
-    return resourceRepository.findAllByTenantId(tenantId, page)
-        .map(this::getResourceDTOFromResource);
+  public CompletableFuture<Slice<ResourceDTO>> getResourceDTOSlice(String tenantId, Pageable page,
+      boolean includeEnvoyId) {
+    return getResourceDTOSliceFromResources(
+        resourceSliceRepository.findAllByTenantId(tenantId, page), includeEnvoyId);
+  }
+
+  /**
+   * Lists resources in ID order continuing from a cursor, which unlike
+   * {@link #getResourceDTOs(String, Pageable, boolean)} costs the same for every page since the
+   * database seeks directly to the cursor's position.
+   * @param tenantId The tenant to select resources from or null to select from all tenants.
+   * @param cursor The cursor returned with the previous page or null for the first page.
+   * @param size The maximum number of resources to return.
+   * @param includeTotal Whether to also count the resources across all pages.
+   * @param includeEnvoyId Whether the envoy currently attached to each resource should be looked up.
+   * @return A future of the page of resources along with the cursor of the next page, if any.
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  public CompletableFuture<CursorPagedContent<ResourceDTO>> getResourceDTOsAfter(String tenantId,
+      String cursor, int size, boolean includeTotal, boolean includeEnvoyId) {
+    final long afterId = CursorPagedContent.decodeCursor(cursor);
+    final String tenantFilter = tenantId != null ? " and r.tenantId = :tenantId" : "";
+
+    final TypedQuery<Resource> query = entityManager.createQuery(
+        "select r from Resource r where r.id > :afterId" + tenantFilter + " order by r.id",
+        Resource.class)
+        .setParameter("afterId", afterId)
+        // one more than requested reveals if there is a next page without counting
+        .setMaxResults(size + 1);
+    if (tenantId != null) {
+      query.setParameter("tenantId", tenantId);
+    }
+    final List<Resource> resources = query.getResultList();
+    final boolean hasNext = resources.size() > size;
+    final List<Resource> content = hasNext ? resources.subList(0, size) : resources;
+
+    final Long totalElements;
+    if (includeTotal) {
+      final TypedQuery<Long> countQuery = entityManager.createQuery(
+          "select count(r) from Resource r"
+              + (tenantId != null ? " where r.tenantId = :tenantId" : ""),
+          Long.class);
+      if (tenantId != null) {
+        countQuery.setParameter("tenantId", tenantId);
+      }
+      totalElements = countQuery.getSingleResult();
+    } else {
+      totalElements = null;
+    }
+
+    final String next = hasNext ?
+        CursorPagedContent.encodeCursor(content.get(content.size() - 1).getId()) : null;
+    return getResourceDTOsFromResources(new PageImpl<>(content), includeEnvoyId)
+        .thenApply(page -> new CursorPagedContent<ResourceDTO>()
+            .setContent(page.getContent())
+            .setNext(next)
+            .setTotalElements(totalElements));
   }
 
   /**
@@ -200,28 +410,68 @@ public class ResourceManagement {
 
   /**
    * Similar to {@link #getResources(boolean presenceMonitoringEnabled) getResources} except restricted to a
-   * single tenant, and returns a list.
+   * single tenant, and returns a page that is selected by the database.
    * @param tenantId The tenant to select resources from.
    * @param presenceMonitoringEnabled Whether presence monitoring is enabled or not.
-   * @param page The slice of results to be returned.
+   * @param page The slice of results to be returned, which is ordered by ID unless otherwise sorted.
    * @return A page or resources matching the given criteria.
    */
   public Page<Resource> getResources(String tenantId, boolean presenceMonitoringEnabled, Pageable page) {
-    List<Resource> resources =
-        resourceRepository.findAllByTenantIdAndPresenceMonitoringEnabled(tenantId, presenceMonitoringEnabled);
+    final Pageable ordered = page.isPaged() && page.getSort().isUnsorted() ?
+        PageRequest.of(page.getPageNumber(), page.getPageSize(), Sort.by("id")) : page;
+    return presenceMonitoredResourceRepository.findByTenantIdAndPresenceMonitoringEnabled(
+        tenantId, presenceMonitoringEnabled, ordered);
+  }
 
-    return new PageImpl<>(resources, page, resources.size());
+  /**
+   * Passes each resource matching the presence monitoring criteria, in ID order, to the consumer
+   * as a DTO, without its envoy ID. The resources are read in keyset batches, each in its own
+   * short read-only transaction within which the batch's DTOs are built, so that all of the
+   * resources are never held in memory at once and no database connection is held while the
+   * consumer runs. Resources are detached once converted in case this is called within a
+   * transaction.
+   * @param presenceMonitoringEnabled Whether presence monitoring is enabled or not.
+   * @param consumer Receives each resource.
+   */
+  public void forEachResourceDTO(boolean presenceMonitoringEnabled,
+                                 Consumer<ResourceDTO> consumer) {
+    final int batchSize = resourceManagementProperties.getResourceBatchSize();
+    long afterId = 0;
+    List<ResourceDTO> batch;
+    do {
+      final long batchAfterId = afterId;
+      batch = readOnlyTransactionTemplate.execute(status -> presenceMonitoredResourceRepository
+          .findByPresenceMonitoringEnabledAndIdGreaterThanOrderByIdAsc(
+              presenceMonitoringEnabled, batchAfterId, PageRequest.of(0, batchSize))
+          .stream()
+          .map(resource -> {
+            // the DTO shares the lazily loaded labels and metadata, so they must be loaded
+            // before the transaction ends
+            Hibernate.initialize(resource.getLabels());
+            Hibernate.initialize(resource.getMetadata());
+            entityManager.detach(resource);
+            return new ResourceDTO(resource, null);
+          })
+          .collect(Collectors.toList()));
+      for (ResourceDTO resource : batch) {
+        consumer.accept(resource);
+        afterId = resource.getId();
+      }
+    } while (batch.size() == batchSize);
   }
 
   /**
    * Create a new resource in the database and publish an event to kafka.
    * @param tenantId The tenant to create the entity for.
    * @param newResource The resource parameters to store.
+   * @param includeEnvoyId Whether the envoy currently attached to the resource should be looked up.
    * @return The newly created resource.
    * @throws IllegalArgumentException
    * @throws AlreadyExistsException
    */
-  public ResourceDTO createResource(String tenantId, @Valid ResourceCreate newResource) throws IllegalArgumentException, AlreadyExistsException {
+  @Transactional
+  public ResourceDTO createResource(String tenantId, @Valid ResourceCreate newResource,
+      boolean includeEnvoyId) throws IllegalArgumentException, AlreadyExistsException {
     if (exists(tenantId, newResource.getResourceId())) {
       throw new AlreadyExistsException(String.format("Resource already exists with identifier %s on tenant %s",
           newResource.getResourceId(), tenantId));
@@ -241,7 +491,7 @@ public class ResourceManagement {
 
     resource = saveAndPublishResource(resource, true, null);
 
-    ResourceDTO resourceDTO = getResourceDTOFromResource(resource);
+    ResourceDTO resourceDTO = getResourceDTOFromResource(resource, includeEnvoyId);
     resourceManagementSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG, MetricTagValues.CREATE_OPERATION,MetricTags.OBJECT_TYPE_METRIC_TAG,"resource")
         .register(meterRegistry).increment();
@@ -253,9 +503,12 @@ public class ResourceManagement {
    * @param tenantId The tenant to create the entity for.
    * @param resourceId The id of the existing resource.
    * @param updatedValues The new resource parameters to store.
+   * @param includeEnvoyId Whether the envoy currently attached to the resource should be looked up.
    * @return The newly updated resource.
    */
-  public ResourceDTO updateResource(String tenantId, String resourceId, @Valid ResourceUpdate updatedValues) {
+  @Transactional
+  public ResourceDTO updateResource(String tenantId, String resourceId,
+      @Valid ResourceUpdate updatedValues, boolean includeEnvoyId) {
     Resource resource = getResource(tenantId, resourceId)
         .orElseThrow(() -> new NotFoundException(String.format("No resource found for %s on tenant %s",
             resourceId, tenantId)));
@@ -284,7 +537,7 @@ public class ResourceManagement {
         .to(resource::setPresenceMonitoringEnabled);
     saveAndPublishResource(resource, true, null);
 
-    ResourceDTO resourceDTO = getResourceDTOFromResource(resource);
+    ResourceDTO resourceDTO = getResourceDTOFromResource(resource, includeEnvoyId);
     resourceManagementSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG,MetricTagValues.UPDATE_OPERATION,MetricTags.OBJECT_TYPE_METRIC_TAG,"resource")
         .register(meterRegistry).increment();
@@ -308,11 +561,15 @@ public class ResourceManagement {
    * @param tenantId The tenant the resource belongs to.
    * @param resourceId The id of the resource.
    */
+  @Transactional
   public void removeResource(String tenantId, String resourceId) {
     Resource resource = getResource(tenantId, resourceId).orElseThrow(() ->
         new NotFoundException(String.format("No resource found for %s on tenant %s", resourceId, tenantId)));
 
     resourceRepository.deleteById(resource.getId());
+    attachFingerprintCache.invalidate(tenantId, resourceId);
+    labelIndex.resourceChanged(tenantId, resourceId);
+    labelSelectorResultCache.invalidateTenant(tenantId);
     publishResourceEvent(
         new ResourceEvent()
             .setTenantId(tenantId)
@@ -330,31 +587,148 @@ public class ResourceManagement {
    *
    * @param attachEvent The event triggered from the Ambassador by any envoy attachment.
    */
+  @Transactional
   public void handleEnvoyAttach(AttachEvent attachEvent) {
     log.debug("Handling Envoy attach: {}", attachEvent);
 
-    String tenantId = attachEvent.getTenantId();
-    String resourceId = attachEvent.getResourceId();
-    Map<String, String> labels = attachEvent.getLabels();
+    applyEnvoyAttaches(Collections.singletonList(attachEvent))
+        .forEach(this::publishResourceEvent);
+  }
 
-    Optional<Resource> existing = getResource(tenantId, resourceId);
+  /**
+   * Same as {@link #handleEnvoyAttach(AttachEvent)} for a batch of attach events, such as a
+   * poll's worth from Kafka. The affected resources are loaded with a single query and the
+   * resulting resource events are published together.
+   *
+   * @param attachEvents The events to handle in the order they were received.
+   */
+  @Transactional
+  public void handleEnvoyAttaches(List<AttachEvent> attachEvents) {
+    log.debug("Handling {} Envoy attaches", attachEvents.size());
 
-    if (existing.isPresent()) {
-      log.debug("Found existing resource related to envoy: {}", existing.get());
+    publishResourceEvents(applyEnvoyAttaches(attachEvents));
+  }
 
-      updateEnvoyLabels(existing.get(), labels, attachEvent.getEnvoyId());
-      log.debug("Found existing resource related to envoy: {}", existing.get());
-    } else {
-      log.debug("No resource found for new envoy attach");
-      Resource newResource = new Resource()
-          .setTenantId(tenantId)
-          .setResourceId(resourceId)
-          .setLabels(labels)
-          .setMetadata(Collections.emptyMap())
-          .setPresenceMonitoringEnabled(true)
-          .setAssociatedWithEnvoy(true);
-      saveAndPublishResource(newResource, true, null);
+  /**
+   * Applies the attach events, in order, to the resources they reference and saves the
+   * resources that changed.
+   * @return the resource events to publish for the changes
+   */
+  private List<ResourceEvent> applyEnvoyAttaches(List<AttachEvent> attachEvents) {
+    // Reattachments with the labels last applied leave the resource unchanged, so those are
+    // answered from the fingerprint cache. Once an attachment of a resource misses, the later
+    // ones for it in this batch must also go to the database since the cache is not yet updated.
+    final Set<String> missedKeys = new HashSet<>();
+    final List<AttachEvent> missed = new ArrayList<>();
+    for (AttachEvent attachEvent : attachEvents) {
+      final String key = resourceKey(attachEvent.getTenantId(), attachEvent.getResourceId());
+      if (missedKeys.contains(key) || !attachFingerprintCache.matches(
+          attachEvent.getTenantId(), attachEvent.getResourceId(), attachEvent.getLabels())) {
+        missedKeys.add(key);
+        missed.add(attachEvent);
+      }
+    }
+
+    final Map<String, Resource> resources = findResourcesForAttaches(missed);
+    final Set<Resource> modified = Collections.newSetFromMap(new IdentityHashMap<>());
+    final List<ResourceEvent> events = new ArrayList<>();
+
+    for (AttachEvent attachEvent : attachEvents) {
+      String tenantId = attachEvent.getTenantId();
+      String resourceId = attachEvent.getResourceId();
+      Map<String, String> labels = attachEvent.getLabels();
+
+      if (!missedKeys.contains(resourceKey(tenantId, resourceId))) {
+        log.debug("Envoy reattached with unchanged labels to tenant={}, resource={}", tenantId, resourceId);
+        events.add(
+            new ResourceEvent()
+                .setTenantId(tenantId)
+                .setResourceId(resourceId)
+                .setReattachedEnvoyId(attachEvent.getEnvoyId())
+        );
+        continue;
+      }
+
+      final Resource existing = resources.get(resourceKey(tenantId, resourceId));
+
+      if (existing != null) {
+        log.debug("Found existing resource related to envoy: {}", existing);
+
+        updateEnvoyLabels(existing, labels, attachEvent.getEnvoyId(), modified, events);
+      } else {
+        log.debug("No resource found for new envoy attach");
+        Resource newResource = new Resource()
+            .setTenantId(tenantId)
+            .setResourceId(resourceId)
+            .setLabels(labels)
+            .setMetadata(Collections.emptyMap())
+            .setPresenceMonitoringEnabled(true)
+            .setAssociatedWithEnvoy(true);
+        // later attaches in the same batch see this as an existing resource
+        resources.put(resourceKey(tenantId, resourceId), newResource);
+        modified.add(newResource);
+        events.add(
+            new ResourceEvent()
+                .setTenantId(tenantId)
+                .setResourceId(resourceId)
+                .setLabelsChanged(true)
+        );
+      }
+      attachFingerprintCache.record(tenantId, resourceId, labels);
     }
+
+    if (!modified.isEmpty()) {
+      log.debug("Saving {} resources due to Envoy attachment", modified.size());
+      resourceRepository.saveAll(modified);
+      modified.forEach(resource ->
+          labelIndex.resourceChanged(resource.getTenantId(), resource.getResourceId()));
+      modified.stream()
+          .map(Resource::getTenantId)
+          .distinct()
+          .forEach(labelSelectorResultCache::invalidateTenant);
+    }
+    return events;
+  }
+
+  /**
+   * Loads the resources referenced by the attach events, along with their labels, in one query.
+   * @return the resources found, keyed by {@link #resourceKey(String, String)}
+   */
+  private Map<String, Resource> findResourcesForAttaches(List<AttachEvent> attachEvents) {
+    final Map<String, Resource> resources = new HashMap<>();
+    if (attachEvents.isEmpty()) {
+      return resources;
+    }
+
+    final Set<String> tenantIds = new HashSet<>();
+    final Set<String> resourceIds = new HashSet<>();
+    final Set<String> keys = new HashSet<>();
+    for (AttachEvent attachEvent : attachEvents) {
+      tenantIds.add(attachEvent.getTenantId());
+      resourceIds.add(attachEvent.getResourceId());
+      keys.add(resourceKey(attachEvent.getTenantId(), attachEvent.getResourceId()));
+    }
+
+    final List<Resource> candidates = entityManager.createQuery(
+        "select distinct r from Resource r left join fetch r.labels"
+            + " where r.tenantId in :tenantIds and r.resourceId in :resourceIds", Resource.class)
+        .setParameter("tenantIds", tenantIds)
+        .setParameter("resourceIds", resourceIds)
+        .getResultList();
+
+    // the query matches every combination of the tenants and resource IDs, so keep only the pairs requested
+    for (Resource resource : candidates) {
+      final String key = resourceKey(resource.getTenantId(), resource.getResourceId());
+      if (keys.contains(key)) {
+        resources.put(key, resource);
+      }
+    }
+    return resources;
+  }
+
+  private static String resourceKey(String tenantId, String resourceId) {
+    // tenant IDs never contain a colon, so this is unambiguous
+    return tenantId + ":" + resourceId;
   }
 
   /**
@@ -362,10 +736,11 @@ public class ResourceManagement {
    * @param existingResource The resource to update.
    * @param envoyLabels The list of labels received from a newly connected envoy.
    * @param envoyId
-   * @return the saved resource, if modified, or the given resource otherwise
+   * @param modified Collects the resource, if modified, to be saved
+   * @param events Collects the resource event, if any, to be published
    */
   private void updateEnvoyLabels(Resource existingResource, Map<String, String> envoyLabels,
-      String envoyId) {
+      String envoyId, Set<Resource> modified, List<ResourceEvent> events) {
     final Map<String, String> oldResourceLabels = existingResource.getLabels();
     // Work with a new map to avoid mutating the labels in-place
     final Map<String, String> resourceLabels = new HashMap<>(oldResourceLabels);
@@ -413,14 +788,14 @@ public class ResourceManagement {
       existingResource.setLabels(resourceLabels);
 
       log.debug("Saving resource due to Envoy attachment: {}", existingResource);
-      resourceRepository.save(existingResource);
+      modified.add(existingResource);
     }
 
     // If labels changed or this is a re-attachment
     if (labelsChanged || reattached) {
       // ...then send a resource changed event
 
-      publishResourceEvent(
+      events.add(
           new ResourceEvent()
               .setTenantId(existingResource.getTenantId())
               .setResourceId(existingResource.getResourceId())
@@ -447,9 +822,10 @@ public class ResourceManagement {
     saveAndPublishResource(resource, false, null);
   }
 
-  public Page<ResourceDTO> getResourceDTOsFromLabels(Map<String, String> labels, String tenantId, LabelSelectorMethod logicalOperation, Pageable page) {
-    return getResourcesFromLabels(labels, tenantId, logicalOperation, page)
-      .map(this::getResourceDTOFromResource);
+  public CompletableFuture<Page<ResourceDTO>> getResourceDTOsFromLabels(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation, Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOsFromResources(
+        getResourcesFromLabels(labels, tenantId, logicalOperation, page), includeEnvoyId);
   }
 
   /**
@@ -464,39 +840,331 @@ public class ResourceManagement {
       return resourceRepository.findAllByTenantId(tenantId, page);
     }
 
-    MapSqlParameterSource paramSource = new MapSqlParameterSource();
-    paramSource.addValue("tenantId", tenantId);//AS r JOIN resource_labels AS rl
-    StringBuilder builder = new StringBuilder();
-    int i = 0;
-    for(Map.Entry<String, String> entry : labels.entrySet()) {
-      if(i > 0) {
-        builder.append(" OR ");
-      }
-      builder.append("(labels = :label").append(i)
-          .append(" AND labels_key = :labelKey").append(i)
-          .append(")");
-      paramSource.addValue("label"+i, entry.getValue());
-      paramSource.addValue("labelKey"+i, entry.getKey());
-      i++;
+    if (page.getSort().isSorted()) {
+      // arbitrary orderings are applied by the repository across all of the matching IDs
+      return resourceRepository.findByIdIn(
+          findAllMatchingIds(labels, tenantId, logicalOperation), page);
+    }
+
+    final long offset = page.isPaged() ? page.getOffset() : 0;
+    final int limit = page.isPaged() ? page.getPageSize() : Integer.MAX_VALUE;
+
+    final List<Long> ids =
+        findMatchingIdsInMemory(labels, tenantId, logicalOperation, page.isUnpaged());
+    if (ids != null) {
+      final List<Long> pageIds = ids.subList(
+          (int) Math.min(offset, ids.size()), (int) Math.min(offset + limit, ids.size()));
+      return new PageImpl<>(findAllInIdOrder(pageIds), page, ids.size());
+    }
+
+    final List<Long> pageIds = findMatchingResourceIds(
+        labels, tenantId, logicalOperation, 0, offset, limit);
+    return PageableExecutionUtils.getPage(findAllInIdOrder(pageIds), page,
+        () -> countResourcesFromLabels(labels, tenantId, logicalOperation));
+  }
+
+  public CompletableFuture<Slice<ResourceDTO>> getResourceDTOSliceFromLabels(
+      Map<String, String> labels, String tenantId, LabelSelectorMethod logicalOperation,
+      Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOSliceFromResources(
+        getResourceSliceFromLabels(labels, tenantId, logicalOperation, page), includeEnvoyId);
+  }
+
+  /**
+   * Same as {@link #getResourcesFromLabels(Map, String, LabelSelectorMethod, Pageable)} except
+   * the total number of matching resources is not counted. Instead, one more ID than the page
+   * size is selected to determine if there is a next page.
+   */
+  public Slice<Resource> getResourceSliceFromLabels(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation, Pageable page) {
+    if (labels == null || labels.isEmpty()) {
+      return resourceSliceRepository.findAllByTenantId(tenantId, page);
+    }
+
+    if (page.getSort().isSorted()) {
+      // arbitrary orderings are applied by the repository across all of the matching IDs
+      return resourceSliceRepository.findByIdIn(
+          findAllMatchingIds(labels, tenantId, logicalOperation), page);
+    }
+
+    final long offset = page.isPaged() ? page.getOffset() : 0;
+    final int limit = page.isPaged() ? page.getPageSize() : Integer.MAX_VALUE;
+    final int limitWithNext = limit == Integer.MAX_VALUE ? limit : limit + 1;
+
+    final List<Long> ids;
+    final List<Long> allIds =
+        findMatchingIdsInMemory(labels, tenantId, logicalOperation, page.isUnpaged());
+    if (allIds != null) {
+      ids = allIds.subList((int) Math.min(offset, allIds.size()),
+          (int) Math.min(offset + limitWithNext, allIds.size()));
+    } else {
+      ids = findMatchingResourceIds(labels, tenantId, logicalOperation, 0, offset, limitWithNext);
+    }
+
+    final boolean hasNext = ids.size() > limit;
+    return new SliceImpl<>(
+        findAllInIdOrder(hasNext ? ids.subList(0, limit) : ids), page, hasNext);
+  }
+
+  /**
+   * Lists the tenant's resources that match the labels in ID order continuing from a cursor.
+   * Unlike {@link #getResourceDTOsFromLabels(Map, String, LabelSelectorMethod, Pageable, boolean)}
+   * each page costs the same no matter how far into the results it is.
+   * @param cursor The cursor returned with the previous page or null for the first page.
+   * @param size The maximum number of resources to return.
+   * @param includeTotal Whether to also count the matching resources across all pages.
+   * @param includeEnvoyId Whether the envoy currently attached to each resource should be looked up.
+   * @return A future of the page of resources along with the cursor of the next page, if any.
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  public CompletableFuture<CursorPagedContent<ResourceDTO>> getResourceDTOsFromLabelsAfter(
+      Map<String, String> labels, String tenantId, LabelSelectorMethod logicalOperation,
+      String cursor, int size, boolean includeTotal, boolean includeEnvoyId) {
+    final long afterId = CursorPagedContent.decodeCursor(cursor);
+
+    // one more than requested reveals if there is a next page without counting
+    final List<Resource> resources =
+        getResourcesFromLabelsAfter(labels, tenantId, logicalOperation, afterId, size + 1);
+    final boolean hasNext = resources.size() > size;
+    final List<Resource> content = hasNext ? resources.subList(0, size) : resources;
+
+    final Long totalElements = includeTotal ?
+        countResourcesFromLabels(labels, tenantId, logicalOperation) : null;
+
+    final String next = hasNext ?
+        CursorPagedContent.encodeCursor(content.get(content.size() - 1).getId()) : null;
+    return getResourceDTOsFromResources(new PageImpl<>(content), includeEnvoyId)
+        .thenApply(page -> new CursorPagedContent<ResourceDTO>()
+            .setContent(page.getContent())
+            .setNext(next)
+            .setTotalElements(totalElements));
+  }
+
+  /**
+   * Keyset variant of {@link #getResourcesFromLabels(Map, String, LabelSelectorMethod, Pageable)}
+   * that returns up to <code>limit</code> matching resources, ordered by ID, whose ID is greater
+   * than <code>afterId</code>. Unlike offset paging, the cost of each call is proportional to
+   * the limit rather than to how deep into the results the caller has gone.
+   * @param afterId the ID of the last resource returned by the previous call or zero to start
+   * @param limit the maximum number of resources to return
+   * @return the next matching resources ordered by ID
+   */
+  public List<Resource> getResourcesFromLabelsAfter(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation, long afterId, int limit) {
+    if (labels == null || labels.isEmpty()) {
+      return entityManager.createQuery(
+          "select r from Resource r where r.tenantId = :tenantId and r.id > :afterId order by r.id",
+          Resource.class)
+          .setParameter("tenantId", tenantId)
+          .setParameter("afterId", afterId)
+          .setMaxResults(limit)
+          .getResultList();
+    }
+
+    final List<Long> ids = findMatchingIdsInMemory(labels, tenantId, logicalOperation, false);
+    if (ids != null) {
+      return findAllInIdOrder(
+          ids.stream()
+              .filter(id -> id > afterId)
+              .limit(limit)
+              .collect(Collectors.toList()));
+    }
+
+    return findAllInIdOrder(
+        findMatchingResourceIds(labels, tenantId, logicalOperation, afterId, 0, limit));
+  }
+
+  /**
+   * Counts the resources of the tenant that match the given labels without loading them.
+   * @return the number of matching resources or all tenant resources if no labels given
+   */
+  public long countResourcesFromLabels(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation) {
+    if (labels == null || labels.isEmpty()) {
+      return entityManager.createQuery(
+          "select count(r) from Resource r where r.tenantId = :tenantId", Long.class)
+          .setParameter("tenantId", tenantId)
+          .getSingleResult();
+    }
+
+    final List<Long> ids = findMatchingIdsInMemory(labels, tenantId, logicalOperation, false);
+    if (ids != null) {
+      return ids.size();
+    }
+
+    final Long count = namedParameterJdbcTemplate.queryForObject(
+        labelSelectorQueryCompiler.countQuery(logicalOperation, labels.size()),
+        labelSelectorQueryCompiler.bind(labels, tenantId, logicalOperation),
+        Long.class);
+    return count != null ? count : 0;
+  }
+
+  /**
+   * Determines if any resource of the tenant matches the given labels, stopping at the first
+   * match without loading it.
+   * @return true if a resource matches or, if no labels given, the tenant has any resources
+   */
+  public boolean existsResourcesFromLabels(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation) {
+    if (labels == null || labels.isEmpty()) {
+      return !entityManager.createQuery(
+          "select r.id from Resource r where r.tenantId = :tenantId", Long.class)
+          .setParameter("tenantId", tenantId)
+          .setMaxResults(1)
+          .getResultList()
+          .isEmpty();
+    }
+
+    final List<Long> ids = findMatchingIdsInMemory(labels, tenantId, logicalOperation, false);
+    if (ids != null) {
+      return !ids.isEmpty();
+    }
+
+    return !findMatchingResourceIds(labels, tenantId, logicalOperation, 0, 0, 1).isEmpty();
+  }
+
+  public CompletableFuture<Page<ResourceDTO>> getResourceDTOsFromLabelExpressions(
+      List<LabelExpression> expressions, String tenantId, LabelSelectorMethod logicalOperation,
+      Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOsFromResources(
+        getResourcesFromLabelExpressions(expressions, tenantId, logicalOperation, page),
+        includeEnvoyId);
+  }
+
+  /**
+   * Selects the tenant's resources with label expressions, which are evaluated by the database
+   * in a single query.
+   * @param expressions the conditions on the resources' labels
+   * @param logicalOperation Whether resources must satisfy all, or at least one, of the expressions
+   * @return the matching resources or all tenant resources if no expressions given
+   * @throws IllegalArgumentException if an expression has the wrong number of values for its
+   * operator
+   */
+  public Page<Resource> getResourcesFromLabelExpressions(List<LabelExpression> expressions,
+      String tenantId, LabelSelectorMethod logicalOperation, Pageable page) {
+    if (expressions == null || expressions.isEmpty()) {
+      return resourceRepository.findAllByTenantId(tenantId, page);
     }
-    NamedParameterJdbcTemplate namedParameterTemplate = new NamedParameterJdbcTemplate(jdbcTemplate.getDataSource());
 
-    String ourQuery;
-    if(logicalOperation.equals(LabelSelectorMethod.AND)) {
-      paramSource.addValue("i", i);
-      ourQuery = labelMatchQuery;
-    }else {
-      ourQuery = labelMatchOrQuery;
+    if (page.getSort().isSorted()) {
+      // arbitrary orderings are applied by the repository across all of the matching IDs
+      return resourceRepository.findByIdIn(
+          findExpressionMatchingIds(expressions, tenantId, logicalOperation, 0, Integer.MAX_VALUE),
+          page);
     }
 
-    final List<Long> resourceIds = namedParameterTemplate.query(String.format(ourQuery, builder.toString()), paramSource,
+    final List<Long> pageIds = findExpressionMatchingIds(expressions, tenantId, logicalOperation,
+        page.isPaged() ? page.getOffset() : 0,
+        page.isPaged() ? page.getPageSize() : Integer.MAX_VALUE);
+    return PageableExecutionUtils.getPage(findAllInIdOrder(pageIds), page,
+        () -> {
+          final Long count = namedParameterJdbcTemplate.queryForObject(
+              labelSelectorQueryCompiler.expressionCountQuery(expressions, logicalOperation),
+              labelSelectorQueryCompiler.bindExpressions(expressions, tenantId),
+              Long.class);
+          return count != null ? count : 0;
+        });
+  }
+
+  private List<Long> findExpressionMatchingIds(List<LabelExpression> expressions, String tenantId,
+      LabelSelectorMethod logicalOperation, long offset, int limit) {
+    final String query =
+        labelSelectorQueryCompiler.expressionMatchQuery(expressions, logicalOperation);
+    final MapSqlParameterSource paramSource = labelSelectorQueryCompiler
+        .bindExpressions(expressions, tenantId)
+        .addValue("afterId", 0)
+        .addValue("offset", offset)
+        .addValue("limit", limit);
+
+    return namedParameterJdbcTemplate.query(query, paramSource,
         (resultSet, rowIndex) -> resultSet.getLong(1)
     );
+  }
+
+  /**
+   * Evaluates several label selectors against the tenant's resources in a single pass over the
+   * tenant's labels, rather than querying the labels once per selector.
+   * @param tenantId The tenant associated to the resources
+   * @param selectors The selectors to evaluate, each with a distinct name
+   * @return the resource IDs matching each selector, in the order of the selectors and keyed by
+   * their names
+   */
+  public Map<String, List<String>> getResourceIdsFromLabelSelectors(String tenantId,
+      List<LabelSelector> selectors) {
+    final Map<String, List<String>> matches = new LinkedHashMap<>();
+    for (LabelSelector selector : selectors) {
+      if (matches.put(selector.getName(), new ArrayList<>()) != null) {
+        throw new IllegalArgumentException(
+            String.format("Label selector name '%s' is used more than once", selector.getName()));
+      }
+    }
 
-    return resourceRepository.findByIdIn(resourceIds, page);
+    final SelectorScan scan = new SelectorScan(selectors, matches);
+    namedParameterJdbcTemplate.query(TENANT_LABELS_BY_RESOURCE_QUERY,
+        Map.of("tenantId", tenantId), scan);
+    scan.finish();
+    return matches;
+  }
+
+  /**
+   * Finds all of the tenant's resources matching the selector when that is cheaper than
+   * selecting only the ones the caller needs in SQL, which is when the label index is enabled,
+   * the selector's result is already cached or the caller needs all of them anyway.
+   * @param allNeeded whether the caller needs all of the matching resources
+   * @return the internal IDs of the matching resources in ascending order or null when they
+   * should be selected in SQL instead
+   */
+  private List<Long> findMatchingIdsInMemory(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation, boolean allNeeded) {
+    if (labelIndex.isEnabled() || allNeeded) {
+      return findAllMatchingIds(labels, tenantId, logicalOperation);
+    }
+    return labelSelectorResultCache.getMatchingIdsIfPresent(tenantId, labels, logicalOperation);
+  }
 
+  /**
+   * @return the internal IDs, in ascending order, of all of the tenant's resources matching the
+   * selector, taken from the selector result cache when possible
+   */
+  private List<Long> findAllMatchingIds(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation) {
+    return labelSelectorResultCache.getMatchingIds(tenantId, labels, logicalOperation, () ->
+        labelIndex.isEnabled() ?
+            labelIndex.findMatchingIds(tenantId, labels, logicalOperation) :
+            findMatchingResourceIds(labels, tenantId, logicalOperation, 0, 0, Integer.MAX_VALUE)
+    );
   }
 
+  private List<Long> findMatchingResourceIds(Map<String, String> labels, String tenantId,
+      LabelSelectorMethod logicalOperation, long afterId, long offset, int limit) {
+    final MapSqlParameterSource paramSource = labelSelectorQueryCompiler
+        .bind(labels, tenantId, logicalOperation)
+        .addValue("afterId", afterId)
+        .addValue("offset", offset)
+        .addValue("limit", limit);
+
+    return namedParameterJdbcTemplate.query(
+        labelSelectorQueryCompiler.matchQuery(logicalOperation, labels.size()),
+        paramSource,
+        (resultSet, rowIndex) -> resultSet.getLong(1)
+    );
+  }
+
+  /**
+   * Loads the resources with the given IDs, preserving the order of the IDs.
+   */
+  private List<Resource> findAllInIdOrder(List<Long> ids) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final Map<Long, Resource> resourcesById = new HashMap<>();
+    resourceRepository.findAllById(ids)
+        .forEach(resource -> resourcesById.put(resource.getId(), resource));
+    return ids.stream()
+        .map(resourcesById::get)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
 
   public MultiValueMap<String, String> getTenantResourceLabels(String tenantId) {
     final List<Map.Entry> distinctLabelTuples = entityManager.createNamedQuery(
@@ -533,38 +1201,220 @@ public class ResourceManagement {
         .collect(Collectors.toList());
   }
 
-  private ResourceDTO getResourceDTOFromResource(Resource resource) {
-    ResourceInfo resourceInfo = envoyResourceManagement.getOne(resource.getTenantId(), resource.getResourceId()).join();
-
+  private ResourceDTO getResourceDTOFromResource(Resource resource, boolean includeEnvoyId) {
+    if (!includeEnvoyId) {
+      return new ResourceDTO(resource, null);
+    }
     return new ResourceDTO(resource,
-        resourceInfo == null ? null : resourceInfo.getEnvoyId());
+        envoyIdLookup.getEnvoyId(resource.getTenantId(), resource.getResourceId()).join());
+  }
+
+  /**
+   * Converts a page of resources into DTOs. The envoy lookups for the resources on the page are
+   * issued concurrently and the returned future completes once they have all completed or the
+   * configured deadline has passed.
+   * @param resources The page of resources to convert.
+   * @param includeEnvoyId Whether the envoy IDs should be looked up at all.
+   * @return A future of a page of DTOs with the same paging details as the given page.
+   */
+  private CompletableFuture<Page<ResourceDTO>> getResourceDTOsFromResources(
+      Page<Resource> resources, boolean includeEnvoyId) {
+    // The DTOs are built up front so the entities are only accessed from the calling thread
+    final Page<ResourceDTO> resourceDTOs = resources.map(resource -> new ResourceDTO(resource, null));
+    return populateEnvoyIds(resources.getContent(), resourceDTOs.getContent(), includeEnvoyId)
+        .thenApply(ignored -> resourceDTOs);
+  }
+
+  private CompletableFuture<Slice<ResourceDTO>> getResourceDTOSliceFromResources(
+      Slice<Resource> resources, boolean includeEnvoyId) {
+    // The DTOs are built up front so the entities are only accessed from the calling thread
+    final Slice<ResourceDTO> resourceDTOs = resources.map(resource -> new ResourceDTO(resource, null));
+    return populateEnvoyIds(resources.getContent(), resourceDTOs.getContent(), includeEnvoyId)
+        .thenApply(ignored -> resourceDTOs);
+  }
+
+  private CompletableFuture<Void> populateEnvoyIds(List<Resource> resources,
+                                                   List<ResourceDTO> resourceDTOs,
+                                                   boolean includeEnvoyId) {
+    if (!includeEnvoyId || resources.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return envoyIdLookup.getEnvoyIds(resources)
+        .thenAccept(envoyIds -> {
+          for (int i = 0; i < resourceDTOs.size(); i++) {
+            resourceDTOs.get(i).setEnvoyId(envoyIds.get(i));
+          }
+        });
   }
 
   public Collection<String> getLabelNamespaces() {
     return LabelNamespaces.getNamespaces();
   }
 
-  public Page<ResourceDTO> getResourcesBySearchString(String tenantId, String searchCriteria, Pageable page) {
-    return resourceRepository.findByTenantIdAndResourceIdContaining(tenantId, searchCriteria, page)
-        .map(this::getResourceDTOFromResource);
+  public CompletableFuture<Page<ResourceDTO>> getResourcesBySearchString(String tenantId, String searchCriteria,
+                                                      Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOsFromResources(
+        resourceRepository.findByTenantIdAndResourceIdContaining(tenantId, searchCriteria, page),
+        includeEnvoyId);
+  }
+
+  /**
+   * Same as {@link #getResourcesBySearchString(String, String, Pageable, boolean)} except the
+   * total number of matching resources is not counted.
+   */
+  public CompletableFuture<Slice<ResourceDTO>> getResourceSliceBySearchString(String tenantId,
+      String searchCriteria, Pageable page, boolean includeEnvoyId) {
+    return getResourceDTOSliceFromResources(
+        resourceSliceRepository.findByTenantIdAndResourceIdContaining(tenantId, searchCriteria, page),
+        includeEnvoyId);
   }
 
+  /**
+   * Deletes all of the tenant's resources. The resources are deleted a chunk at a time, in
+   * order of their internal ID, and each chunk is committed in its own transaction, after which
+   * its delete events are sent together before moving to the next. As a result, the memory used
+   * and the size of each transaction do not depend on the number of resources, and delete events
+   * are only sent for resources whose deletion has committed. When called within an existing
+   * transaction, the chunks instead join it and the events are sent once it commits.
+   * @param tenantId The tenant whose resources are removed.
+   * @param sendEvents Whether a delete event is sent for each removed resource.
+   */
   public void removeAllTenantResources(String tenantId, boolean sendEvents) {
+    final int chunkSize = resourceManagementProperties.getTenantRemovalChunkSize();
+    final long startNanos = System.nanoTime();
+    long removedCount = 0;
+    long afterId = 0;
+
+    List<Long> ids;
+    do {
+      final long chunkAfterId = afterId;
+      ids = transactionTemplate.execute(status ->
+          removeTenantResourcesChunk(tenantId, chunkAfterId, chunkSize, sendEvents));
+      if (ids.isEmpty()) {
+        break;
+      }
 
-    List<Resource> resources = resourceRepository.findAllByTenantId(tenantId);
-    resourceRepository.deleteAllByTenantId(tenantId);
+      afterId = ids.get(ids.size() - 1);
+      removedCount += ids.size();
+      tenantResourcesRemoved.increment(ids.size());
+      log.debug("Removed {} resources so far from tenant={}", removedCount, tenantId);
+    } while (ids.size() == chunkSize);
 
-    if(sendEvents) {
-      resources.forEach(resource ->
-          publishResourceEvent(
-              new ResourceEvent()
-                  .setTenantId(tenantId)
-                  .setResourceId(resource.getResourceId())
-                  .setDeleted(true)
-          ));
-    }
+    attachFingerprintCache.invalidateTenant(tenantId);
+    labelIndex.invalidateTenant(tenantId);
+    labelSelectorResultCache.invalidateTenant(tenantId);
+
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    tenantRemovalDuration.record(elapsedNanos, TimeUnit.NANOSECONDS);
+    log.info("Removed {} resources from tenant={} in {}ms",
+        removedCount, tenantId, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
     resourceManagementSuccess
         .tags(MetricTags.OPERATION_METRIC_TAG,"removeAll",MetricTags.OBJECT_TYPE_METRIC_TAG,"tenantResources")
         .register(meterRegistry).increment();
   }
+
+  /**
+   * Deletes, by ID, up to chunkSize of the tenant's resources that follow afterId and publishes
+   * their delete events, which are sent once the enclosing transaction commits.
+   * @return the IDs of the deleted resources, in order
+   */
+  private List<Long> removeTenantResourcesChunk(String tenantId, long afterId, int chunkSize,
+                                                boolean sendEvents) {
+    final List<Object[]> chunk = entityManager.createQuery(
+        "select r.id, r.resourceId from Resource r"
+            + " where r.tenantId = :tenantId and r.id > :afterId order by r.id", Object[].class)
+        .setParameter("tenantId", tenantId)
+        .setParameter("afterId", afterId)
+        .setMaxResults(chunkSize)
+        .getResultList();
+    if (chunk.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    final List<Long> ids = new ArrayList<>(chunk.size());
+    final List<ResourceEvent> events = new ArrayList<>(chunk.size());
+    for (Object[] row : chunk) {
+      ids.add((Long) row[0]);
+      events.add(new ResourceEvent()
+          .setTenantId(tenantId)
+          .setResourceId((String) row[1])
+          .setDeleted(true));
+    }
+
+    // pending changes are flushed ahead of the statements, which bypass the persistence context,
+    // and any of the deleted entities that were loaded are then detached
+    entityManager.flush();
+    final MapSqlParameterSource params = new MapSqlParameterSource("ids", ids);
+    namedParameterJdbcTemplate.update(DELETE_RESOURCE_LABELS_BY_ID, params);
+    namedParameterJdbcTemplate.update(DELETE_RESOURCES_BY_ID, params);
+    entityManager.clear();
+
+    if (sendEvents) {
+      publishResourceEvents(events);
+    }
+    return ids;
+  }
+
+  /**
+   * Accumulates the labels of one resource at a time from the rows of
+   * {@link #TENANT_LABELS_BY_RESOURCE_QUERY} and records the resource against each selector that
+   * matches it.
+   */
+  private static class SelectorScan implements RowCallbackHandler {
+
+    private final List<LabelSelector> selectors;
+    private final Map<String, List<String>> matches;
+    private long currentId;
+    private String currentResourceId;
+    private final Map<String, String> currentLabels = new HashMap<>();
+
+    SelectorScan(List<LabelSelector> selectors, Map<String, List<String>> matches) {
+      this.selectors = selectors;
+      this.matches = matches;
+    }
+
+    @Override
+    public void processRow(ResultSet resultSet) throws SQLException {
+      final long id = resultSet.getLong(1);
+      if (currentResourceId != null && id != currentId) {
+        finish();
+      }
+      currentId = id;
+      currentResourceId = resultSet.getString(2);
+      final String labelKey = resultSet.getString(3);
+      if (labelKey != null) {
+        currentLabels.put(labelKey, resultSet.getString(4));
+      }
+    }
+
+    void finish() {
+      if (currentResourceId == null) {
+        return;
+      }
+      for (LabelSelector selector : selectors) {
+        if (matchesLabels(currentLabels, selector.getLabels(), selector.getLogicalOperator())) {
+          matches.get(selector.getName()).add(currentResourceId);
+        }
+      }
+      currentResourceId = null;
+      currentLabels.clear();
+    }
+
+    private static boolean matchesLabels(Map<String, String> resourceLabels,
+                                         Map<String, String> selectorLabels,
+                                         LabelSelectorMethod logicalOperation) {
+      if (selectorLabels.isEmpty()) {
+        return true;
+      }
+      final Stream<Entry<String, String>> entries = selectorLabels.entrySet().stream();
+      if (logicalOperation == LabelSelectorMethod.AND) {
+        return entries.allMatch(entry ->
+            Objects.equals(resourceLabels.get(entry.getKey()), entry.getValue()));
+      } else {
+        return entries.anyMatch(entry ->
+            Objects.equals(resourceLabels.get(entry.getKey()), entry.getValue()));
+      }
+    }
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Tracks, for an in-memory view of tenants' resources, a generation per tenant that advances
+ * whenever the tenant's resources change. A view loads the tenant's data after noting the
+ * current generation and only retains it if the generation is unchanged, so that data loaded
+ * concurrently with a change, which may predate it, is not retained.
+ */
+class TenantGenerations {
+
+  private final Map<String, Long> generations = new ConcurrentHashMap<>();
+
+  /**
+   * @return the tenant's current generation, to be compared after loading the tenant's data
+   */
+  long current(String tenantId) {
+    return generations.getOrDefault(tenantId, 0L);
+  }
+
+  /**
+   * Advances the tenant's generation and then applies the change to the view. Within a
+   * transaction, both are deferred until it has committed so that the view is not reloaded
+   * from the data prior to the change.
+   */
+  void changed(String tenantId, Runnable applyChange) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          advance(tenantId, applyChange);
+        }
+      });
+    } else {
+      advance(tenantId, applyChange);
+    }
+  }
+
+  private void advance(String tenantId, Runnable applyChange) {
+    generations.merge(tenantId, 1L, Long::sum);
+    applyChange.run();
+  }
+}
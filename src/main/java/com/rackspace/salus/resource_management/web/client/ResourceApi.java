@@ -16,6 +16,10 @@
 
 package com.rackspace.salus.resource_management.web.client;
 
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
+import com.rackspace.salus.resource_management.web.model.LabelSelectorBatch;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
@@ -35,7 +39,60 @@ public interface ResourceApi {
                                         Map<String, String> labels,
                                         LabelSelectorMethod labelSelector);
 
+  /**
+   * Selects the tenant's resources with label expressions, which support operators beyond exact
+   * label matches.
+   */
+  List<ResourceDTO> getResourcesWithLabelExpressions(String tenantId,
+                                                     List<LabelExpression> expressions,
+                                                     LabelSelectorMethod logicalOperator);
+
+  long countResourcesWithLabels(String tenantId,
+                                Map<String, String> labels,
+                                LabelSelectorMethod labelSelector);
+
+  boolean existsResourcesWithLabels(String tenantId,
+                                    Map<String, String> labels,
+                                    LabelSelectorMethod labelSelector);
+
+  /**
+   * Evaluates several label selectors of one tenant in a single request, or in one request per
+   * {@link LabelSelectorBatch#MAX_SELECTORS} selectors when there are more.
+   * @return the IDs of the resources matching each selector, keyed by the name of the selector
+   */
+  Map<String, List<String>> getResourceIdsWithLabelSelectors(String tenantId,
+                                                             List<LabelSelector> selectors);
+
   List<String> getAllDistinctTenantIds();
 
+  /**
+   * Lists the resources of all tenants one page at a time.
+   * @param cursor the next cursor of the previous page or null for the first page
+   * @param includeTotal whether to also count all of the resources, which costs a further query
+   */
+  CursorPagedContent<ResourceDTO> getAllResourcesByCursor(String cursor, int size,
+                                                          boolean includeTotal);
+
+  /**
+   * Lists the resources of a tenant one page at a time.
+   * @param cursor the next cursor of the previous page or null for the first page
+   * @param includeTotal whether to also count all of the tenant's resources, which costs a
+   * further query
+   */
+  CursorPagedContent<ResourceDTO> getTenantResourcesByCursor(String tenantId, String cursor,
+                                                             int size, boolean includeTotal);
+
+  /**
+   * Lists the resources of a tenant that match the labels one page at a time.
+   * @param cursor the next cursor of the previous page or null for the first page
+   * @param includeTotal whether to also count all of the matching resources, which costs a
+   * further query
+   */
+  CursorPagedContent<ResourceDTO> getResourcesWithLabelsByCursor(String tenantId,
+                                                                 Map<String, String> labels,
+                                                                 LabelSelectorMethod labelSelector,
+                                                                 String cursor, int size,
+                                                                 boolean includeTotal);
+
   ResourceDTO createResource(String tenantId, ResourceCreate create, MultiValueMap<String, String> headers);
 }
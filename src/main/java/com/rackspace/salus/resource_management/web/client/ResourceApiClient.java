@@ -19,6 +19,11 @@ package com.rackspace.salus.resource_management.web.client;
 import static com.rackspace.salus.common.web.RemoteOperations.mapRestClientExceptions;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelExpressionQuery;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
+import com.rackspace.salus.resource_management.web.model.LabelSelectorBatch;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
@@ -26,6 +31,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -79,6 +85,12 @@ public class ResourceApiClient implements ResourceApi {
   private static final ParameterizedTypeReference<List<String>> LIST_OF_STRING =
       new ParameterizedTypeReference<>() {};
 
+  private static final ParameterizedTypeReference<CursorPagedContent<ResourceDTO>> CURSOR_PAGE_OF_RESOURCE =
+      new ParameterizedTypeReference<>() {};
+
+  private static final ParameterizedTypeReference<Map<String, List<String>>> RESOURCE_IDS_BY_SELECTOR =
+      new ParameterizedTypeReference<>() {};
+
   private ObjectMapper objectMapper;
   private final RestTemplate restTemplate;
   private static final String SSEHdr = "data:";
@@ -91,13 +103,8 @@ public class ResourceApiClient implements ResourceApi {
   @Override
   public List<ResourceDTO> getResourcesWithLabels(String tenantId, Map<String, String> labels,
                                                   LabelSelectorMethod labelSelector) {
-    String endpoint = "/api/admin/resources-by-label/{tenantId}/{logicalOperator}";
-    UriComponentsBuilder uriComponentsBuilder = UriComponentsBuilder.fromUriString(endpoint);
-    for (Map.Entry<String, String> e : labels.entrySet()) {
-      uriComponentsBuilder.queryParam(e.getKey(), e.getValue());
-    }
-
-    String uriString = uriComponentsBuilder.buildAndExpand(tenantId, labelSelector).toUriString();
+    String uriString = buildLabelsUri("/api/admin/resources-by-label/{tenantId}/{logicalOperator}",
+        tenantId, labels, labelSelector);
     ResponseEntity<List<ResourceDTO>> resp = restTemplate.exchange(
         uriString,
         HttpMethod.GET,
@@ -108,6 +115,93 @@ public class ResourceApiClient implements ResourceApi {
     return Objects.requireNonNull(resp.getBody());
   }
 
+  @Override
+  public List<ResourceDTO> getResourcesWithLabelExpressions(String tenantId,
+                                                            List<LabelExpression> expressions,
+                                                            LabelSelectorMethod logicalOperator) {
+    String uriString = UriComponentsBuilder
+        .fromUriString("/api/admin/resources-by-label-expressions/{tenantId}")
+        .buildAndExpand(tenantId)
+        .toUriString();
+
+    final LabelExpressionQuery query = new LabelExpressionQuery();
+    query.setExpressions(expressions);
+    query.setLogicalOperator(logicalOperator);
+
+    HttpHeaders reqHeaders = new HttpHeaders();
+    reqHeaders.setContentType(MediaType.APPLICATION_JSON);
+
+    ResponseEntity<List<ResourceDTO>> resp = restTemplate.exchange(
+        uriString,
+        HttpMethod.POST,
+        new HttpEntity<>(query, reqHeaders),
+        LIST_OF_RESOURCE
+    );
+
+    return Objects.requireNonNull(resp.getBody());
+  }
+
+  @Override
+  public long countResourcesWithLabels(String tenantId, Map<String, String> labels,
+                                       LabelSelectorMethod labelSelector) {
+    return Objects.requireNonNull(restTemplate.getForObject(
+        buildLabelsUri("/api/admin/resources-by-label/{tenantId}/{logicalOperator}/count",
+            tenantId, labels, labelSelector),
+        Long.class
+    ));
+  }
+
+  @Override
+  public boolean existsResourcesWithLabels(String tenantId, Map<String, String> labels,
+                                           LabelSelectorMethod labelSelector) {
+    return Objects.requireNonNull(restTemplate.getForObject(
+        buildLabelsUri("/api/admin/resources-by-label/{tenantId}/{logicalOperator}/exists",
+            tenantId, labels, labelSelector),
+        Boolean.class
+    ));
+  }
+
+  private static String buildLabelsUri(String endpoint, String tenantId,
+                                       Map<String, String> labels,
+                                       LabelSelectorMethod labelSelector) {
+    UriComponentsBuilder uriComponentsBuilder = UriComponentsBuilder.fromUriString(endpoint);
+    for (Map.Entry<String, String> e : labels.entrySet()) {
+      uriComponentsBuilder.queryParam(e.getKey(), e.getValue());
+    }
+    return uriComponentsBuilder.buildAndExpand(tenantId, labelSelector).toUriString();
+  }
+
+  @Override
+  public Map<String, List<String>> getResourceIdsWithLabelSelectors(String tenantId,
+                                                                    List<LabelSelector> selectors) {
+    String uriString = UriComponentsBuilder
+        .fromUriString("/api/admin/resources-by-label-selectors/{tenantId}")
+        .buildAndExpand(tenantId)
+        .toUriString();
+
+    HttpHeaders reqHeaders = new HttpHeaders();
+    reqHeaders.setContentType(MediaType.APPLICATION_JSON);
+
+    // the selectors are sent in as many batches as needed to stay within the batch size limit,
+    // where an empty list is still sent once for the API to reject
+    final Map<String, List<String>> matches = new LinkedHashMap<>();
+    for (int i = 0; i < selectors.size() || i == 0; i += LabelSelectorBatch.MAX_SELECTORS) {
+      final LabelSelectorBatch batch = new LabelSelectorBatch();
+      batch.setSelectors(
+          selectors.subList(i, Math.min(i + LabelSelectorBatch.MAX_SELECTORS, selectors.size())));
+
+      ResponseEntity<Map<String, List<String>>> resp = restTemplate.exchange(
+          uriString,
+          HttpMethod.POST,
+          new HttpEntity<>(batch, reqHeaders),
+          RESOURCE_IDS_BY_SELECTOR
+      );
+      matches.putAll(Objects.requireNonNull(resp.getBody()));
+    }
+
+    return matches;
+  }
+
   @Override
   public List<String> getAllDistinctTenantIds() {
     String uriString = UriComponentsBuilder
@@ -125,6 +219,57 @@ public class ResourceApiClient implements ResourceApi {
     return resp.getBody();
   }
 
+  @Override
+  public CursorPagedContent<ResourceDTO> getAllResourcesByCursor(String cursor, int size,
+                                                                 boolean includeTotal) {
+    return getResourcesByCursor(
+        UriComponentsBuilder.fromUriString("/api/admin/resources-by-cursor"),
+        cursor, size, includeTotal);
+  }
+
+  @Override
+  public CursorPagedContent<ResourceDTO> getTenantResourcesByCursor(String tenantId, String cursor,
+                                                                    int size,
+                                                                    boolean includeTotal) {
+    return getResourcesByCursor(
+        UriComponentsBuilder.fromUriString("/api/tenant/{tenantId}/resources-by-cursor")
+            .uriVariables(Map.of("tenantId", tenantId)),
+        cursor, size, includeTotal);
+  }
+
+  @Override
+  public CursorPagedContent<ResourceDTO> getResourcesWithLabelsByCursor(String tenantId,
+                                                                        Map<String, String> labels,
+                                                                        LabelSelectorMethod labelSelector,
+                                                                        String cursor, int size,
+                                                                        boolean includeTotal) {
+    final UriComponentsBuilder uriComponentsBuilder = UriComponentsBuilder
+        .fromUriString("/api/tenant/{tenantId}/resources-by-label/{logicalOperator}/cursor")
+        .uriVariables(Map.of("tenantId", tenantId, "logicalOperator", labelSelector));
+    for (Map.Entry<String, String> e : labels.entrySet()) {
+      uriComponentsBuilder.queryParam(e.getKey(), e.getValue());
+    }
+    return getResourcesByCursor(uriComponentsBuilder, cursor, size, includeTotal);
+  }
+
+  private CursorPagedContent<ResourceDTO> getResourcesByCursor(
+      UriComponentsBuilder uriComponentsBuilder, String cursor, int size, boolean includeTotal) {
+    uriComponentsBuilder.queryParam("size", size);
+    uriComponentsBuilder.queryParam("includeTotal", includeTotal);
+    if (cursor != null) {
+      uriComponentsBuilder.queryParam("cursor", cursor);
+    }
+
+    ResponseEntity<CursorPagedContent<ResourceDTO>> resp = restTemplate.exchange(
+        uriComponentsBuilder.build().toUriString(),
+        HttpMethod.GET,
+        null,
+        CURSOR_PAGE_OF_RESOURCE
+    );
+
+    return Objects.requireNonNull(resp.getBody());
+  }
+
   @Override
   public ResourceDTO createResource(String tenantId, ResourceCreate create, MultiValueMap<String, String> headers) {
     String uriString = UriComponentsBuilder
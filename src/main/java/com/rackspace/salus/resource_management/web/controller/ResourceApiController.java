@@ -17,11 +17,15 @@
 
 package com.rackspace.salus.resource_management.web.controller;
 
+import com.rackspace.salus.resource_management.config.RoleToViewProperties;
 import com.rackspace.salus.resource_management.services.ResourceManagement;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpressionQuery;
+import com.rackspace.salus.resource_management.web.model.LabelSelectorBatch;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.resource_management.web.model.ResourceUpdate;
-import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.resource_management.web.model.SlicedContent;
 import com.rackspace.salus.telemetry.errors.AlreadyExistsException;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
 import com.rackspace.salus.telemetry.model.NotFoundException;
@@ -33,18 +37,24 @@ import io.swagger.annotations.ApiResponses;
 import io.swagger.annotations.Authorization;
 import io.swagger.annotations.AuthorizationScope;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import javax.validation.Valid;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.data.web.SpringDataWebProperties;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -74,34 +84,72 @@ public class ResourceApiController {
   private ResourceManagement resourceManagement;
   private TaskExecutor taskExecutor;
   private final SpringDataWebProperties springDataWebProperties;
+  private final RoleToViewProperties roleToViewProperties;
 
   @Autowired
   public ResourceApiController(ResourceManagement resourceManagement, TaskExecutor taskExecutor,
-                               SpringDataWebProperties springDataWebProperties) {
+                               SpringDataWebProperties springDataWebProperties,
+                               RoleToViewProperties roleToViewProperties) {
     this.resourceManagement = resourceManagement;
     this.taskExecutor = taskExecutor;
     this.springDataWebProperties = springDataWebProperties;
+    this.roleToViewProperties = roleToViewProperties;
+  }
+
+  /**
+   * Determines if the JSON view resolved from the caller's roles will include admin-only fields,
+   * such as the envoy ID, so that the lookup of those fields can be skipped otherwise.
+   * Callers with no authentication or no mapped roles are treated as admin so that a view
+   * which does render the field is never left without it.
+   */
+  private boolean isAdminView() {
+    final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    if (authentication == null) {
+      return true;
+    }
+
+    final List<String> views = authentication.getAuthorities().stream()
+        .map(authority -> roleToViewProperties.getRoleToView().get(authority.getAuthority()))
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+
+    return views.isEmpty() || views.contains(RoleToViewProperties.ADMIN_VIEW);
   }
 
   @GetMapping("/admin/resources")
   @ApiOperation(value = "Gets all Resources irrespective of Tenant")
-  public PagedContent<ResourceDTO> getAll(Pageable pageable) {
-    return PagedContent.fromPage(resourceManagement.getAllResourceDTOs(pageable));
+  public CompletableFuture<PagedContent<ResourceDTO>> getAll(Pageable pageable) {
+    return resourceManagement.getAllResourceDTOs(pageable, isAdminView())
+        .thenApply(PagedContent::fromPage);
+  }
+
+  @GetMapping("/admin/resources-by-cursor")
+  @ApiOperation(value = "Gets all Resources irrespective of Tenant, continuing from a cursor")
+  public CompletableFuture<CursorPagedContent<ResourceDTO>> getAllByCursor(
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) Integer size,
+      @RequestParam(defaultValue = "false") boolean includeTotal) {
+    return resourceManagement.getResourceDTOsAfter(
+        null, cursor, cursorPageSize(size), includeTotal, isAdminView());
   }
 
   @GetMapping("/envoys")
   public SseEmitter getAllWithPresenceMonitoringAsStream() {
     SseEmitter emitter = new SseEmitter();
-    Stream<Resource> resourcesWithEnvoys = resourceManagement.getResources(true);
     taskExecutor.execute(() -> {
-      resourcesWithEnvoys.forEach(r -> {
-        try {
-          emitter.send(new ResourceDTO(r, null));
-        } catch (IOException e) {
-          emitter.completeWithError(e);
-        }
-      });
-      emitter.complete();
+      try {
+        // read in batches, so no database connection is held while a slow client catches up
+        resourceManagement.forEachResourceDTO(true, resource -> {
+          try {
+            emitter.send(resource);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+        emitter.complete();
+      } catch (RuntimeException e) {
+        emitter.completeWithError(e);
+      }
     });
     return emitter;
   }
@@ -110,14 +158,45 @@ public class ResourceApiController {
   @ApiOperation(value = "Gets specific Resource for specific Tenant")
   public ResourceDTO getByResourceId(@PathVariable String tenantId,
       @PathVariable String resourceId) throws NotFoundException {
-    return resourceManagement.getResourceDTO(tenantId, resourceId);
+    return resourceManagement.getResourceDTO(tenantId, resourceId, isAdminView());
   }
 
   @GetMapping("/tenant/{tenantId}/resources")
   @ApiOperation(value = "Gets all Resources for authenticated tenant")
-  public PagedContent<ResourceDTO>  getAllForTenant(@PathVariable String tenantId, Pageable pageable) {
+  public CompletableFuture<PagedContent<ResourceDTO>> getAllForTenant(@PathVariable String tenantId, Pageable pageable) {
+
+    return resourceManagement.getResourceDTOs(tenantId, pageable, isAdminView())
+        .thenApply(PagedContent::fromPage);
+  }
+
+  @GetMapping(value = "/tenant/{tenantId}/resources", params = "slice=true")
+  @ApiOperation(value = "Gets a slice of Resources for authenticated tenant without counting the total")
+  public CompletableFuture<SlicedContent<ResourceDTO>> getSliceForTenant(@PathVariable String tenantId, Pageable pageable) {
+
+    return resourceManagement.getResourceDTOSlice(tenantId, pageable, isAdminView())
+        .thenApply(SlicedContent::fromSlice);
+  }
 
-    return PagedContent.fromPage(resourceManagement.getResourceDTOs(tenantId, pageable));
+  @GetMapping("/tenant/{tenantId}/resources-by-cursor")
+  @ApiOperation(value = "Gets all Resources for authenticated tenant, continuing from a cursor")
+  public CompletableFuture<CursorPagedContent<ResourceDTO>> getAllForTenantByCursor(
+      @PathVariable String tenantId,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) Integer size,
+      @RequestParam(defaultValue = "false") boolean includeTotal) {
+    return resourceManagement.getResourceDTOsAfter(
+        tenantId, cursor, cursorPageSize(size), includeTotal, isAdminView());
+  }
+
+  /**
+   * Applies the same default and maximum to the size of cursor pages as to pageable requests.
+   */
+  private int cursorPageSize(Integer size) {
+    final SpringDataWebProperties.Pageable pageable = springDataWebProperties.getPageable();
+    if (size == null || size < 1) {
+      return pageable.getDefaultPageSize();
+    }
+    return Math.min(size, pageable.getMaxPageSize());
   }
 
   @PostMapping("/tenant/{tenantId}/resources")
@@ -127,7 +206,7 @@ public class ResourceApiController {
   public ResourceDTO create(@PathVariable String tenantId,
       @Valid @RequestBody final ResourceCreate input)
       throws IllegalArgumentException, AlreadyExistsException {
-    return resourceManagement.createResource(tenantId, input);
+    return resourceManagement.createResource(tenantId, input, isAdminView());
   }
 
   @PutMapping("/tenant/{tenantId}/resources/{resourceId}")
@@ -135,7 +214,7 @@ public class ResourceApiController {
   public ResourceDTO update(@PathVariable String tenantId,
       @PathVariable String resourceId,
       @Valid @RequestBody final ResourceUpdate input) throws IllegalArgumentException {
-    return resourceManagement.updateResource(tenantId, resourceId, input);
+    return resourceManagement.updateResource(tenantId, resourceId, input, isAdminView());
   }
 
   @DeleteMapping("/tenant/{tenantId}/resources/{resourceId}")
@@ -148,15 +227,53 @@ public class ResourceApiController {
   }
 
   @GetMapping("/admin/resources-by-label/{tenantId}/{logicalOperator}")
-  public List<ResourceDTO> getAllTenantResourcesWithLabels(@PathVariable String tenantId,
+  public CompletableFuture<List<ResourceDTO>> getAllTenantResourcesWithLabels(@PathVariable String tenantId,
                                                            @RequestParam Map<String, String> labels,
                                                            @PathVariable LabelSelectorMethod logicalOperator) {
     return resourceManagement
-        .getResourceDTOsFromLabels(labels, tenantId, logicalOperator, Pageable.unpaged()).getContent();
+        .getResourceDTOsFromLabels(labels, tenantId, logicalOperator, Pageable.unpaged(), isAdminView())
+        .thenApply(Page::getContent);
+  }
+
+  @GetMapping("/admin/resources-by-label/{tenantId}/{logicalOperator}/count")
+  @ApiOperation("Counts the tenant's Resources that match the labels without retrieving them")
+  public long countTenantResourcesWithLabels(@PathVariable String tenantId,
+                                             @RequestParam Map<String, String> labels,
+                                             @PathVariable LabelSelectorMethod logicalOperator) {
+    return resourceManagement.countResourcesFromLabels(labels, tenantId, logicalOperator);
+  }
+
+  @GetMapping("/admin/resources-by-label/{tenantId}/{logicalOperator}/exists")
+  @ApiOperation("Determines if any of the tenant's Resources match the labels without retrieving them")
+  public boolean existsTenantResourcesWithLabels(@PathVariable String tenantId,
+                                                 @RequestParam Map<String, String> labels,
+                                                 @PathVariable LabelSelectorMethod logicalOperator) {
+    return resourceManagement.existsResourcesFromLabels(labels, tenantId, logicalOperator);
   }
 
   @GetMapping("/tenant/{tenantId}/resources-by-label/{logicalOperator}")
-  public PagedContent<ResourceDTO> getPagedResourcesWithLabels(@PathVariable String tenantId,
+  public CompletableFuture<PagedContent<ResourceDTO>> getPagedResourcesWithLabels(@PathVariable String tenantId,
+      @RequestParam Map<String, String> labels, @PathVariable LabelSelectorMethod logicalOperator,
+                                                          Pageable pageable) {
+
+    // labels is a catch-all for request/query parameters, so need to strip out the pageable parameters
+    final Map<String, String> resourceLabels = new HashMap<>(labels);
+    resourceLabels.remove(springDataWebProperties.getPageable().getSizeParameter());
+    resourceLabels.remove(springDataWebProperties.getPageable().getPageParameter());
+
+    return resourceManagement
+        .getResourceDTOsFromLabels(resourceLabels, tenantId, logicalOperator, pageable, isAdminView())
+        .thenApply(PagedContent::fromPage);
+  }
+
+  /**
+   * Same as {@link #getPagedResourcesWithLabels(String, Map, LabelSelectorMethod, Pageable)}
+   * without counting the total. Slicing is selected by the path, rather than a query parameter,
+   * since every other query parameter is a label to select.
+   */
+  @GetMapping("/tenant/{tenantId}/resources-by-label/{logicalOperator}/slice")
+  @ApiOperation(value = "Gets a slice of the Resources that match the labels without counting the total")
+  public CompletableFuture<SlicedContent<ResourceDTO>> getSlicedResourcesWithLabels(@PathVariable String tenantId,
       @RequestParam Map<String, String> labels, @PathVariable LabelSelectorMethod logicalOperator,
                                                           Pageable pageable) {
 
@@ -165,9 +282,61 @@ public class ResourceApiController {
     resourceLabels.remove(springDataWebProperties.getPageable().getSizeParameter());
     resourceLabels.remove(springDataWebProperties.getPageable().getPageParameter());
 
-    return PagedContent.fromPage(
-        resourceManagement
-            .getResourceDTOsFromLabels(resourceLabels, tenantId, logicalOperator, pageable));
+    return resourceManagement
+        .getResourceDTOSliceFromLabels(resourceLabels, tenantId, logicalOperator, pageable, isAdminView())
+        .thenApply(SlicedContent::fromSlice);
+  }
+
+  /**
+   * Same as {@link #getPagedResourcesWithLabels(String, Map, LabelSelectorMethod, Pageable)}
+   * except continuing from a cursor, like {@link #getAllForTenantByCursor}, so that each page
+   * costs the same to retrieve no matter how far into the results it is.
+   */
+  @GetMapping("/tenant/{tenantId}/resources-by-label/{logicalOperator}/cursor")
+  @ApiOperation(value = "Gets the Resources that match the labels, continuing from a cursor")
+  public CompletableFuture<CursorPagedContent<ResourceDTO>> getResourcesWithLabelsByCursor(
+      @PathVariable String tenantId, @RequestParam Map<String, String> labels,
+      @PathVariable LabelSelectorMethod logicalOperator,
+      @RequestParam(required = false) String cursor,
+      @RequestParam(required = false) Integer size,
+      @RequestParam(defaultValue = "false") boolean includeTotal) {
+
+    // labels is a catch-all for request/query parameters, so need to strip out the cursor parameters
+    final Map<String, String> resourceLabels = new HashMap<>(labels);
+    resourceLabels.remove("cursor");
+    resourceLabels.remove("size");
+    resourceLabels.remove("includeTotal");
+
+    return resourceManagement.getResourceDTOsFromLabelsAfter(resourceLabels, tenantId,
+        logicalOperator, cursor, cursorPageSize(size), includeTotal, isAdminView());
+  }
+
+  @PostMapping("/admin/resources-by-label-expressions/{tenantId}")
+  @ApiOperation("Gets all of the tenant's Resources that match the label expressions")
+  public CompletableFuture<List<ResourceDTO>> getAllTenantResourcesWithLabelExpressions(
+      @PathVariable String tenantId, @Valid @RequestBody final LabelExpressionQuery input) {
+    return resourceManagement
+        .getResourceDTOsFromLabelExpressions(input.getExpressions(), tenantId,
+            input.getLogicalOperator(), Pageable.unpaged(), isAdminView())
+        .thenApply(Page::getContent);
+  }
+
+  @PostMapping("/tenant/{tenantId}/resources-by-label-expressions")
+  @ApiOperation("Gets the Resources that match the label expressions")
+  public CompletableFuture<PagedContent<ResourceDTO>> getPagedResourcesWithLabelExpressions(
+      @PathVariable String tenantId, @Valid @RequestBody final LabelExpressionQuery input,
+      Pageable pageable) {
+    return resourceManagement
+        .getResourceDTOsFromLabelExpressions(input.getExpressions(), tenantId,
+            input.getLogicalOperator(), pageable, isAdminView())
+        .thenApply(PagedContent::fromPage);
+  }
+
+  @PostMapping("/admin/resources-by-label-selectors/{tenantId}")
+  @ApiOperation("Evaluates several label selectors in one pass, returning the IDs of the resources matching each selector by its name")
+  public Map<String, List<String>> getResourceIdsWithLabelSelectors(@PathVariable String tenantId,
+      @Valid @RequestBody final LabelSelectorBatch input) {
+    return resourceManagement.getResourceIdsFromLabelSelectors(tenantId, input.getSelectors());
   }
 
   @GetMapping("/tenant/{tenantId}/resource-labels")
@@ -190,8 +359,16 @@ public class ResourceApiController {
 
   @GetMapping("/tenant/{tenantId}/search")
   @ApiOperation("Find all resources that match the searchCriteria in the ResourceId")
-  public PagedContent<ResourceDTO> getResourcesBySearchString(@PathVariable String tenantId, @RequestParam("q") String searchCriteria, Pageable page) {
-    return PagedContent.fromPage(resourceManagement.getResourcesBySearchString(tenantId, searchCriteria, page));
+  public CompletableFuture<PagedContent<ResourceDTO>> getResourcesBySearchString(@PathVariable String tenantId, @RequestParam("q") String searchCriteria, Pageable page) {
+    return resourceManagement.getResourcesBySearchString(tenantId, searchCriteria, page, isAdminView())
+        .thenApply(PagedContent::fromPage);
+  }
+
+  @GetMapping(value = "/tenant/{tenantId}/search", params = "slice=true")
+  @ApiOperation("Find a slice of resources that match the searchCriteria in the ResourceId without counting the total")
+  public CompletableFuture<SlicedContent<ResourceDTO>> getResourceSliceBySearchString(@PathVariable String tenantId, @RequestParam("q") String searchCriteria, Pageable page) {
+    return resourceManagement.getResourceSliceBySearchString(tenantId, searchCriteria, page, isAdminView())
+        .thenApply(SlicedContent::fromSlice);
   }
 
   @DeleteMapping("/admin/tenant/{tenantId}/resources")
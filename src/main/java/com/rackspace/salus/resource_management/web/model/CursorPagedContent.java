@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.web.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One page of a listing that is continued from an opaque cursor rather than a page number, so
+ * that each page costs the same to retrieve no matter how far into the listing it is.
+ */
+@Data
+@NoArgsConstructor
+public class CursorPagedContent<T> {
+
+  private static final String CURSOR_PREFIX = "id:";
+
+  List<T> content;
+
+  /**
+   * The cursor to pass to retrieve the next page or null if this is the last page
+   */
+  String next;
+
+  /**
+   * The total number of elements across all pages, only populated when requested
+   */
+  Long totalElements;
+
+  /**
+   * @return an opaque cursor that continues a listing after the given resource ID
+   */
+  public static String encodeCursor(long lastId) {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString((CURSOR_PREFIX + lastId).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param cursor a cursor from {@link #encodeCursor(long)}, or null to start a listing
+   * @return the resource ID after which to continue the listing
+   * @throws IllegalArgumentException if the cursor was not produced by {@link #encodeCursor(long)}
+   */
+  public static long decodeCursor(String cursor) {
+    if (cursor == null || cursor.isEmpty()) {
+      return 0;
+    }
+    try {
+      final String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      if (!decoded.startsWith(CURSOR_PREFIX)) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+      return Long.parseLong(decoded.substring(CURSOR_PREFIX.length()));
+    } catch (IllegalArgumentException e) {
+      // covers malformed base64 and, as a subclass, NumberFormatException
+      throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.web.model;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A condition on one label key of a resource. Expressions are combined with a
+ * {@link com.rackspace.salus.telemetry.model.LabelSelectorMethod} to select resources.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LabelExpression implements Serializable {
+
+    /**
+     * The most values an expression may have, like the labels of a {@link LabelSelector}
+     */
+    public static final int MAX_VALUES = LabelSelector.MAX_LABELS;
+
+    public enum Operator {
+        /**
+         * The label has the one given value
+         */
+        EQUALS,
+        /**
+         * The label does not have the one given value, which includes the label being absent
+         */
+        NOT,
+        /**
+         * The label has any one of the given values
+         */
+        IN,
+        /**
+         * The label is present with any value. No values are given.
+         */
+        EXISTS,
+        /**
+         * The label is not present. No values are given.
+         */
+        ABSENT,
+        /**
+         * The label has a value starting with the one given value
+         */
+        PREFIX
+    }
+
+    @NotBlank
+    String key;
+
+    @NotNull
+    Operator operator;
+
+    @Size(max = MAX_VALUES)
+    List<String> values = Collections.emptyList();
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.web.model;
+
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.io.Serializable;
+import java.util.List;
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import lombok.Data;
+
+@Data
+public class LabelExpressionQuery implements Serializable {
+    /**
+     * The most expressions a query may have, like the labels of a {@link LabelSelector}
+     */
+    public static final int MAX_EXPRESSIONS = LabelSelector.MAX_LABELS;
+
+    @NotEmpty
+    @Size(max = MAX_EXPRESSIONS)
+    @Valid
+    List<LabelExpression> expressions;
+
+    @NotNull
+    LabelSelectorMethod logicalOperator = LabelSelectorMethod.AND;
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.web.model;
+
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import lombok.Data;
+
+/**
+ * A label selector that is evaluated along with others, such as when binding all of a tenant's
+ * monitors at once.
+ */
+@Data
+public class LabelSelector implements Serializable {
+    /**
+     * The most labels a selector may have, which is also the most that the
+     * label selector queries are compiled and cached for
+     */
+    public static final int MAX_LABELS = 32;
+
+    /**
+     * Identifies the matches of this selector in the response, such as the ID of the monitor
+     * being bound
+     */
+    @NotBlank
+    String name;
+
+    /**
+     * The labels to match, where no labels matches all of the tenant's resources
+     */
+    @NotNull
+    @Size(max = MAX_LABELS)
+    Map<String,String> labels = Collections.emptyMap();
+
+    @NotNull
+    LabelSelectorMethod logicalOperator = LabelSelectorMethod.AND;
+}
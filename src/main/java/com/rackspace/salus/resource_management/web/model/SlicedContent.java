@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.web.model;
+
+import java.util.List;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.domain.Slice;
+
+/**
+ * The counterpart of {@link com.rackspace.salus.telemetry.model.PagedContent} for a page whose
+ * retrieval skipped counting the total, so it only indicates if there is a next page.
+ */
+@Data
+@NoArgsConstructor
+public class SlicedContent<T> {
+
+  List<T> content;
+
+  int number;
+
+  boolean first;
+
+  boolean hasNext;
+
+  public static <T> SlicedContent<T> fromSlice(Slice<T> slice) {
+    return new SlicedContent<T>()
+        .setContent(slice.getContent())
+        .setNumber(slice.getNumber())
+        .setFirst(slice.isFirst())
+        .setHasNext(slice.hasNext());
+  }
+}
@@ -0,0 +1,12 @@
+-- Creates the table that holds resource events until they are relayed to the resources topic.
+-- No schema tooling applies this, so it must be applied manually, such as with the mysql client,
+-- before enabling salus.resource-management.outbox-enabled. It is safe to apply more than once.
+CREATE TABLE IF NOT EXISTS resource_event_outbox
+(
+    id                BIGINT       NOT NULL AUTO_INCREMENT,
+    tenant_id         VARCHAR(255) NOT NULL,
+    resource_id       VARCHAR(255) NOT NULL,
+    payload           LONGTEXT     NOT NULL,
+    created_timestamp DATETIME(6),
+    PRIMARY KEY (id)
+) ENGINE = InnoDB;
@@ -0,0 +1,4 @@
+SELECT  COUNT(*)
+FROM    resources
+WHERE   resources.tenant_id = :tenantId
+AND     (%s)
\ No newline at end of file
@@ -0,0 +1,7 @@
+SELECT  resources.id as id
+FROM    resources
+WHERE   resources.tenant_id = :tenantId
+AND     resources.id > :afterId
+AND     (%s)
+ORDER BY resources.id
+LIMIT   :limit OFFSET :offset
\ No newline at end of file
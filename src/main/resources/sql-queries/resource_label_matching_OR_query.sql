@@ -1,7 +1,7 @@
 SELECT  resources.id as id
-FROM    resources JOIN resource_labels AS rl
-WHERE   resources.id = rl.id
-AND     resources.tenant_id = :tenantId
+FROM    resources
+WHERE   resources.tenant_id = :tenantId
+AND     resources.id > :afterId
 AND     resources.id IN (
     SELECT      most_inner_rl.id
     FROM        resource_labels AS most_inner_rl
@@ -9,5 +9,5 @@ AND     resources.id IN (
     GROUP BY    most_inner_rl.id
     HAVING COUNT(*) >= 1
    )
-GROUP BY resources.id
-ORDER BY resources.id
\ No newline at end of file
+ORDER BY resources.id
+LIMIT   :limit OFFSET :offset
\ No newline at end of file
@@ -0,0 +1,10 @@
+SELECT  COUNT(*)
+FROM    resources
+WHERE   resources.tenant_id = :tenantId
+AND     resources.id IN (
+    SELECT      most_inner_rl.id
+    FROM        resource_labels AS most_inner_rl
+    WHERE       %s
+    GROUP BY    most_inner_rl.id
+    HAVING COUNT(*) = :i
+   )
\ No newline at end of file
@@ -20,33 +20,53 @@ package com.rackspace.salus.resource_management;
 import static com.rackspace.salus.telemetry.model.LabelNamespaces.AGENT;
 import static com.rackspace.salus.telemetry.model.LabelNamespaces.applyNamespace;
 import static org.hamcrest.Matchers.anEmptyMap;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.Maps;
+import com.rackspace.salus.common.errors.RuntimeKafkaException;
 import com.rackspace.salus.resource_management.config.DatabaseConfig;
 import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.services.AttachFingerprintCache;
+import com.rackspace.salus.resource_management.services.ActiveResources;
+import com.rackspace.salus.resource_management.services.EnvoyIdLookup;
 import com.rackspace.salus.resource_management.services.KafkaEgress;
+import com.rackspace.salus.resource_management.services.LabelIndex;
+import com.rackspace.salus.resource_management.services.LabelSelectorQueryCompiler;
+import com.rackspace.salus.resource_management.services.LabelSelectorResultCache;
+import com.rackspace.salus.resource_management.services.ResourceEventCoalescer;
+import com.rackspace.salus.resource_management.services.ResourceEventOutbox;
 import com.rackspace.salus.resource_management.services.ResourceManagement;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelExpression.Operator;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.resource_management.web.model.ResourceUpdate;
 import com.rackspace.salus.telemetry.entities.Resource;
-import com.rackspace.salus.telemetry.etcd.services.EnvoyResourceManagement;
 import com.rackspace.salus.telemetry.messaging.AttachEvent;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
 import com.rackspace.salus.telemetry.model.LabelNamespaces;
@@ -56,15 +76,19 @@ import com.rackspace.salus.telemetry.model.ResourceInfo;
 import com.rackspace.salus.telemetry.repositories.ResourceRepository;
 import com.rackspace.salus.test.EnableTestContainersDatabase;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -84,8 +108,12 @@ import org.springframework.context.annotation.Import;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.context.transaction.TestTransaction;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import uk.co.jemos.podam.api.PodamFactory;
@@ -95,7 +123,9 @@ import uk.co.jemos.podam.api.PodamFactoryImpl;
 @RunWith(SpringRunner.class)
 @EnableTestContainersDatabase
 @DataJpaTest
-@Import({ResourceManagement.class, ResourceManagementProperties.class, DatabaseConfig.class, EnvoyResourceManagement.class,
+@Import({ResourceManagement.class, ResourceManagementProperties.class, DatabaseConfig.class,
+    EnvoyIdLookup.class, ResourceEventCoalescer.class, AttachFingerprintCache.class,
+    LabelIndex.class, LabelSelectorQueryCompiler.class, LabelSelectorResultCache.class,
     SimpleMeterRegistry.class})
 public class ResourceManagementTest {
 
@@ -112,11 +142,20 @@ public class ResourceManagementTest {
     EntityManager entityManager;
 
     @MockBean
-    EnvoyResourceManagement envoyResourceManagement;
+    ActiveResources activeResources;
 
     @MockBean
     KafkaEgress kafkaEgress;
 
+    @MockBean
+    ResourceEventOutbox resourceEventOutbox;
+
+    @Autowired
+    ResourceManagementProperties resourceManagementProperties;
+
+    @Autowired
+    AttachFingerprintCache attachFingerprintCache;
+
     @Captor
     ArgumentCaptor<ResourceEvent> resourceEventArg;
 
@@ -135,6 +174,11 @@ public class ResourceManagementTest {
 
     @After
     public void tearDown() throws Exception {
+        resourceManagementProperties.setOutboxEnabled(false);
+        resourceManagementProperties.setAttachFingerprintCacheMaxSize(0);
+        resourceManagementProperties.setLabelIndexMaxBytes(0);
+        resourceManagementProperties.setLabelSelectorCacheMaxIds(0);
+        resourceManagementProperties.setResourceBatchSize(500);
         resourceRepository.deleteAll();
     }
 
@@ -150,10 +194,9 @@ public class ResourceManagementTest {
                 .setTenantId(tenantId)
                 .setResourceId(resourceId);
 
-            when(envoyResourceManagement.getOne(tenantId, resourceId))
-                .thenReturn(CompletableFuture.completedFuture(info));
+            givenAttachedEnvoy(info.getEnvoyId());
 
-            resourceManagement.createResource(tenantId, create);
+            resourceManagement.createResource(tenantId, create, true);
         }
     }
 
@@ -162,10 +205,24 @@ public class ResourceManagementTest {
             ResourceCreate create = podamFactory.manufacturePojo(ResourceCreate.class);
             String resourceId = RandomStringUtils.randomAlphanumeric(10);
             create.setResourceId(resourceId);
-            resourceManagement.createResource(tenantId, create);
+            resourceManagement.createResource(tenantId, create, true);
         }
     }
 
+    /**
+     * Stubs etcd as if the given envoy were attached to every resource.
+     */
+    private void givenAttachedEnvoy(String envoyId) {
+        when(activeResources.getEnvoyId(any(), any()))
+            .thenReturn(CompletableFuture.completedFuture(envoyId));
+        when(activeResources.getEnvoyIds(any(), any()))
+            .then(invocation -> {
+                final Set<String> resourceIds = invocation.getArgument(1);
+                return CompletableFuture.completedFuture(resourceIds.stream()
+                    .collect(Collectors.toMap(Function.identity(), resourceId -> envoyId)));
+            });
+    }
+
     @Test
     public void testGetResource() {
         Optional<Resource> r = resourceManagement.getResource(TENANT, RESOURCE_ID);
@@ -186,10 +243,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        ResourceDTO returned = resourceManagement.createResource(tenantId, create);
+        ResourceDTO returned = resourceManagement.createResource(tenantId, create, true);
 
         assertThat(returned.getId(), notNullValue());
         assertThat(returned.getResourceId(), equalTo(create.getResourceId()));
@@ -207,6 +263,21 @@ public class ResourceManagementTest {
         assertTrue(Maps.difference(returned.getLabels(), retrieved.get().getLabels()).areEqual());
     }
 
+    @Test
+    public void testCreateAndUpdateResource_withoutEnvoyId() {
+        ResourceCreate create = podamFactory.manufacturePojo(ResourceCreate.class);
+        create.setResourceId("r-1");
+
+        ResourceDTO created = resourceManagement.createResource("t-1", create, false);
+        assertThat(created.getEnvoyId(), nullValue());
+
+        ResourceDTO updated = resourceManagement.updateResource(
+            "t-1", "r-1", new ResourceUpdate().setMetadata(Map.of("key", "value")), false);
+        assertThat(updated.getEnvoyId(), nullValue());
+
+        verifyNoMoreInteractions(activeResources);
+    }
+
     @Test
     public void testGetAll() {
         Random random = new Random();
@@ -216,11 +287,10 @@ public class ResourceManagementTest {
             .setEnvoyId("e-1")
             .setTenantId(TENANT);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
         Pageable page = PageRequest.of(0, pageSize);
-        Page<ResourceDTO> result = resourceManagement.getAllResourceDTOs(page);
+        Page<ResourceDTO> result = resourceManagement.getAllResourceDTOs(page, true).join();
 
         assertThat(result.getTotalElements(), equalTo(1L));
 
@@ -228,7 +298,7 @@ public class ResourceManagementTest {
         createResources(totalResources - 1);
 
         page = PageRequest.of(0, 10);
-        result = resourceManagement.getAllResourceDTOs(page);
+        result = resourceManagement.getAllResourceDTOs(page, true).join();
 
         assertThat(result.getTotalElements(), equalTo((long) totalResources));
         assertThat(result.getTotalPages(), equalTo((totalResources + pageSize - 1) / pageSize));
@@ -245,23 +315,62 @@ public class ResourceManagementTest {
             .setEnvoyId("e-1")
             .setTenantId(tenantId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
         Pageable page = PageRequest.of(0, pageSize);
-        Page<ResourceDTO> result = resourceManagement.getAllResourceDTOs(page);
+        Page<ResourceDTO> result = resourceManagement.getAllResourceDTOs(page, true).join();
 
         assertThat(result.getTotalElements(), equalTo(1L));
 
         createResourcesForTenant(totalResources , tenantId);
 
         page = PageRequest.of(0, 10);
-        result = resourceManagement.getResourceDTOs(tenantId, page);
+        result = resourceManagement.getResourceDTOs(tenantId, page, true).join();
 
         assertThat(result.getTotalElements(), equalTo((long) totalResources));
         assertThat(result.getTotalPages(), equalTo((totalResources + pageSize - 1) / pageSize));
     }
 
+    @Test
+    public void testGetResourceDTOs_envoyIdsMatchEachResource() {
+        persistResource("t-1", "r-1", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-2", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-3", Collections.emptyMap(), Collections.emptyMap());
+
+        when(activeResources.getEnvoyIds(eq("t-1"), any()))
+            .thenReturn(CompletableFuture.completedFuture(Map.of("r-1", "e-r-1", "r-3", "e-r-3")));
+
+        Page<ResourceDTO> result = resourceManagement.getResourceDTOs(
+            "t-1", PageRequest.of(0, 10, Sort.by("resourceId")), true).join();
+
+        assertThat(result.getTotalElements(), equalTo(3L));
+        assertThat(result.getContent().get(0).getResourceId(), equalTo("r-1"));
+        assertThat(result.getContent().get(0).getEnvoyId(), equalTo("e-r-1"));
+        assertThat(result.getContent().get(1).getResourceId(), equalTo("r-2"));
+        assertThat(result.getContent().get(1).getEnvoyId(), nullValue());
+        assertThat(result.getContent().get(2).getResourceId(), equalTo("r-3"));
+        assertThat(result.getContent().get(2).getEnvoyId(), equalTo("e-r-3"));
+        verify(activeResources).getEnvoyIds("t-1", Set.of("r-1", "r-2", "r-3"));
+    }
+
+    @Test
+    public void testGetResourceDTOs_withoutEnvoyId() {
+        persistResource("t-1", "r-1", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-2", Collections.emptyMap(), Collections.emptyMap());
+
+        Page<ResourceDTO> result = resourceManagement.getResourceDTOs(
+            "t-1", PageRequest.of(0, 10), false).join();
+
+        assertThat(result.getTotalElements(), equalTo(2L));
+        result.forEach(resourceDTO -> assertThat(resourceDTO.getEnvoyId(), nullValue()));
+
+        ResourceDTO resourceDTO = resourceManagement.getResourceDTO("t-1", "r-1", false);
+        assertThat(resourceDTO.getResourceId(), equalTo("r-1"));
+        assertThat(resourceDTO.getEnvoyId(), nullValue());
+
+        verifyNoMoreInteractions(activeResources);
+    }
+
     @Test
     public void testGetResourcesWithPresenceMonitoringAsStream() {
 
@@ -270,9 +379,7 @@ public class ResourceManagementTest {
             .setTenantId("t-1")
             .setResourceId("r-1");
 
-        CompletableFuture<ResourceInfo> envoyInformation = CompletableFuture.completedFuture(info);
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(envoyInformation);
+        givenAttachedEnvoy(info.getEnvoyId());
         int totalResources = 100;
         createResources(totalResources);
         Stream s = resourceManagement.getResources(true);
@@ -305,6 +412,64 @@ public class ResourceManagementTest {
         assertThat(resource.get().getMetadata(), anEmptyMap());
     }
 
+    @Test
+    public void testHandleEnvoyAttaches_batch() {
+        final Map<String, String> envoyLabels =
+            Collections.singletonMap(applyNamespace(AGENT, "os"), "linux");
+        when(kafkaEgress.sendResourceEventAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        resourceManagement.handleEnvoyAttaches(Arrays.asList(
+            new AttachEvent().setTenantId(TENANT).setResourceId(RESOURCE_ID)
+                .setEnvoyId("e-1").setLabels(envoyLabels),
+            new AttachEvent().setTenantId(TENANT).setResourceId("r-new")
+                .setEnvoyId("e-2").setLabels(envoyLabels),
+            // the same envoy re-attaching within the batch
+            new AttachEvent().setTenantId(TENANT).setResourceId("r-new")
+                .setEnvoyId("e-3").setLabels(envoyLabels)
+        ));
+
+        final Resource existing = resourceManagement.getResource(TENANT, RESOURCE_ID).get();
+        assertThat(existing.getLabels(), equalTo(Map.of(
+            "key", "value",
+            applyNamespace(AGENT, "os"), "linux")));
+        assertTrue(existing.isAssociatedWithEnvoy());
+        final Resource created = resourceManagement.getResource(TENANT, "r-new").get();
+        assertThat(created.getLabels(), equalTo(envoyLabels));
+
+        commitTransaction();
+        verify(kafkaEgress, times(3)).sendResourceEventAsync(resourceEventArg.capture());
+        assertThat(resourceEventArg.getAllValues(), contains(
+            new ResourceEvent().setTenantId(TENANT).setResourceId(RESOURCE_ID)
+                .setLabelsChanged(true),
+            new ResourceEvent().setTenantId(TENANT).setResourceId("r-new")
+                .setLabelsChanged(true),
+            new ResourceEvent().setTenantId(TENANT).setResourceId("r-new")
+                .setReattachedEnvoyId("e-3")
+        ));
+        verifyNoMoreInteractions(kafkaEgress);
+    }
+
+    @Test
+    // the fingerprint is only recorded outside of a transaction or once it commits
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testEnvoyAttach_fingerprintMatchSkipsResourceLookup() {
+        resourceManagementProperties.setAttachFingerprintCacheMaxSize(10);
+        final Map<String, String> envoyLabels =
+            Collections.singletonMap(applyNamespace(AGENT, "os"), "linux");
+        // a resource that is not in the database, so a lookup would have created it
+        attachFingerprintCache.record("t-other", "r-cached", envoyLabels);
+
+        resourceManagement.handleEnvoyAttach(
+            new AttachEvent().setTenantId("t-other").setResourceId("r-cached")
+                .setEnvoyId("e-1").setLabels(envoyLabels));
+
+        assertTrue(resourceManagement.getResource("t-other", "r-cached").isEmpty());
+        verify(kafkaEgress).sendResourceEvent(
+            new ResourceEvent().setTenantId("t-other").setResourceId("r-cached")
+                .setReattachedEnvoyId("e-1"));
+    }
+
     @Test
     public void testEnvoyAttachAndQueryByLabels() {
         final Map<String, String> labels = new HashMap<>();
@@ -383,9 +548,7 @@ public class ResourceManagementTest {
             .setResourceId("r-1")
             .setLabels(envoyLabels);
 
-        CompletableFuture<ResourceInfo> envoyInformation = CompletableFuture.completedFuture(info);
-        when(envoyResourceManagement.getOne(any(), any()))
-          .thenReturn(envoyInformation);
+        givenAttachedEnvoy(info.getEnvoyId());
         resourceManagement.handleEnvoyAttach(
             new AttachEvent()
             .setEnvoyAddress("localhost:1234")
@@ -401,6 +564,7 @@ public class ResourceManagementTest {
         assertThat(actualResource.isPresent(), equalTo(true));
         assertThat(actualResource.get().getLabels(), equalTo(envoyLabels));
 
+        commitTransaction();
         verify(kafkaEgress).sendResourceEvent(resourceEventArg.capture());
         assertThat(resourceEventArg.getValue(), equalTo(
             new ResourceEvent()
@@ -464,6 +628,7 @@ public class ResourceManagementTest {
         assertThat(actualResource.get().getLabels(), equalTo(expectedResourceLabels));
         assertThat(actualResource.get().getMetadata(), equalTo(originalMetadata));
 
+        commitTransaction();
         verify(kafkaEgress).sendResourceEvent(resourceEventArg.capture());
         assertThat(resourceEventArg.getValue(), equalTo(
             new ResourceEvent()
@@ -520,6 +685,7 @@ public class ResourceManagementTest {
 
         // ONLY sends ReattachedEnvoyResourceEvent and NOT a resource change event
 
+        commitTransaction();
         verify(kafkaEgress).sendResourceEvent(resourceEventArg.capture());
 
         assertThat(resourceEventArg.getValue(), equalTo(
@@ -540,9 +706,8 @@ public class ResourceManagementTest {
             .setTenantId(TENANT)
             .setResourceId(RESOURCE_ID);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-          .thenReturn(CompletableFuture.completedFuture(info));
-        ResourceDTO resource = resourceManagement.getAllResourceDTOs(PageRequest.of(0, 1)).getContent().get(0);
+        givenAttachedEnvoy(info.getEnvoyId());
+        ResourceDTO resource = resourceManagement.getAllResourceDTOs(PageRequest.of(0, 1), true).join().getContent().get(0);
         Map<String, String> newLabels = new HashMap<>(resource.getLabels());
         newLabels.put("newLabel", "newValue");
         boolean presenceMonitoring = !resource.getPresenceMonitoringEnabled();
@@ -555,13 +720,14 @@ public class ResourceManagementTest {
             newResource = resourceManagement.updateResource(
                     resource.getTenantId(),
                     resource.getResourceId(),
-                    update);
+                    update,
+                    true);
         } catch (Exception e) {
             assertThat(e, nullValue());
             return;
         }
 
-        resource = resourceManagement.getAllResourceDTOs(PageRequest.of(0, 1)).getContent().get(0);
+        resource = resourceManagement.getAllResourceDTOs(PageRequest.of(0, 1), true).join().getContent().get(0);
 
         assertThat(newResource.getEnvoyId(), equalTo("e-1"));
         assertThat(newResource.getLabels(), equalTo(resource.getLabels()));
@@ -601,13 +767,12 @@ public class ResourceManagementTest {
             .setTenantId("t-1")
             .setResourceId("r-1");
 
-        CompletableFuture<ResourceInfo> envoyInformation = CompletableFuture.completedFuture(info);
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(envoyInformation);
+        givenAttachedEnvoy(info.getEnvoyId());
         ResourceDTO newResource = resourceManagement.updateResource(
             resource.getTenantId(),
             resource.getResourceId(),
-            update
+            update,
+            true
         );
 
         Map<String, String> expectedLabels = new HashMap<>();
@@ -632,10 +797,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
 
         Optional<Resource> created = resourceManagement.getResource(tenantId, create.getResourceId());
         assertTrue(created.isPresent());
@@ -650,6 +814,7 @@ public class ResourceManagementTest {
         Optional<Resource> deleted = resourceManagement.getResource(tenantId, create.getResourceId());
         assertTrue(!deleted.isPresent());
 
+        commitTransaction();
         verify(kafkaEgress, times(2)).sendResourceEvent(resourceEventArg.capture());
         // for the create, before the thing be testing
         assertThat(resourceEventArg.getAllValues().get(0), equalTo(
@@ -669,6 +834,22 @@ public class ResourceManagementTest {
         verifyNoMoreInteractions(kafkaEgress);
     }
 
+    @Test
+    public void testRemoveResource_outboxEnabled() {
+        resourceManagementProperties.setOutboxEnabled(true);
+
+        resourceManagement.removeResource(TENANT, RESOURCE_ID);
+
+        assertThat(resourceManagement.getResource(TENANT, RESOURCE_ID).isPresent(), equalTo(false));
+        verify(resourceEventOutbox).append(
+            new ResourceEvent()
+                .setTenantId(TENANT)
+                .setResourceId(RESOURCE_ID)
+                .setDeleted(true)
+        );
+        verifyZeroInteractions(kafkaEgress);
+    }
+
     @Test(expected = NotFoundException.class)
     public void testRemoveNonExistentMonitor() {
         String random = RandomStringUtils.randomAlphanumeric(10);
@@ -695,10 +876,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
         assertEquals(1L, resources.getTotalElements());
@@ -723,11 +903,10 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
-        resourceManagement.createResource(tenantId2, create);
+        resourceManagement.createResource(tenantId, create, true);
+        resourceManagement.createResource(tenantId2, create, true);
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
         assertEquals(1L, resources.getTotalElements()); //make sure we only returned the one value
@@ -751,10 +930,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
-        resourceManagement.createResource(tenantId, create);
-        resourceManagement.createResource(tenantId2, create);
+        givenAttachedEnvoy(info.getEnvoyId());
+        resourceManagement.createResource(tenantId, create, true);
+        resourceManagement.createResource(tenantId2, create, true);
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.OR, Pageable.unpaged());
         assertEquals(1L, resources.getTotalElements()); //make sure we only returned the one value
@@ -779,10 +957,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -812,10 +989,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(matchLabels, tenantId, LabelSelectorMethod.OR, Pageable.unpaged());
@@ -843,10 +1019,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
 
 
 
@@ -858,7 +1033,7 @@ public class ResourceManagementTest {
         create2.setLabels(labels);
         resourceId = RandomStringUtils.randomAlphanumeric(10);
         create2.setResourceId(resourceId);
-        resourceManagement.createResource(tenantId, create2);
+        resourceManagement.createResource(tenantId, create2, true);
 
 
         entityManager.flush();
@@ -882,8 +1057,8 @@ public class ResourceManagementTest {
         ResourceCreate create = podamFactory.manufacturePojo(ResourceCreate.class);
         create.setLabels(Collections.emptyMap());
         String tenantId = RandomStringUtils.randomAlphanumeric(10);
-        resourceManagement.createResource(tenantId, create);
-        resourceManagement.createResource(RandomStringUtils.randomAlphanumeric(10), create);
+        resourceManagement.createResource(tenantId, create, true);
+        resourceManagement.createResource(RandomStringUtils.randomAlphanumeric(10), create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(Collections.emptyMap(), tenantId, LabelSelectorMethod.OR, Pageable.unpaged());
@@ -914,10 +1089,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -945,10 +1119,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
 
@@ -978,10 +1151,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -1012,10 +1184,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.OR, Pageable.unpaged());
@@ -1045,10 +1216,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -1077,10 +1247,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(labels, tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -1104,10 +1273,9 @@ public class ResourceManagementTest {
             .setTenantId(tenantId)
             .setResourceId(resourceId);
 
-        when(envoyResourceManagement.getOne(any(), any()))
-            .thenReturn(CompletableFuture.completedFuture(info));
+        givenAttachedEnvoy(info.getEnvoyId());
 
-        resourceManagement.createResource(tenantId, create);
+        resourceManagement.createResource(tenantId, create, true);
         entityManager.flush();
 
         Page<Resource> resources = resourceManagement.getResourcesFromLabels(Collections.emptyMap(), tenantId, LabelSelectorMethod.AND, Pageable.unpaged());
@@ -1144,11 +1312,356 @@ public class ResourceManagementTest {
         assertThat(resources.getContent().get(0).getTenantId(), equalTo("testGetResourcesFromLabels_multipleMatches"));
     }
 
+    @Test
+    public void testGetResourcesFromLabels_paged() {
+        for (int i = 0; i < 5; i++) {
+            persistResource("t-paged", "r-" + i, Map.of("os", "linux"), Collections.emptyMap());
+        }
+        persistResource("t-paged", "r-other", Map.of("os", "windows"), Collections.emptyMap());
+        entityManager.flush();
+
+        final Page<Resource> page = resourceManagement.getResourcesFromLabels(
+            Map.of("os", "linux"), "t-paged", LabelSelectorMethod.AND, PageRequest.of(1, 2));
+
+        assertThat(page.getTotalElements(), equalTo(5L));
+        assertThat(page.getTotalPages(), equalTo(3));
+        assertThat(page.getContent().stream().map(Resource::getResourceId)
+            .collect(Collectors.toList()), contains("r-2", "r-3"));
+
+        final Page<Resource> lastPage = resourceManagement.getResourcesFromLabels(
+            Map.of("os", "linux"), "t-paged", LabelSelectorMethod.OR, PageRequest.of(2, 2));
+
+        assertThat(lastPage.getTotalElements(), equalTo(5L));
+        assertThat(lastPage.getContent().stream().map(Resource::getResourceId)
+            .collect(Collectors.toList()), contains("r-4"));
+    }
+
+    @Test
+    public void testGetResourceSliceFromLabels() {
+        for (int i = 0; i < 5; i++) {
+            persistResource("t-sliced", "r-" + i, Map.of("os", "linux"), Collections.emptyMap());
+        }
+        persistResource("t-sliced", "r-other", Map.of("os", "windows"), Collections.emptyMap());
+        entityManager.flush();
+
+        final Slice<Resource> slice = resourceManagement.getResourceSliceFromLabels(
+            Map.of("os", "linux"), "t-sliced", LabelSelectorMethod.AND, PageRequest.of(1, 2));
+
+        assertThat(slice.hasNext(), equalTo(true));
+        assertThat(slice.getContent().stream().map(Resource::getResourceId)
+            .collect(Collectors.toList()), contains("r-2", "r-3"));
+
+        final Slice<Resource> lastSlice = resourceManagement.getResourceSliceFromLabels(
+            Map.of("os", "linux"), "t-sliced", LabelSelectorMethod.OR, PageRequest.of(2, 2));
+
+        assertThat(lastSlice.hasNext(), equalTo(false));
+        assertThat(lastSlice.getContent().stream().map(Resource::getResourceId)
+            .collect(Collectors.toList()), contains("r-4"));
+
+        final Slice<Resource> tenantSlice = resourceManagement.getResourceSliceFromLabels(
+            Collections.emptyMap(), "t-sliced", LabelSelectorMethod.AND, PageRequest.of(2, 2));
+
+        assertThat(tenantSlice.hasNext(), equalTo(false));
+        assertThat(tenantSlice.getContent(), hasSize(2));
+    }
+
+    @Test
+    public void testGetResourcesFromLabelsAfter() {
+        for (int i = 0; i < 5; i++) {
+            persistResource("t-keyset", "r-" + i, Map.of("os", "linux"), Collections.emptyMap());
+        }
+        entityManager.flush();
+
+        final List<String> resourceIds = new ArrayList<>();
+        long afterId = 0;
+        List<Resource> batch;
+        do {
+            batch = resourceManagement.getResourcesFromLabelsAfter(
+                Map.of("os", "linux"), "t-keyset", LabelSelectorMethod.AND, afterId, 2);
+            assertThat(batch.size(), lessThanOrEqualTo(2));
+            for (Resource resource : batch) {
+                resourceIds.add(resource.getResourceId());
+                afterId = resource.getId();
+            }
+        } while (!batch.isEmpty());
+
+        assertThat(resourceIds, contains("r-0", "r-1", "r-2", "r-3", "r-4"));
+        assertThat(resourceManagement.countResourcesFromLabels(
+            Map.of("os", "linux"), "t-keyset", LabelSelectorMethod.AND), equalTo(5L));
+    }
+
+    @Test
+    public void testGetResourceDTOsFromLabelsAfter() {
+        for (int i = 0; i < 5; i++) {
+            persistResource("t-keyset", "r-" + i, Map.of("os", "linux"), Collections.emptyMap());
+        }
+        persistResource("t-keyset", "r-windows", Map.of("os", "windows"), Collections.emptyMap());
+        entityManager.flush();
+
+        final List<String> resourceIds = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final CursorPagedContent<ResourceDTO> page = resourceManagement
+                .getResourceDTOsFromLabelsAfter(Map.of("os", "linux"), "t-keyset",
+                    LabelSelectorMethod.AND, cursor, 2, pages == 0, false).join();
+            assertThat(page.getTotalElements(), pages == 0 ? equalTo(5L) : nullValue());
+            page.getContent().forEach(resource -> resourceIds.add(resource.getResourceId()));
+            cursor = page.getNext();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages, equalTo(3));
+        assertThat(resourceIds, contains("r-0", "r-1", "r-2", "r-3", "r-4"));
+    }
+
+    @Test
+    public void testGetResourcesFromLabels_indexMatchesSql() {
+        final List<Map<String, String>> labelSets = List.of(
+            Map.of("os", "linux", "env", "prod"),
+            Map.of("os", "linux", "env", "dev"),
+            Map.of("os", "windows", "env", "prod"),
+            Map.of("os", "linux"),
+            Map.of("env", "prod", "region", "east"),
+            Map.of()
+        );
+        for (int i = 0; i < labelSets.size(); i++) {
+            persistResource("t-index", "r-" + i, labelSets.get(i), Collections.emptyMap());
+        }
+        persistResource("t-other", "r-0", labelSets.get(0), Collections.emptyMap());
+        entityManager.flush();
+
+        final List<Map<String, String>> selectors = List.of(
+            Map.of("os", "linux"),
+            Map.of("os", "linux", "env", "prod"),
+            Map.of("env", "prod", "region", "east"),
+            Map.of("os", "linux", "env", "qa"),
+            Map.of("os", "macos")
+        );
+        for (LabelSelectorMethod method : LabelSelectorMethod.values()) {
+            for (Map<String, String> selector : selectors) {
+                resourceManagementProperties.setLabelIndexMaxBytes(0);
+                final Set<String> fromSql = resourceManagement
+                    .getResourcesFromLabels(selector, "t-index", method, Pageable.unpaged())
+                    .getContent().stream()
+                    .map(Resource::getResourceId)
+                    .collect(Collectors.toSet());
+
+                resourceManagementProperties.setLabelIndexMaxBytes(1_000_000);
+                final Set<String> fromIndex = resourceManagement
+                    .getResourcesFromLabels(selector, "t-index", method, Pageable.unpaged())
+                    .getContent().stream()
+                    .map(Resource::getResourceId)
+                    .collect(Collectors.toSet());
+
+                assertThat(method + " " + selector, fromIndex, equalTo(fromSql));
+            }
+        }
+    }
+
+    @Test
+    // cached results are only invalidated outside of a transaction or once it commits
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testGetResourcesFromLabels_cachedUntilTenantChanges() {
+        resourceManagementProperties.setLabelSelectorCacheMaxIds(10);
+        final Map<String, String> selector = Map.of("os", "linux");
+
+        final ResourceCreate first = new ResourceCreate();
+        first.setResourceId("r-1");
+        first.setLabels(selector);
+        first.setPresenceMonitoringEnabled(true);
+        resourceManagement.createResource("t-cached", first, true);
+
+        assertThat(resourceManagement.getResourcesFromLabels(
+            selector, "t-cached", LabelSelectorMethod.AND, Pageable.unpaged())
+            .getTotalElements(), equalTo(1L));
+        assertThat(resourceManagement.getResourcesFromLabels(
+            selector, "t-cached", LabelSelectorMethod.AND, Pageable.unpaged())
+            .getTotalElements(), equalTo(1L));
+
+        final ResourceCreate second = new ResourceCreate();
+        second.setResourceId("r-2");
+        second.setLabels(selector);
+        second.setPresenceMonitoringEnabled(true);
+        resourceManagement.createResource("t-cached", second, true);
+
+        assertThat(resourceManagement.getResourcesFromLabels(
+            selector, "t-cached", LabelSelectorMethod.AND, Pageable.unpaged())
+            .getTotalElements(), equalTo(2L));
+        // answered from the cached result
+        assertThat(resourceManagement.getResourcesFromLabels(
+            selector, "t-cached", LabelSelectorMethod.AND, PageRequest.of(0, 1))
+            .getTotalElements(), equalTo(2L));
+        assertThat(resourceManagement.countResourcesFromLabels(
+            selector, "t-cached", LabelSelectorMethod.AND), equalTo(2L));
+    }
+
+    @Test
+    public void testGetResourceDTOsAfter() {
+        for (int i = 0; i < 5; i++) {
+            persistResource("t-cursor", "r-" + i, Map.of(), Collections.emptyMap());
+        }
+        persistResource("t-other", "r-other", Map.of(), Collections.emptyMap());
+        entityManager.flush();
+
+        final List<String> resourceIds = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final CursorPagedContent<ResourceDTO> page = resourceManagement
+                .getResourceDTOsAfter("t-cursor", cursor, 2, pages == 0, false).join();
+            assertThat(page.getTotalElements(), pages == 0 ? equalTo(5L) : nullValue());
+            page.getContent().forEach(resource -> resourceIds.add(resource.getResourceId()));
+            cursor = page.getNext();
+            pages++;
+        } while (cursor != null);
+
+        assertThat(pages, equalTo(3));
+        assertThat(resourceIds, contains("r-0", "r-1", "r-2", "r-3", "r-4"));
+
+        final CursorPagedContent<ResourceDTO> allTenants = resourceManagement
+            .getResourceDTOsAfter(null, null, 10, true, false).join();
+        assertThat(allTenants.getContent(), hasSize(6));
+        assertThat(allTenants.getNext(), nullValue());
+        assertThat(allTenants.getTotalElements(), equalTo(6L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetResourceDTOsAfter_invalidCursor() {
+        resourceManagement.getResourceDTOsAfter("t-cursor", "not-a-cursor", 10, false, false);
+    }
+
+    @Test
+    public void testGetResourcesFromLabelExpressions() {
+        persistResource("t-expr", "r-0", Map.of("os", "linux", "env", "prod"), Collections.emptyMap());
+        persistResource("t-expr", "r-1", Map.of("os", "linux", "env", "dev"), Collections.emptyMap());
+        persistResource("t-expr", "r-2", Map.of("os", "windows", "host", "web_1"), Collections.emptyMap());
+        persistResource("t-expr", "r-3", Map.of("host", "web01"), Collections.emptyMap());
+        persistResource("t-other", "r-0", Map.of("os", "linux", "env", "prod"), Collections.emptyMap());
+        entityManager.flush();
+
+        assertThat(selectByExpressions(LabelSelectorMethod.AND,
+            new LabelExpression("os", Operator.NOT, List.of("windows"))),
+            contains("r-0", "r-1", "r-3"));
+        assertThat(selectByExpressions(LabelSelectorMethod.AND,
+            new LabelExpression("env", Operator.IN, List.of("prod", "dev")),
+            new LabelExpression("os", Operator.EQUALS, List.of("linux"))),
+            contains("r-0", "r-1"));
+        assertThat(selectByExpressions(LabelSelectorMethod.AND,
+            new LabelExpression("env", Operator.EXISTS, List.of()),
+            new LabelExpression("host", Operator.ABSENT, List.of())),
+            contains("r-0", "r-1"));
+        assertThat(selectByExpressions(LabelSelectorMethod.AND,
+            new LabelExpression("host", Operator.PREFIX, List.of("web_"))),
+            contains("r-2"));
+        assertThat(selectByExpressions(LabelSelectorMethod.OR,
+            new LabelExpression("env", Operator.EQUALS, List.of("dev")),
+            new LabelExpression("os", Operator.ABSENT, List.of())),
+            contains("r-1", "r-3"));
+
+        final Page<Resource> page = resourceManagement.getResourcesFromLabelExpressions(
+            List.of(new LabelExpression("host", Operator.ABSENT, List.of())),
+            "t-expr", LabelSelectorMethod.AND, PageRequest.of(1, 1));
+        assertThat(page.getTotalElements(), equalTo(2L));
+        assertThat(page.getContent().get(0).getResourceId(), equalTo("r-1"));
+    }
+
+    private List<String> selectByExpressions(LabelSelectorMethod logicalOperation,
+                                             LabelExpression... expressions) {
+        return resourceManagement.getResourcesFromLabelExpressions(
+            List.of(expressions), "t-expr", logicalOperation, Pageable.unpaged())
+            .getContent().stream()
+            .map(Resource::getResourceId)
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testCountAndExistsResourcesFromLabels() {
+        persistResource("t-count", "r-1", Map.of("os", "linux", "env", "prod"), Collections.emptyMap());
+        persistResource("t-count", "r-2", Map.of("os", "linux"), Collections.emptyMap());
+        persistResource("t-count", "r-3", Map.of(), Collections.emptyMap());
+        persistResource("t-other", "r-1", Map.of("os", "linux"), Collections.emptyMap());
+        entityManager.flush();
+
+        assertThat(resourceManagement.countResourcesFromLabels(
+            Map.of("os", "linux"), "t-count", LabelSelectorMethod.AND), equalTo(2L));
+        assertThat(resourceManagement.countResourcesFromLabels(
+            Map.of("os", "linux", "env", "prod"), "t-count", LabelSelectorMethod.AND), equalTo(1L));
+        assertThat(resourceManagement.countResourcesFromLabels(
+            Map.of("os", "windows"), "t-count", LabelSelectorMethod.OR), equalTo(0L));
+        assertThat(resourceManagement.countResourcesFromLabels(
+            Collections.emptyMap(), "t-count", LabelSelectorMethod.AND), equalTo(3L));
+
+        assertTrue(resourceManagement.existsResourcesFromLabels(
+            Map.of("env", "prod"), "t-count", LabelSelectorMethod.AND));
+        assertFalse(resourceManagement.existsResourcesFromLabels(
+            Map.of("env", "dev"), "t-count", LabelSelectorMethod.AND));
+        assertTrue(resourceManagement.existsResourcesFromLabels(
+            Collections.emptyMap(), "t-count", LabelSelectorMethod.AND));
+        assertFalse(resourceManagement.existsResourcesFromLabels(
+            Collections.emptyMap(), "t-none", LabelSelectorMethod.AND));
+    }
+
+    @Test
+    public void testGetResourceIdsFromLabelSelectors_matchesSingleSelectors() {
+        final List<Map<String, String>> labelSets = List.of(
+            Map.of("os", "linux", "env", "prod"),
+            Map.of("os", "linux", "env", "dev"),
+            Map.of("os", "windows", "env", "prod"),
+            Map.of()
+        );
+        for (int i = 0; i < labelSets.size(); i++) {
+            persistResource("t-selectors", "r-" + i, labelSets.get(i), Collections.emptyMap());
+        }
+        persistResource("t-other", "r-0", labelSets.get(0), Collections.emptyMap());
+        entityManager.flush();
+
+        final List<LabelSelector> selectors = new ArrayList<>();
+        final List<Map<String, String>> selectorLabels = List.of(
+            Map.of("os", "linux"),
+            Map.of("os", "linux", "env", "prod"),
+            Map.of("os", "macos"),
+            Map.of()
+        );
+        for (LabelSelectorMethod method : LabelSelectorMethod.values()) {
+            for (Map<String, String> labels : selectorLabels) {
+                final LabelSelector selector = new LabelSelector();
+                selector.setName(method + "-" + selectors.size());
+                selector.setLabels(labels);
+                selector.setLogicalOperator(method);
+                selectors.add(selector);
+            }
+        }
+
+        final Map<String, List<String>> matches =
+            resourceManagement.getResourceIdsFromLabelSelectors("t-selectors", selectors);
+
+        assertThat(new ArrayList<>(matches.keySet()), equalTo(
+            selectors.stream().map(LabelSelector::getName).collect(Collectors.toList())));
+        for (LabelSelector selector : selectors) {
+            final Set<String> expected = resourceManagement.getResourcesFromLabels(
+                selector.getLabels(), "t-selectors", selector.getLogicalOperator(), Pageable.unpaged())
+                .getContent().stream()
+                .map(Resource::getResourceId)
+                .collect(Collectors.toSet());
+            assertThat(selector.getName(), new HashSet<>(matches.get(selector.getName())),
+                equalTo(expected));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetResourceIdsFromLabelSelectors_duplicateNames() {
+        final LabelSelector selector = new LabelSelector();
+        selector.setName("m-1");
+
+        resourceManagement.getResourceIdsFromLabelSelectors("t-1", List.of(selector, selector));
+    }
+
   @Test(expected = IllegalArgumentException.class)
   public void testUserLabelConflictsWithSystemNamespace() {
     final ResourceUpdate update = new ResourceUpdate()
         .setLabels(Collections.singletonMap(LabelNamespaces.EVENT_ENGINE_TAGS + "_account", "HackedAccount"));
-    resourceManagement.updateResource(TENANT, RESOURCE_ID, update);
+    resourceManagement.updateResource(TENANT, RESOURCE_ID, update, true);
   }
 
     @Test
@@ -1238,10 +1751,9 @@ public class ResourceManagementTest {
           .setTenantId("t-1")
           .setResourceId("resourceIdDoesntMatter");
 
-      when(envoyResourceManagement.getOne(any(), any()))
-          .thenReturn(CompletableFuture.completedFuture(info));
+      givenAttachedEnvoy(info.getEnvoyId());
 
-      Page<ResourceDTO> resources = resourceManagement.getResourcesBySearchString("t-1", "in", page);
+      Page<ResourceDTO> resources = resourceManagement.getResourcesBySearchString("t-1", "in", page, true).join();
       //Need to make sure we test the paging query so make sure the total number of elements is what we expect to find.
       assertThat(resources.getTotalElements(), equalTo(2L));
       assertThat(resources.getTotalPages(), equalTo(2));
@@ -1249,6 +1761,50 @@ public class ResourceManagementTest {
       assertThat(resources.get().findFirst().get().getResourceId(), equalTo(resource.get().getResourceId()));
     }
 
+    @Test
+    public void testGetResources_presenceMonitoringPaged() {
+      for (int i = 0; i < 5; i++) {
+        persistResource("t-presence", "r-" + i, Collections.emptyMap(), Collections.emptyMap());
+      }
+      entityManager.persist(new Resource().setTenantId("t-presence").setResourceId("r-disabled")
+          .setLabels(Collections.emptyMap()).setMetadata(Collections.emptyMap())
+          .setPresenceMonitoringEnabled(false));
+      persistResource("t-other", "r-0", Collections.emptyMap(), Collections.emptyMap());
+      entityManager.flush();
+
+      final Page<Resource> page = resourceManagement.getResources("t-presence", true, PageRequest.of(1, 2));
+
+      assertThat(page.getTotalElements(), equalTo(5L));
+      assertThat(page.getContent().stream().map(Resource::getResourceId)
+          .collect(Collectors.toList()), contains("r-2", "r-3"));
+      assertThat(resourceManagement.getResources("t-presence", false, Pageable.unpaged())
+          .getContent().get(0).getResourceId(), equalTo("r-disabled"));
+    }
+
+    @Test
+    public void testForEachResourceDTO() {
+      // so that the resources are read across more than one batch
+      resourceManagementProperties.setResourceBatchSize(2);
+      for (int i = 0; i < 3; i++) {
+        persistResource("t-presence", "r-" + i, Map.of("os", "linux"), Map.of("owner", "ops"));
+      }
+      persistResource("t-other", "r-3", Map.of("os", "linux"), Map.of("owner", "ops"));
+      entityManager.flush();
+
+      final List<ResourceDTO> resources = new ArrayList<>();
+      resourceManagement.forEachResourceDTO(true, resources::add);
+
+      assertThat(resources.stream().map(ResourceDTO::getResourceId).collect(Collectors.toList()),
+          hasItems("r-0", "r-1", "r-2", "r-3"));
+      assertThat(resources.stream().map(ResourceDTO::getTenantId).collect(Collectors.toSet()),
+          hasItems("t-presence", "t-other"));
+      // the lazily loaded collections were read while building the DTOs
+      for (ResourceDTO resource : resources) {
+        assertThat(resource.getLabels(), equalTo(Map.of("os", "linux")));
+        assertThat(resource.getMetadata(), equalTo(Map.of("owner", "ops")));
+      }
+    }
+
     @Test
     public void testRemoveAllTenantResources() {
       persistResource("t-1", "ping", Collections.emptyMap(), Collections.emptyMap());
@@ -1256,11 +1812,78 @@ public class ResourceManagementTest {
       persistResource("t-1", "databasingEverything", Collections.emptyMap(), Collections.emptyMap());
       persistResource("t-2", "ping", Collections.emptyMap(), Collections.emptyMap());
 
+      when(kafkaEgress.sendResourceEventAsync(any()))
+          .thenReturn(CompletableFuture.completedFuture(null));
+
       resourceManagement.removeAllTenantResources("t-1", true);
 
       assertThat(resourceManagement.getResources("t-1", true, Pageable.unpaged()).getNumberOfElements(), equalTo(0));
       assertThat(resourceManagement.getResources("t-2", true, Pageable.unpaged()).getNumberOfElements(), equalTo(1));
-      verify(kafkaEgress, times(3)).sendResourceEvent(any());
+      commitTransaction();
+      verify(kafkaEgress, times(3)).sendResourceEventAsync(any());
+    }
+
+    @Test
+    public void testRemoveAllTenantResources_multipleChunks() {
+      final int originalChunkSize = resourceManagementProperties.getTenantRemovalChunkSize();
+      resourceManagementProperties.setTenantRemovalChunkSize(2);
+      try {
+        persistResource("t-1", "r-1", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-2", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-3", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-4", Collections.emptyMap(), Collections.emptyMap());
+        persistResource("t-1", "r-5", Collections.emptyMap(), Collections.emptyMap());
+        when(kafkaEgress.sendResourceEventAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        resourceManagement.removeAllTenantResources("t-1", true);
+
+        assertThat(resourceManagement.getResources("t-1", true, Pageable.unpaged()).getNumberOfElements(), equalTo(0));
+        commitTransaction();
+        verify(kafkaEgress, times(5)).sendResourceEventAsync(resourceEventArg.capture());
+        assertThat(resourceEventArg.getAllValues(), containsInAnyOrder(
+            Stream.of("r-1", "r-2", "r-3", "r-4", "r-5")
+                .map(resourceId -> new ResourceEvent()
+                    .setTenantId("t-1")
+                    .setResourceId(resourceId)
+                    .setDeleted(true))
+                .toArray()));
+      } finally {
+        resourceManagementProperties.setTenantRemovalChunkSize(originalChunkSize);
+      }
+    }
+
+    @Test
+    // each chunk commits in its own transaction only when not called within one
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testRemoveAllTenantResources_commitsEachChunk() {
+      final int originalChunkSize = resourceManagementProperties.getTenantRemovalChunkSize();
+      resourceManagementProperties.setTenantRemovalChunkSize(2);
+      try {
+        for (int i = 1; i <= 5; i++) {
+          resourceRepository.save(new Resource().setTenantId("t-1").setResourceId("r-" + i)
+              .setLabels(Map.of("os", "linux")).setPresenceMonitoringEnabled(true));
+        }
+        when(kafkaEgress.sendResourceEventAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+        when(kafkaEgress.sendResourceEventAsync(
+            argThat(event -> event.getResourceId().equals("r-3"))))
+            .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker unavailable")));
+
+        try {
+          resourceManagement.removeAllTenantResources("t-1", true);
+          fail("Expected the failed send to be raised");
+        } catch (RuntimeKafkaException e) {
+          // expected
+        }
+
+        // the first two chunks committed before their events were sent, so only the last remains
+        assertThat(resourceManagement.getResources("t-1", true, Pageable.unpaged()).getContent()
+            .stream().map(Resource::getResourceId).collect(Collectors.toList()), contains("r-5"));
+        verify(kafkaEgress, times(4)).sendResourceEventAsync(any());
+      } finally {
+        resourceManagementProperties.setTenantRemovalChunkSize(originalChunkSize);
+      }
     }
 
     @Test
@@ -1276,6 +1899,15 @@ public class ResourceManagementTest {
         assertThat(resourceManagement.getResources("t-2", true, Pageable.unpaged()).getNumberOfElements(), equalTo(1));
     }
 
+    /**
+     * Commits the test's transaction, since resource events are only sent once the transaction
+     * that changed the resources has committed.
+     */
+    private static void commitTransaction() {
+        TestTransaction.flagForCommit();
+        TestTransaction.end();
+    }
+
     private void persistResource(String tenantId, String resourceId, Map<String, String> labels,
                                  Map<String, String> metadata) {
         entityManager.persist(
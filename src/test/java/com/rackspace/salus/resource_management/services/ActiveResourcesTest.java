@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.services.ActiveResources.ActiveResource;
+import com.rackspace.salus.resource_management.services.ActiveResources.Snapshot;
+import com.rackspace.salus.telemetry.etcd.services.EnvoyResourceManagement;
+import com.rackspace.salus.telemetry.etcd.types.Keys;
+import com.rackspace.salus.telemetry.model.ResourceInfo;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.launcher.junit.EtcdClusterResource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Verifies the etcd reads against entries registered the way the ambassador registers them,
+ * under the adapter's key format with a {@link ResourceInfo} value.
+ */
+public class ActiveResourcesTest {
+
+  @Rule
+  public final EtcdClusterResource etcd = new EtcdClusterResource("ActiveResourcesTest", 1);
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private SimpleMeterRegistry meterRegistry;
+  private Client client;
+  private ActiveResources activeResources;
+
+  @Before
+  public void setUp() {
+    client = Client.builder().endpoints(etcd.cluster().getClientEndpoints()).build();
+    meterRegistry = new SimpleMeterRegistry();
+    activeResources = new ActiveResources(
+        client, mock(EnvoyResourceManagement.class), objectMapper, meterRegistry);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  @Test
+  public void testGetEnvoyIds() throws Exception {
+    register("t-1", "r-1", "e-1");
+    register("t-1", "r-2", "e-2");
+    register("t-1", "r-3", "e-3");
+    // a tenant whose ID extends the other's must not be included in its range
+    register("t-10", "r-1", "e-4");
+
+    final Map<String, String> envoyIds = activeResources
+        .getEnvoyIds("t-1", Set.of("r-1", "r-2", "r-missing"))
+        .get(5, TimeUnit.SECONDS);
+
+    assertThat(envoyIds, equalTo(Map.of("r-1", "e-1", "r-2", "e-2")));
+  }
+
+  @Test
+  public void testGetAll() throws Exception {
+    register("t-1", "r-1", "e-1");
+    register("t-2", "host/with/slashes", "e-2");
+
+    final Snapshot snapshot = activeResources.getAll().get(5, TimeUnit.SECONDS);
+
+    assertThat(snapshot.getResources(), containsInAnyOrder(
+        new ActiveResource("t-1", "r-1", "e-1"),
+        new ActiveResource("t-2", "host/with/slashes", "e-2")));
+  }
+
+  @Test
+  public void testGetAll_unreadableEntryCounted() throws Exception {
+    register("t-1", "r-1", "e-1");
+    client.getKVClient().put(toBytes(key("t-1", "r-2")), toBytes("not json"))
+        .get(5, TimeUnit.SECONDS);
+
+    final Snapshot snapshot = activeResources.getAll().get(5, TimeUnit.SECONDS);
+
+    assertThat(snapshot.getResources(), containsInAnyOrder(new ActiveResource("t-1", "r-1", "e-1")));
+    assertThat(meterRegistry.get("active_resources.unreadable").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    final Snapshot snapshot = activeResources.getAll().get(5, TimeUnit.SECONDS);
+    final BlockingQueue<ActiveResource> changes = new LinkedBlockingQueue<>();
+
+    try (Watcher ignored = activeResources.watch(
+        snapshot.getRevision() + 1, changes::add, e -> {})) {
+      register("t-1", "r-1", "e-1");
+      client.getKVClient().delete(toBytes(key("t-1", "r-1"))).get(5, TimeUnit.SECONDS);
+
+      assertThat(changes.poll(5, TimeUnit.SECONDS), equalTo(new ActiveResource("t-1", "r-1", "e-1")));
+      // a deletion is identified from the entry's prior value
+      assertThat(changes.poll(5, TimeUnit.SECONDS), equalTo(new ActiveResource("t-1", "r-1", null)));
+    }
+  }
+
+  @Test
+  public void testKeyPrefix() {
+    assertThat(key("t-1", "r-1").startsWith(ActiveResources.keyPrefix(Keys.FMT_RESOURCES_ACTIVE, "t-1")),
+        equalTo(true));
+    assertThat(ActiveResources.keyPrefix(Keys.FMT_RESOURCES_ACTIVE, "t-1").endsWith("t-1/"),
+        equalTo(true));
+  }
+
+  private void register(String tenantId, String resourceId, String envoyId) throws Exception {
+    final ResourceInfo resourceInfo = new ResourceInfo()
+        .setTenantId(tenantId)
+        .setResourceId(resourceId)
+        .setEnvoyId(envoyId);
+    client.getKVClient()
+        .put(toBytes(key(tenantId, resourceId)),
+            toBytes(objectMapper.writeValueAsString(resourceInfo)))
+        .get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Builds the key as the ambassador does, by substituting each placeholder of the adapter's
+   * key format in turn.
+   */
+  private static String key(String tenantId, String resourceId) {
+    return Keys.FMT_RESOURCES_ACTIVE
+        .replaceFirst("\\{[^}]+}", tenantId)
+        .replaceFirst("\\{[^}]+}", resourceId);
+  }
+
+  private static ByteSequence toBytes(String value) {
+    return ByteSequence.from(value, StandardCharsets.UTF_8);
+  }
+}
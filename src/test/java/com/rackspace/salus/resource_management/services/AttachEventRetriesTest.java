@@ -0,0 +1,391 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.entities.Resource;
+import com.rackspace.salus.telemetry.messaging.AttachEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Headers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.event.ListenerContainerIdleEvent;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AttachEventRetriesTest {
+
+  @Mock
+  KafkaTemplate<String, Object> kafkaTemplate;
+
+  @Mock
+  ResourceManagement resourceManagement;
+
+  @Mock
+  EnvoyIdLookup envoyIdLookup;
+
+  @Mock
+  Acknowledgment acknowledgment;
+
+  @Mock
+  Consumer<?, ?> consumer;
+
+  @Captor
+  ArgumentCaptor<ProducerRecord<String, Object>> recordArg;
+
+  private KafkaTopicProperties topicProperties;
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private AttachEventRetries retries;
+
+  private static final long FIRST_FAILED = 1_600_000_000_000L;
+  private static final long RESOURCE_UPDATED = 1_500_000_000_000L;
+
+  private final AttachEvent attachEvent = new AttachEvent()
+      .setTenantId("t-1")
+      .setResourceId("r-1")
+      .setEnvoyId("e-1");
+
+  @Before
+  public void setUp() {
+    topicProperties = new KafkaTopicProperties();
+    properties = new ResourceManagementProperties();
+    meterRegistry = new SimpleMeterRegistry();
+    retries = new AttachEventRetries(kafkaTemplate, topicProperties, resourceManagement,
+        envoyIdLookup, properties, meterRegistry);
+  }
+
+  private void givenSendSucceeds() {
+    final SettableListenableFuture<SendResult<String, Object>> future = new SettableListenableFuture<>();
+    future.set(null);
+    when(kafkaTemplate.send(any(ProducerRecord.class))).thenReturn(future);
+  }
+
+  @Test
+  public void testRetry_publishesToRetryTopicWithBackoff() {
+    givenSendSucceeds();
+    when(resourceManagement.getResource("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setUpdatedTimestamp(Instant.ofEpochMilli(RESOURCE_UPDATED))));
+    final long before = System.currentTimeMillis();
+
+    retries.retry(attachEvent, 2, new IllegalStateException("failed"));
+
+    verify(kafkaTemplate).send(recordArg.capture());
+    final ProducerRecord<String, Object> record = recordArg.getValue();
+    // the second retry waits twice the initial backoff, which is that tier's topic
+    assertThat(record.topic(), equalTo(topicProperties.getAttaches() + "-retry-2000"));
+    assertThat(record.key(), equalTo("t-1:r-1"));
+    assertThat(record.value(), equalTo(attachEvent));
+    assertThat(header(record.headers(), AttachEventRetries.ATTEMPT_HEADER), equalTo("2"));
+    assertThat(Long.parseLong(header(record.headers(), AttachEventRetries.FIRST_FAILED_HEADER)),
+        greaterThan(before - 1));
+    assertThat(header(record.headers(), AttachEventRetries.RESOURCE_UPDATED_HEADER),
+        equalTo(String.valueOf(RESOURCE_UPDATED)));
+    // the second retry waits twice the initial backoff
+    assertThat(Long.parseLong(header(record.headers(), AttachEventRetries.NOT_BEFORE_HEADER)),
+        greaterThan(before + 1999));
+    assertThat(meterRegistry.get("attach_retries.scheduled").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testRetry_deadLettersWhenAttemptsExhausted() {
+    givenSendSucceeds();
+
+    retries.retry(attachEvent, 5, new IllegalStateException("failed"));
+
+    verify(kafkaTemplate).send(recordArg.capture());
+    assertThat(recordArg.getValue().topic(), equalTo(topicProperties.getAttaches() + "-dlt"));
+    assertThat(meterRegistry.get("attach_retries.dead_lettered").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testConsumeRetry_success() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+
+    retries.consumeRetry(retryRecord(2), acknowledgment, consumer);
+
+    verify(resourceManagement).handleEnvoyAttach(attachEvent);
+    verify(acknowledgment).acknowledge();
+    assertThat(meterRegistry.get("attach_retries.succeeded").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testConsumeRetry_notDuePausesPartition() {
+    final TopicPartition partition = new TopicPartition(topicProperties.getAttaches() + "-retry-2000", 0);
+    final ConsumerRecord<String, AttachEvent> first = retryRecord(2, 10,
+        System.currentTimeMillis() + 60000);
+    final ConsumerRecord<String, AttachEvent> second = retryRecord(2, 11, 0);
+    when(consumer.paused()).thenReturn(Set.of(partition));
+
+    retries.consumeRetry(first, acknowledgment, consumer);
+    // the rest of the poll's records from the partition are left to be fetched again
+    retries.consumeRetry(second, acknowledgment, consumer);
+
+    verify(consumer).seek(partition, 10);
+    verify(consumer).pause(Collections.singleton(partition));
+    verify(consumer, never()).resume(any());
+    verify(resourceManagement, never()).handleEnvoyAttach(any());
+    verify(acknowledgment, never()).acknowledge();
+  }
+
+  @Test
+  public void testConsumeRetry_longBackoffDoesNotDelayShorterBackoff() throws Exception {
+    givenSendSucceeds();
+    when(resourceManagement.getResource("t-1", "r-1")).thenReturn(Optional.empty());
+
+    // a long backoff failure followed by a short backoff one
+    retries.retry(attachEvent, 4, new IllegalStateException("failed"));
+    retries.retry(attachEvent, 1, new IllegalStateException("failed"));
+
+    verify(kafkaTemplate, times(2)).send(recordArg.capture());
+    final ProducerRecord<String, Object> longBackoff = recordArg.getAllValues().get(0);
+    final ProducerRecord<String, Object> shortBackoff = recordArg.getAllValues().get(1);
+    assertThat(longBackoff.topic(), equalTo(topicProperties.getAttaches() + "-retry-8000"));
+    assertThat(shortBackoff.topic(), equalTo(topicProperties.getAttaches() + "-retry-1000"));
+
+    final TopicPartition longPartition = new TopicPartition(longBackoff.topic(), 0);
+    final TopicPartition shortPartition = new TopicPartition(shortBackoff.topic(), 0);
+    when(consumer.paused()).thenReturn(Set.of(longPartition));
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    // consumed in the order they were published, once the short backoff has elapsed
+    Thread.sleep(1100);
+    retries.consumeRetry(consumed(longBackoff, 0), acknowledgment, consumer);
+    retries.consumeRetry(consumed(shortBackoff, 0), acknowledgment, consumer);
+
+    // only the long backoff's partition is paused, while the short backoff is handled
+    verify(consumer).seek(longPartition, 0);
+    verify(consumer).pause(Collections.singleton(longPartition));
+    verify(consumer, never()).seek(eq(shortPartition), anyLong());
+    verify(resourceManagement).handleEnvoyAttach(attachEvent);
+    verify(acknowledgment).acknowledge();
+  }
+
+  @Test
+  public void testRetryTopics() {
+    properties.setAttachRetryInitialBackoff(Duration.ofSeconds(10));
+    properties.setAttachRetryMaxBackoff(Duration.ofSeconds(30));
+    properties.setAttachRetryMaxAttempts(6);
+
+    // the attempts after the backoff reaches its maximum share that tier's topic
+    assertThat(AttachEventRetries.retryTopics("attaches", properties), contains(
+        "attaches-retry-10000", "attaches-retry-20000", "attaches-retry-30000"));
+
+    properties.setAttachRetryMaxAttempts(1);
+    assertThat(AttachEventRetries.retryTopics("attaches", properties), contains(
+        "attaches-retry-10000"));
+  }
+
+  @Test
+  public void testRetryConsumerIdle_resumesDuePartition() throws Exception {
+    final TopicPartition partition = new TopicPartition(topicProperties.getAttaches() + "-retry-2000", 0);
+    when(consumer.paused()).thenReturn(Set.of(partition));
+    final ListenerContainerIdleEvent idleEvent = mock(ListenerContainerIdleEvent.class);
+    when(idleEvent.getConsumer()).thenReturn(consumer);
+
+    retries.consumeRetry(retryRecord(2, 10, System.currentTimeMillis() + 20),
+        acknowledgment, consumer);
+    // let the retry become due
+    Thread.sleep(50);
+    retries.handleRetryConsumerIdle(idleEvent);
+
+    verify(consumer).pause(Collections.singleton(partition));
+    verify(consumer).resume(List.of(partition));
+  }
+
+  @Test
+  public void testConsumeRetry_failureSchedulesNextAttempt() throws Exception {
+    givenSendSucceeds();
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    doThrow(new IllegalStateException("failed"))
+        .when(resourceManagement).handleEnvoyAttach(attachEvent);
+
+    retries.consumeRetry(retryRecord(2), acknowledgment, consumer);
+
+    verify(kafkaTemplate).send(recordArg.capture());
+    assertThat(recordArg.getValue().topic(),
+        equalTo(topicProperties.getAttaches() + "-retry-4000"));
+    assertThat(header(recordArg.getValue().headers(), AttachEventRetries.ATTEMPT_HEADER),
+        equalTo("3"));
+    // carried over from the earlier attempt
+    assertThat(header(recordArg.getValue().headers(), AttachEventRetries.FIRST_FAILED_HEADER),
+        equalTo(String.valueOf(FIRST_FAILED)));
+    assertThat(header(recordArg.getValue().headers(), AttachEventRetries.RESOURCE_UPDATED_HEADER),
+        equalTo(String.valueOf(RESOURCE_UPDATED)));
+  }
+
+  @Test
+  public void testRetry_resourceUnreadable() {
+    givenSendSucceeds();
+    when(resourceManagement.getResource("t-1", "r-1"))
+        .thenThrow(new IllegalStateException("database unavailable"));
+
+    retries.retry(attachEvent, 1, new IllegalStateException("failed"));
+
+    verify(kafkaTemplate).send(recordArg.capture());
+    assertThat(recordArg.getValue().headers().lastHeader(AttachEventRetries.RESOURCE_UPDATED_HEADER),
+        nullValue());
+  }
+
+  @Test
+  public void testConsumeRetry_withoutResourceUpdatedOnlyChecksEnvoy() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+    final ConsumerRecord<String, AttachEvent> record = retryRecord(2);
+    record.headers().remove(AttachEventRetries.RESOURCE_UPDATED_HEADER);
+
+    retries.consumeRetry(record, acknowledgment, consumer);
+
+    verify(resourceManagement, never()).getResource(any(), any());
+    verify(resourceManagement).handleEnvoyAttach(attachEvent);
+  }
+
+  @Test
+  public void testConsumeRetry_discardsWhenResourceCreatedSinceFailure() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+    when(resourceManagement.getResource("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setUpdatedTimestamp(Instant.ofEpochMilli(RESOURCE_UPDATED))));
+    final ConsumerRecord<String, AttachEvent> record = retryRecord(2);
+    // the resource did not exist when the event first failed
+    record.headers().remove(AttachEventRetries.RESOURCE_UPDATED_HEADER);
+    record.headers().add(AttachEventRetries.RESOURCE_UPDATED_HEADER, new byte[0]);
+
+    retries.consumeRetry(record, acknowledgment, consumer);
+
+    verify(resourceManagement, never()).handleEnvoyAttach(any());
+    assertThat(meterRegistry.get("attach_retries.stale").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testConsumeRetry_discardsWhenResourceChangedSinceFailure() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+    // such as by a later attachment of the same envoy with newer labels
+    when(resourceManagement.getResource("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setUpdatedTimestamp(Instant.ofEpochMilli(RESOURCE_UPDATED + 1))));
+
+    retries.consumeRetry(retryRecord(2), acknowledgment, consumer);
+
+    verify(resourceManagement, never()).handleEnvoyAttach(any());
+    verify(acknowledgment).acknowledge();
+    assertThat(meterRegistry.get("attach_retries.stale").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testConsumeRetry_resourceUnchangedSinceFailure() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+    when(resourceManagement.getResource("t-1", "r-1"))
+        .thenReturn(Optional.of(new Resource()
+            .setUpdatedTimestamp(Instant.ofEpochMilli(RESOURCE_UPDATED))));
+
+    retries.consumeRetry(retryRecord(2), acknowledgment, consumer);
+
+    verify(resourceManagement).handleEnvoyAttach(attachEvent);
+  }
+
+  @Test
+  public void testConsumeRetry_discardsStale() throws Exception {
+    when(envoyIdLookup.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-2"));
+
+    retries.consumeRetry(retryRecord(2), acknowledgment, consumer);
+
+    verify(resourceManagement, never()).handleEnvoyAttach(any());
+    assertThat(meterRegistry.get("attach_retries.stale").counter().count(), equalTo(1.0));
+  }
+
+  private ConsumerRecord<String, AttachEvent> retryRecord(int attempt) {
+    return retryRecord(attempt, 0, 0);
+  }
+
+  /**
+   * Builds a record of the retry topic that the given failed attempt is published to.
+   */
+  private ConsumerRecord<String, AttachEvent> retryRecord(int attempt, long offset, long notBefore) {
+    final ConsumerRecord<String, AttachEvent> record = new ConsumerRecord<>(
+        topicProperties.getAttaches() + "-retry-" + (1000 << (attempt - 1)), 0, offset,
+        "t-1:r-1", attachEvent);
+    record.headers().add(AttachEventRetries.ATTEMPT_HEADER,
+        String.valueOf(attempt).getBytes(StandardCharsets.UTF_8));
+    record.headers().add(AttachEventRetries.NOT_BEFORE_HEADER,
+        String.valueOf(notBefore).getBytes(StandardCharsets.UTF_8));
+    record.headers().add(AttachEventRetries.FIRST_FAILED_HEADER,
+        String.valueOf(FIRST_FAILED).getBytes(StandardCharsets.UTF_8));
+    record.headers().add(AttachEventRetries.RESOURCE_UPDATED_HEADER,
+        String.valueOf(RESOURCE_UPDATED).getBytes(StandardCharsets.UTF_8));
+    return record;
+  }
+
+  /**
+   * Delivers a published record to the retry listener as it would be consumed.
+   */
+  private static ConsumerRecord<String, AttachEvent> consumed(ProducerRecord<String, Object> published,
+                                                              long offset) {
+    final ConsumerRecord<String, AttachEvent> record = new ConsumerRecord<>(
+        published.topic(), 0, offset, published.key(), (AttachEvent) published.value());
+    published.headers().forEach(header -> record.headers().add(header));
+    return record;
+  }
+
+  private static String header(Headers headers, String name) {
+    return new String(headers.lastHeader(name).value(), StandardCharsets.UTF_8);
+  }
+}
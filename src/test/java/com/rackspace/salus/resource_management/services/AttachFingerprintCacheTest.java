@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AttachFingerprintCacheTest {
+
+  private static final Map<String, String> LABELS = Collections.singletonMap("agent_os", "linux");
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private AttachFingerprintCache cache;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties()
+        .setAttachFingerprintCacheMaxSize(10);
+    meterRegistry = new SimpleMeterRegistry();
+    cache = new AttachFingerprintCache(properties, meterRegistry);
+  }
+
+  @Test
+  public void testMatches() {
+    cache.record("t-1", "r-1", LABELS);
+
+    assertThat(cache.matches("t-1", "r-1", LABELS), equalTo(true));
+    assertThat(cache.matches("t-1", "r-1", Collections.singletonMap("agent_os", "windows")),
+        equalTo(false));
+    assertThat(cache.matches("t-1", "r-2", LABELS), equalTo(false));
+
+    assertThat(meterRegistry.get("attach_fingerprints.lookups").tag("result", "hit")
+        .counter().count(), equalTo(1.0));
+    assertThat(meterRegistry.get("attach_fingerprints.lookups").tag("result", "miss")
+        .counter().count(), equalTo(2.0));
+  }
+
+  @Test
+  public void testDisabled() {
+    properties.setAttachFingerprintCacheMaxSize(0);
+
+    cache.record("t-1", "r-1", LABELS);
+
+    assertThat(cache.matches("t-1", "r-1", LABELS), equalTo(false));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    properties.setAttachFingerprintCacheMaxSize(1);
+
+    cache.record("t-1", "r-1", LABELS);
+    cache.record("t-1", "r-2", LABELS);
+
+    assertThat(cache.matches("t-1", "r-1", LABELS), equalTo(false));
+    assertThat(cache.matches("t-1", "r-2", LABELS), equalTo(true));
+  }
+
+  @Test
+  public void testHandleResourceEvent_invalidatesOnChange() {
+    cache.record("t-1", "r-1", LABELS);
+    cache.record("t-1", "r-2", LABELS);
+    cache.record("t-1", "r-3", LABELS);
+
+    cache.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setLabelsChanged(true));
+    cache.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-2")
+        .setDeleted(true));
+    cache.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-3")
+        .setReattachedEnvoyId("e-1"));
+
+    assertThat(cache.matches("t-1", "r-1", LABELS), equalTo(false));
+    assertThat(cache.matches("t-1", "r-2", LABELS), equalTo(false));
+    assertThat(cache.matches("t-1", "r-3", LABELS), equalTo(true));
+  }
+
+  @Test
+  public void testInvalidateTenant() {
+    cache.record("t-1", "r-1", LABELS);
+    cache.record("t-2", "r-1", LABELS);
+
+    cache.invalidateTenant("t-1");
+
+    assertThat(cache.matches("t-1", "r-1", LABELS), equalTo(false));
+    assertThat(cache.matches("t-2", "r-1", LABELS), equalTo(true));
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.Connection;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class AttachIngressThrottleTest {
+
+  @Mock
+  KafkaListenerEndpointRegistry listenerRegistry;
+
+  @Mock
+  MessageListenerContainer container;
+
+  @Mock
+  KafkaIngress kafkaIngress;
+
+  @Mock
+  HikariDataSource dataSource;
+
+  @Mock
+  HikariPoolMXBean pool;
+
+  @Mock
+  Connection connection;
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private AttachIngressThrottle throttle;
+
+  @Before
+  public void setUp() throws Exception {
+    when(listenerRegistry.getListenerContainer(KafkaIngress.ATTACH_LISTENER_ID))
+        .thenReturn(container);
+    when(dataSource.isWrapperFor(HikariDataSource.class)).thenReturn(true);
+    when(dataSource.unwrap(HikariDataSource.class)).thenReturn(dataSource);
+    when(dataSource.getHikariPoolMXBean()).thenReturn(pool);
+    when(dataSource.getMaximumPoolSize()).thenReturn(10);
+    when(dataSource.getConnection()).thenReturn(connection);
+    when(connection.isValid(anyInt())).thenReturn(true);
+    when(kafkaIngress.getLastBatchTimePerEvent()).thenReturn(Duration.ZERO);
+
+    properties = new ResourceManagementProperties()
+        .setAttachThrottlingEnabled(true)
+        .setAttachThrottlingChecks(2);
+    meterRegistry = new SimpleMeterRegistry();
+    throttle = new AttachIngressThrottle(listenerRegistry, kafkaIngress, dataSource,
+        properties, meterRegistry);
+  }
+
+  @Test
+  public void testEvaluate_pausesWhenPoolSaturated() {
+    when(pool.getActiveConnections()).thenReturn(9);
+
+    throttle.evaluate();
+    verify(container, never()).pause();
+
+    throttle.evaluate();
+    verify(container).pause();
+    assertThat(meterRegistry.get("attach_ingress.pauses").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testEvaluate_transientWaitIgnored() {
+    when(pool.getActiveConnections()).thenReturn(5);
+    when(pool.getThreadsAwaitingConnection()).thenReturn(1, 0, 1, 0);
+
+    for (int i = 0; i < 4; i++) {
+      throttle.evaluate();
+    }
+
+    verify(container, never()).pause();
+  }
+
+  @Test
+  public void testEvaluate_pausesWhenThreadsKeepWaiting() {
+    when(pool.getActiveConnections()).thenReturn(5);
+    when(pool.getThreadsAwaitingConnection()).thenReturn(1);
+
+    throttle.evaluate();
+    throttle.evaluate();
+
+    verify(container).pause();
+  }
+
+  @Test
+  public void testEvaluate_pausesWhenHandlingSlow() {
+    when(pool.getActiveConnections()).thenReturn(1);
+    when(kafkaIngress.getLastBatchTimePerEvent()).thenReturn(Duration.ofSeconds(1));
+    when(kafkaIngress.getBatchCount()).thenReturn(1L, 2L);
+
+    throttle.evaluate();
+    throttle.evaluate();
+
+    verify(container).pause();
+  }
+
+  @Test
+  public void testEvaluate_slowBatchNotRemeasured() {
+    when(pool.getActiveConnections()).thenReturn(1);
+    when(kafkaIngress.getLastBatchTimePerEvent()).thenReturn(Duration.ofSeconds(1));
+    // a single slow batch followed by no further batches
+    when(kafkaIngress.getBatchCount()).thenReturn(1L);
+
+    for (int i = 0; i < 4; i++) {
+      throttle.evaluate();
+    }
+
+    verify(container, never()).pause();
+  }
+
+  @Test
+  public void testEvaluate_staysPausedUntilBelowResumeThreshold() {
+    when(container.isPauseRequested()).thenReturn(true);
+    when(pool.getActiveConnections()).thenReturn(8);
+
+    throttle.evaluate();
+    throttle.evaluate();
+
+    verify(container, never()).resume();
+    assertThat(meterRegistry.get("attach_ingress.paused").gauge().value(), equalTo(1.0));
+
+    when(pool.getActiveConnections()).thenReturn(7);
+
+    throttle.evaluate();
+    verify(container, never()).resume();
+
+    throttle.evaluate();
+    verify(container).resume();
+    verify(kafkaIngress).resetLastBatchTime();
+    // the pool was not the cause, so the database was not probed
+    verifyZeroInteractions(connection);
+  }
+
+  @Test
+  public void testEvaluate_latencyPauseWaitsForDatabase() throws Exception {
+    when(pool.getActiveConnections()).thenReturn(1);
+    when(kafkaIngress.getLastBatchTimePerEvent()).thenReturn(Duration.ofSeconds(1));
+    when(kafkaIngress.getBatchCount()).thenReturn(1L, 2L);
+    when(container.isPauseRequested()).thenReturn(false, false, true);
+
+    throttle.evaluate();
+    throttle.evaluate();
+    verify(container).pause();
+
+    when(connection.isValid(anyInt())).thenReturn(false);
+    throttle.evaluate();
+    throttle.evaluate();
+    verify(container, never()).resume();
+
+    when(connection.isValid(anyInt())).thenReturn(true);
+    // generous, so the probe of the mocked connection is always fast enough
+    properties.setAttachResumeProbeLatency(Duration.ofMinutes(1));
+    throttle.evaluate();
+    throttle.evaluate();
+    verify(container).resume();
+  }
+
+  @Test
+  public void testEvaluate_disabledByDefault() {
+    throttle = new AttachIngressThrottle(listenerRegistry, kafkaIngress, dataSource,
+        new ResourceManagementProperties(), meterRegistry);
+    when(pool.getActiveConnections()).thenReturn(10);
+
+    for (int i = 0; i < 4; i++) {
+      throttle.evaluate();
+    }
+
+    verify(container, never()).pause();
+  }
+}
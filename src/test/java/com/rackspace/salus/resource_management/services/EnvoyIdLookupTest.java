@@ -0,0 +1,373 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.services.ActiveResources.ActiveResource;
+import com.rackspace.salus.resource_management.services.ActiveResources.Snapshot;
+import com.rackspace.salus.telemetry.entities.Resource;
+import io.etcd.jetcd.Watch.Watcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EnvoyIdLookupTest {
+
+  @Mock
+  ActiveResources activeResources;
+
+  @Mock
+  Watcher watcher;
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private EnvoyIdLookup envoyIdLookup;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties();
+    meterRegistry = new SimpleMeterRegistry();
+    envoyIdLookup = new EnvoyIdLookup(activeResources, properties, meterRegistry);
+  }
+
+  @After
+  public void tearDown() {
+    envoyIdLookup.stop();
+  }
+
+  private void startIndexed() {
+    properties.setEnvoyIdIndexEnabled(true);
+    // the gauges of the lookup created by setUp would otherwise be retained
+    meterRegistry = new SimpleMeterRegistry();
+    envoyIdLookup = new EnvoyIdLookup(activeResources, properties, meterRegistry);
+    envoyIdLookup.start();
+  }
+
+  @SuppressWarnings("unchecked")
+  private ArgumentCaptor<Consumer<ActiveResource>> captureWatch() {
+    final ArgumentCaptor<Consumer<ActiveResource>> changeConsumer =
+        ArgumentCaptor.forClass(Consumer.class);
+    verify(activeResources, timeout(5000)).watch(anyLong(), changeConsumer.capture(), any());
+    return changeConsumer;
+  }
+
+  @Test
+  public void testGetEnvoyId_indexDisabled() {
+    when(activeResources.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-1"));
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-1"));
+
+    verify(activeResources, times(2)).getEnvoyId("t-1", "r-1");
+  }
+
+  @Test
+  public void testIndex_loadedAndWatched() {
+    when(activeResources.getAll())
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(
+            List.of(new ActiveResource("t-1", "r-1", "e-1")), 10)));
+    when(activeResources.watch(eq(11L), any(), any()))
+        .thenReturn(watcher);
+
+    startIndexed();
+    final Consumer<ActiveResource> changeConsumer = captureWatch().getValue();
+
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-1"));
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-2").join(), nullValue());
+
+    // detached through any ambassador
+    changeConsumer.accept(new ActiveResource("t-1", "r-1", null));
+    // ...and attached through any ambassador
+    changeConsumer.accept(new ActiveResource("t-1", "r-2", "e-2"));
+
+    assertThat(envoyIdLookup.getEnvoyIds(Arrays.asList(
+        new Resource().setTenantId("t-1").setResourceId("r-1"),
+        new Resource().setTenantId("t-1").setResourceId("r-2")
+    )).join(), contains(null, "e-2"));
+
+    verify(activeResources, never()).getEnvoyId(anyString(), anyString());
+    verify(activeResources, never()).getEnvoyIds(anyString(), any());
+    // counted per resource, by whether the index has its envoy
+    assertThat(meterRegistry.get("envoy_id_index.lookups").tag("result", "hit")
+        .counter().count(), equalTo(2.0));
+    assertThat(meterRegistry.get("envoy_id_index.lookups").tag("result", "miss")
+        .counter().count(), equalTo(2.0));
+    assertThat(meterRegistry.get("envoy_id_index.size").gauge().value(), equalTo(1.0));
+  }
+
+  @Test
+  public void testIndex_stalenessGauges() throws Exception {
+    assertThat(meterRegistry.get("envoy_id_index.age").gauge().value(), equalTo(Double.NaN));
+
+    when(activeResources.getAll())
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(
+            List.of(new ActiveResource("t-1", "r-1", "e-1")), 10)));
+    when(activeResources.watch(eq(11L), any(), any()))
+        .thenReturn(watcher);
+
+    startIndexed();
+    final Consumer<ActiveResource> changeConsumer = captureWatch().getValue();
+    assertThat(meterRegistry.get("envoy_id_index.age").gauge().value(), greaterThanOrEqualTo(0.0));
+
+    Thread.sleep(50);
+    changeConsumer.accept(new ActiveResource("t-1", "r-2", "e-2"));
+
+    final double age = meterRegistry.get("envoy_id_index.age").gauge().value();
+    final double lastChangeAge = meterRegistry.get("envoy_id_index.last_change_age").gauge().value();
+    assertThat(age, greaterThanOrEqualTo(0.05));
+    // reset by the change applied from the watch
+    assertThat(lastChangeAge, lessThan(age));
+  }
+
+  @Test
+  public void testIndex_snapshotExceedsMaxEntries() {
+    properties.setEnvoyIdIndexMaxEntries(1);
+    when(activeResources.getAll())
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(List.of(
+            new ActiveResource("t-1", "r-1", "e-1"),
+            new ActiveResource("t-1", "r-2", "e-2")), 10)));
+    when(activeResources.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+
+    startIndexed();
+    verify(activeResources, timeout(5000)).getAll();
+
+    // not served from, nor watched, so envoys are read from etcd
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-1"));
+    verify(activeResources).getEnvoyId("t-1", "r-1");
+    verify(activeResources, never()).watch(anyLong(), any(), any());
+    assertThat(meterRegistry.get("envoy_id_index.loaded").gauge().value(), equalTo(0.0));
+    assertThat(meterRegistry.get("envoy_id_index.overflows").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testIndex_watchExceedsMaxEntries() {
+    properties.setEnvoyIdIndexMaxEntries(2);
+    when(activeResources.getAll())
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(List.of(
+            new ActiveResource("t-1", "r-1", "e-1"),
+            new ActiveResource("t-1", "r-2", "e-2")), 10)));
+    when(activeResources.watch(eq(11L), any(), any()))
+        .thenReturn(watcher);
+    when(activeResources.getEnvoyId("t-1", "r-3"))
+        .thenReturn(CompletableFuture.completedFuture("e-3"));
+
+    startIndexed();
+    final Consumer<ActiveResource> changeConsumer = captureWatch().getValue();
+
+    // replacing an entry stays within the bound
+    changeConsumer.accept(new ActiveResource("t-1", "r-2", "e-4"));
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-2").join(), equalTo("e-4"));
+
+    changeConsumer.accept(new ActiveResource("t-1", "r-3", "e-3"));
+
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-3").join(), equalTo("e-3"));
+    verify(activeResources).getEnvoyId("t-1", "r-3");
+    verify(watcher, timeout(5000)).close();
+    assertThat(meterRegistry.get("envoy_id_index.loaded").gauge().value(), equalTo(0.0));
+    assertThat(meterRegistry.get("envoy_id_index.age").gauge().value(), equalTo(Double.NaN));
+    assertThat(meterRegistry.get("envoy_id_index.overflows").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testIndex_readsEtcdUntilLoaded() {
+    final CompletableFuture<Snapshot> snapshot = new CompletableFuture<>();
+    when(activeResources.getAll())
+        .thenReturn(snapshot);
+    when(activeResources.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.completedFuture("e-1"));
+
+    startIndexed();
+    verify(activeResources, timeout(5000)).getAll();
+
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-1"));
+    verify(activeResources).getEnvoyId("t-1", "r-1");
+    assertThat(meterRegistry.get("envoy_id_index.unloaded_lookups").counter().count(),
+        equalTo(1.0));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIndex_reloadedAfterWatchFails() {
+    properties.setEnvoyIdIndexReloadDelay(Duration.ZERO);
+    when(activeResources.getAll())
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(
+            List.of(new ActiveResource("t-1", "r-1", "e-1")), 10)))
+        .thenReturn(CompletableFuture.completedFuture(new Snapshot(
+            List.of(new ActiveResource("t-1", "r-1", "e-2")), 20)));
+    when(activeResources.watch(anyLong(), any(), any()))
+        .thenReturn(watcher);
+
+    startIndexed();
+    final ArgumentCaptor<Consumer<Throwable>> errorConsumer = ArgumentCaptor.forClass(Consumer.class);
+    verify(activeResources, timeout(5000)).watch(eq(11L), any(), errorConsumer.capture());
+
+    // such as when the watched revision has been compacted
+    errorConsumer.getValue().accept(new IllegalStateException("compacted"));
+
+    verify(activeResources, timeout(5000)).watch(eq(21L), any(), any());
+    verify(watcher).close();
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), equalTo("e-2"));
+    assertThat(meterRegistry.get("envoy_id_index.reloads").counter().count(), equalTo(1.0));
+  }
+
+  @Test
+  public void testGetEnvoyIds_readsEachTenantOnce() {
+    when(activeResources.getEnvoyIds("t-1", Set.of("r-1", "r-2", "r-3")))
+        .thenReturn(CompletableFuture.completedFuture(Map.of("r-1", "e-1", "r-3", "e-3")));
+    when(activeResources.getEnvoyIds("t-2", Set.of("r-1")))
+        .thenReturn(CompletableFuture.completedFuture(Map.of("r-1", "e-4")));
+
+    final List<String> envoyIds = envoyIdLookup.getEnvoyIds(Arrays.asList(
+        new Resource().setTenantId("t-1").setResourceId("r-1"),
+        new Resource().setTenantId("t-2").setResourceId("r-1"),
+        new Resource().setTenantId("t-1").setResourceId("r-2"),
+        new Resource().setTenantId("t-1").setResourceId("r-3")
+    )).join();
+
+    assertThat(envoyIds, contains("e-1", "e-4", null, "e-3"));
+    verify(activeResources).getEnvoyIds("t-1", Set.of("r-1", "r-2", "r-3"));
+    verify(activeResources).getEnvoyIds("t-2", Set.of("r-1"));
+    verifyNoMoreInteractions(activeResources);
+  }
+
+  @Test
+  public void testGetEnvoyIds_boundsConcurrency() {
+    properties.setEnvoyLookupConcurrency(2);
+    final List<Resource> resources = IntStream.range(0, 4)
+        .mapToObj(i -> new Resource().setTenantId("t-" + i).setResourceId("r-1"))
+        .collect(Collectors.toList());
+    final Map<String, CompletableFuture<Map<String, String>>> pending = new HashMap<>();
+    when(activeResources.getEnvoyIds(anyString(), eq(Set.of("r-1"))))
+        .then(invocation -> {
+          final CompletableFuture<Map<String, String>> future = new CompletableFuture<>();
+          pending.put(invocation.getArgument(0), future);
+          return future;
+        });
+
+    final CompletableFuture<List<String>> result = envoyIdLookup.getEnvoyIds(resources);
+
+    assertThat(pending.keySet(), containsInAnyOrder("t-0", "t-1"));
+
+    pending.get("t-1").complete(Map.of("r-1", "e-1"));
+    assertThat(pending.keySet(), containsInAnyOrder("t-0", "t-1", "t-2"));
+
+    pending.get("t-0").complete(Map.of());
+    pending.get("t-2").complete(Map.of("r-1", "e-2"));
+    pending.get("t-3").complete(Map.of("r-1", "e-3"));
+
+    assertThat(result.join(), contains(null, "e-1", "e-2", "e-3"));
+  }
+
+  @Test
+  public void testGetEnvoyIds_deadlineExceeded() {
+    properties.setEnvoyLookupDeadline(Duration.ofMillis(50));
+    when(activeResources.getEnvoyIds("t-1", Set.of("r-1")))
+        .thenReturn(CompletableFuture.completedFuture(Map.of("r-1", "e-1")));
+    when(activeResources.getEnvoyIds("t-2", Set.of("r-2")))
+        .thenReturn(new CompletableFuture<>());
+
+    final List<String> envoyIds = envoyIdLookup.getEnvoyIds(Arrays.asList(
+        new Resource().setTenantId("t-1").setResourceId("r-1"),
+        new Resource().setTenantId("t-2").setResourceId("r-2")
+    )).join();
+
+    assertThat(envoyIds, contains("e-1", null));
+    assertThat(meterRegistry.get("envoy_id_lookups.deadline_exceeded").counter().count(),
+        equalTo(1.0));
+  }
+
+  @Test
+  public void testGetEnvoyIds_failedTenantReadServedWithoutEnvoyIds() {
+    when(activeResources.getEnvoyIds("t-1", Set.of("r-1")))
+        .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("etcd unavailable")));
+    when(activeResources.getEnvoyIds("t-2", Set.of("r-1")))
+        .thenReturn(CompletableFuture.completedFuture(Map.of("r-1", "e-2")));
+
+    final List<String> envoyIds = envoyIdLookup.getEnvoyIds(Arrays.asList(
+        new Resource().setTenantId("t-1").setResourceId("r-1"),
+        new Resource().setTenantId("t-2").setResourceId("r-1")
+    )).join();
+
+    assertThat(envoyIds, contains(null, "e-2"));
+  }
+
+  @Test
+  public void testGetEnvoyId_circuitBreakerOpens() {
+    properties.getEnvoyLookupCircuitBreaker()
+        .setSlidingWindowSize(2)
+        .setMinimumNumberOfCalls(2);
+    envoyIdLookup = new EnvoyIdLookup(activeResources, properties, meterRegistry);
+
+    when(activeResources.getEnvoyId("t-1", "r-1"))
+        .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("etcd unavailable")));
+
+    // failures are served without an envoy ID
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), nullValue());
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), nullValue());
+    // ...and once open, etcd is not called at all
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), nullValue());
+
+    verify(activeResources, times(2)).getEnvoyId("t-1", "r-1");
+    assertThat(meterRegistry.get("resilience4j.circuitbreaker.state")
+        .tag("state", "open").gauge().value(), equalTo(1.0));
+  }
+
+  @Test
+  public void testGetEnvoyId_timesOut() {
+    properties.setEnvoyLookupTimeout(Duration.ofMillis(10));
+    when(activeResources.getEnvoyId("t-1", "r-1"))
+        .thenReturn(new CompletableFuture<>());
+
+    assertThat(envoyIdLookup.getEnvoyId("t-1", "r-1").join(), nullValue());
+  }
+}
@@ -16,13 +16,22 @@
 
 package com.rackspace.salus.resource_management.services;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.rackspace.salus.common.errors.RuntimeKafkaException;
 import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
 import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,11 +48,15 @@ public class KafkaEgressTest {
   KafkaTemplate<String,Object> kafkaTemplate;
   private KafkaEgress kafkaEgress;
   private KafkaTopicProperties topicProperties;
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
 
   @Before
   public void setUp() {
     topicProperties = new KafkaTopicProperties();
-    kafkaEgress = new KafkaEgress(kafkaTemplate, topicProperties);
+    properties = new ResourceManagementProperties();
+    meterRegistry = new SimpleMeterRegistry();
+    kafkaEgress = new KafkaEgress(kafkaTemplate, topicProperties, properties, meterRegistry);
   }
 
   @Test
@@ -59,5 +72,97 @@ public class KafkaEgressTest {
     kafkaEgress.sendResourceEvent(event);
 
     verify(kafkaTemplate).send(topicProperties.getResources(), "t-1:r-1", event);
+
+    assertThat(meterRegistry.get("kafka_egress.sends")
+        .tags("topic", topicProperties.getResources(), "outcome", "success", "exception", "none")
+        .counter().count(), equalTo(1.0));
+    assertThat(meterRegistry.get("kafka_egress.send_latency")
+        .tag("topic", topicProperties.getResources())
+        .timer().count(), equalTo(1L));
+  }
+
+  @Test
+  public void testSendResourceEvent_asyncFailureIsCounted() {
+    properties.setKafkaEgressSynchronous(false);
+    SettableListenableFuture<SendResult<String, Object>> future = new SettableListenableFuture<>();
+    future.setException(new IllegalStateException("broker unavailable"));
+    when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(future);
+
+    kafkaEgress.sendResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1"));
+
+    assertThat(meterRegistry.get("kafka_egress.sends")
+        .tags("topic", topicProperties.getResources(),
+            "outcome", "failure",
+            "exception", "IllegalStateException")
+        .counter().count(), equalTo(1.0));
+  }
+
+  @Test(expected = RuntimeKafkaException.class)
+  public void testSendResourceEvent_synchronousFailureThrows() {
+    // synchronous is the default
+    SettableListenableFuture<SendResult<String, Object>> future = new SettableListenableFuture<>();
+    future.setException(new IllegalStateException("broker unavailable"));
+    when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(future);
+
+    kafkaEgress.sendResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1"));
+  }
+
+  @Test
+  public void testSendResourceEventAsync_blocksWhenMaxInFlight() throws Exception {
+    properties.setKafkaEgressMaxInFlight(1);
+    kafkaEgress = new KafkaEgress(kafkaTemplate, topicProperties, properties, meterRegistry);
+
+    // the first send stays in flight until the latch is released
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final SettableListenableFuture<SendResult<String, Object>> first = new SettableListenableFuture<>();
+    final SettableListenableFuture<SendResult<String, Object>> second = new SettableListenableFuture<>();
+    second.set(null);
+    when(kafkaTemplate.send(anyString(), anyString(), any())).thenReturn(first, second);
+    final CompletableFuture<Void> firstAcked = CompletableFuture.runAsync(() -> {
+      try {
+        releaseFirst.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      first.set(null);
+    });
+
+    final CompletableFuture<SendResult<String, Object>> firstSent =
+        kafkaEgress.sendResourceEventAsync(new ResourceEvent().setTenantId("t-1").setResourceId("r-1"));
+    assertThat(gaugeValue("kafka_egress.in_flight"), equalTo(1.0));
+
+    final CompletableFuture<Void> secondSend = CompletableFuture.runAsync(() ->
+      kafkaEgress.sendResourceEventAsync(new ResourceEvent().setTenantId("t-1").setResourceId("r-2")));
+
+    // the second sender is parked on the in-flight semaphore rather than at the producer
+    awaitGaugeValue("kafka_egress.waiting_senders", 1.0);
+    assertThat(secondSend.isDone(), equalTo(false));
+    assertThat(gaugeValue("kafka_egress.in_flight"), equalTo(1.0));
+    verify(kafkaTemplate, times(1)).send(anyString(), anyString(), any());
+
+    releaseFirst.countDown();
+    firstAcked.get(5, TimeUnit.SECONDS);
+    secondSend.get(5, TimeUnit.SECONDS);
+
+    assertThat(firstSent.isDone(), equalTo(true));
+    assertThat(gaugeValue("kafka_egress.waiting_senders"), equalTo(0.0));
+    assertThat(gaugeValue("kafka_egress.in_flight"), equalTo(0.0));
+    verify(kafkaTemplate, times(2)).send(anyString(), anyString(), any());
+  }
+
+  private double gaugeValue(String name) {
+    return meterRegistry.get(name).gauge().value();
+  }
+
+  /**
+   * Waits for a gauge to reach the expected value, which is reached as soon as the other thread
+   * is parked, so the wait only bounds a failing test.
+   */
+  private void awaitGaugeValue(String name, double expected) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (gaugeValue(name) != expected) {
+      assertThat("timed out waiting for " + name, System.nanoTime() < deadline, equalTo(true));
+      Thread.sleep(1);
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import com.rackspace.salus.common.messaging.KafkaTopicProperties;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.AttachEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KafkaIngressTest {
+
+  @Mock
+  ResourceManagement resourceManagement;
+
+  @Mock
+  AttachEventRetries attachEventRetries;
+
+  private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private KafkaIngress kafkaIngress;
+
+  @After
+  public void tearDown() {
+    kafkaIngress.stop();
+  }
+
+  private KafkaIngress createIngress(int lanes) {
+    return new KafkaIngress(new KafkaTopicProperties(), resourceManagement, attachEventRetries,
+        new ResourceManagementProperties().setAttachProcessingLanes(lanes), meterRegistry);
+  }
+
+  @Test
+  public void testConsumeAttachEvents_keepsOrderPerResourceAcrossLanes() {
+    kafkaIngress = createIngress(4);
+    final List<AttachEvent> handled = Collections.synchronizedList(new ArrayList<>());
+    doAnswer(invocation -> {
+      handled.addAll(invocation.getArgument(0));
+      return null;
+    }).when(resourceManagement).handleEnvoyAttaches(anyList());
+
+    final List<AttachEvent> events = IntStream.range(0, 20)
+        .mapToObj(i -> new AttachEvent()
+            .setTenantId("t-1")
+            .setResourceId("r-" + (i % 5))
+            .setEnvoyId("e-" + i))
+        .collect(Collectors.toList());
+
+    kafkaIngress.consumeAttachEvents(events);
+
+    // every lane has finished by the time the listener returns
+    assertThat(handled, containsInAnyOrder(events.toArray()));
+    for (int r = 0; r < 5; r++) {
+      final String resourceId = "r-" + r;
+      assertThat(
+          handled.stream()
+              .filter(event -> event.getResourceId().equals(resourceId))
+              .map(AttachEvent::getEnvoyId)
+              .collect(Collectors.toList()),
+          equalTo(events.stream()
+              .filter(event -> event.getResourceId().equals(resourceId))
+              .map(AttachEvent::getEnvoyId)
+              .collect(Collectors.toList())));
+    }
+  }
+
+  @Test
+  public void testConsumeAttachEvents_fallsBackToIndividualEvents() {
+    kafkaIngress = createIngress(1);
+    final AttachEvent first = new AttachEvent().setTenantId("t-1").setResourceId("r-1");
+    final AttachEvent second = new AttachEvent().setTenantId("t-1").setResourceId("r-2");
+    final IllegalStateException failure = new IllegalStateException("bad event");
+    doThrow(failure)
+        .when(resourceManagement).handleEnvoyAttaches(anyList());
+    doThrow(failure)
+        .when(resourceManagement).handleEnvoyAttach(first);
+
+    kafkaIngress.consumeAttachEvents(Arrays.asList(first, second));
+
+    verify(resourceManagement).handleEnvoyAttach(first);
+    verify(resourceManagement).handleEnvoyAttach(second);
+    verify(attachEventRetries).retry(first, 1, failure);
+    verifyNoMoreInteractions(attachEventRetries);
+    assertThat(meterRegistry.get("attach_ingress.lane_processing").timers(),
+        contains(meterRegistry.get("attach_ingress.lane_processing").tag("lane", "0").timer()));
+  }
+}
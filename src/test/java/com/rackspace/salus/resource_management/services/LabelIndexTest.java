@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LabelIndexTest {
+
+  @Mock
+  JdbcTemplate jdbcTemplate;
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private LabelIndex labelIndex;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties()
+        .setLabelIndexMaxBytes(1_000_000);
+    meterRegistry = new SimpleMeterRegistry();
+    labelIndex = new LabelIndex(jdbcTemplate, properties, meterRegistry);
+  }
+
+  /**
+   * Sets up the rows of resource_labels returned for the tenant, where each row is given as
+   * the resource's internal ID, label key, and label value. The resource ID of each row is
+   * derived from its internal ID, such as r-1 for 1.
+   */
+  private void givenLabelRows(String tenantId, Object[]... rows) {
+    doAnswer(invocation -> {
+      final RowCallbackHandler handler = invocation.getArgument(1);
+      for (Object[] row : rows) {
+        handler.processRow(resultSet(row));
+      }
+      return null;
+    }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), eq(tenantId));
+  }
+
+  /**
+   * Same as {@link #givenLabelRows(String, Object[]...)} for the query of a single resource.
+   */
+  private void givenResourceRows(String tenantId, String resourceId, Object[]... rows) {
+    doAnswer(invocation -> {
+      final RowCallbackHandler handler = invocation.getArgument(1);
+      for (Object[] row : rows) {
+        handler.processRow(resultSet(row));
+      }
+      return null;
+    }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), eq(tenantId), eq(resourceId));
+  }
+
+  private static ResultSet resultSet(Object[] row) throws SQLException {
+    // not every column is read from every row
+    final ResultSet resultSet = mock(ResultSet.class, withSettings().lenient());
+    when(resultSet.getLong(1)).thenReturn((Long) row[0]);
+    when(resultSet.getString(2)).thenReturn((String) row[1]);
+    when(resultSet.getString(3)).thenReturn((String) row[2]);
+    when(resultSet.getString(4)).thenReturn("r-" + row[0]);
+    return resultSet;
+  }
+
+  @Test
+  public void testFindMatchingIds() {
+    givenLabelRows("t-1",
+        new Object[]{1L, "os", "linux"}, new Object[]{1L, "env", "prod"},
+        new Object[]{2L, "os", "linux"}, new Object[]{2L, "env", "dev"},
+        new Object[]{3L, "os", "windows"}, new Object[]{3L, "env", "prod"});
+
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "linux", "env", "prod"),
+        LabelSelectorMethod.AND), contains(1L));
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "linux", "env", "prod"),
+        LabelSelectorMethod.OR), contains(1L, 2L, 3L));
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "linux", "region", "east"),
+        LabelSelectorMethod.AND), empty());
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "windows", "region", "east"),
+        LabelSelectorMethod.OR), contains(3L));
+
+    // built once and then served from memory
+    verify(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), eq("t-1"));
+    assertThat(meterRegistry.get("label_index.lookups").tag("result", "hit")
+        .counter().count(), equalTo(3.0));
+  }
+
+  @Test
+  public void testResourceEventUpdatesResource() {
+    givenLabelRows("t-1",
+        new Object[]{1L, "os", "linux"},
+        new Object[]{2L, "os", "linux"});
+    labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND);
+
+    // a reattachment alone does not change the labels
+    labelIndex.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setReattachedEnvoyId("e-1"));
+
+    givenResourceRows("t-1", "r-1", new Object[]{1L, "os", "windows"});
+    labelIndex.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setLabelsChanged(true));
+
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND),
+        contains(2L));
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "windows"), LabelSelectorMethod.AND),
+        contains(1L));
+
+    // a deleted resource is no longer found by the query
+    givenResourceRows("t-1", "r-2");
+    labelIndex.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-2")
+        .setDeleted(true));
+
+    assertThat(labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND),
+        empty());
+
+    // the tenant's index was only built once
+    verify(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), eq("t-1"));
+  }
+
+  @Test
+  public void testResourceChangedForUnindexedTenant() {
+    labelIndex.resourceChanged("t-1", "r-1");
+
+    verifyZeroInteractions(jdbcTemplate);
+  }
+
+  @Test
+  public void testInvalidateTenant() {
+    givenLabelRows("t-1", new Object[]{1L, "os", "linux"});
+
+    labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND);
+    labelIndex.invalidateTenant("t-1");
+    labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND);
+
+    verify(jdbcTemplate, times(2)).query(anyString(), any(RowCallbackHandler.class), eq("t-1"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedOverBudget() {
+    // enough for a single, single-label tenant index
+    properties.setLabelIndexMaxBytes(200);
+    givenLabelRows("t-1", new Object[]{1L, "os", "linux"});
+    givenLabelRows("t-2", new Object[]{2L, "os", "linux"});
+
+    labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND);
+    labelIndex.findMatchingIds("t-2", Map.of("os", "linux"), LabelSelectorMethod.AND);
+    labelIndex.findMatchingIds("t-1", Map.of("os", "linux"), LabelSelectorMethod.AND);
+
+    verify(jdbcTemplate, times(2)).query(anyString(), any(RowCallbackHandler.class), eq("t-1"));
+    assertThat(meterRegistry.get("label_index.evictions").counter().count(), equalTo(2.0));
+    assertThat(meterRegistry.get("label_index.tenants").gauge().value(), equalTo(1.0));
+  }
+}
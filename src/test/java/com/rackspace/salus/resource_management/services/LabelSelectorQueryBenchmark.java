@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import com.rackspace.salus.common.util.SpringResourceUtils;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import com.zaxxer.hikari.HikariDataSource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+/**
+ * Measures the label selector queries with the {@link LabelSelectorQueryCompiler} and a shared
+ * {@link NamedParameterJdbcTemplate}, against building the SQL with {@link String#format} and a
+ * new template on each call as was done before, for each combination of the Connector/J
+ * prepared statement settings.
+ *
+ * <p>
+ *   It runs against the MySQL database of the dev profile, whose schema the application creates,
+ *   or the one given by the <code>benchmark.jdbc.url</code>, <code>benchmark.jdbc.username</code>
+ *   and <code>benchmark.jdbc.password</code> system properties. The selectors are evaluated for
+ *   the <code>benchmark.tenant</code> system property's tenant, which may be populated to include
+ *   the cost of evaluating them, or by default for an unknown tenant to only measure the cost of
+ *   preparing and executing the statements. Run it from the test classpath with:
+ * </p>
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/test-classpath.txt
+ * java -cp target/test-classes:target/classes:$(cat target/test-classpath.txt) \
+ *   com.rackspace.salus.resource_management.services.LabelSelectorQueryBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LabelSelectorQueryBenchmark {
+
+  @Param({"true", "false"})
+  boolean cachePrepStmts;
+
+  @Param({"false", "true"})
+  boolean useServerPrepStmts;
+
+  @Param({"250"})
+  int prepStmtCacheSize;
+
+  @Param({"2048"})
+  int prepStmtCacheSqlLimit;
+
+  @Param({"AND", "OR"})
+  LabelSelectorMethod logicalOperation;
+
+  @Param({"1", "4", "16"})
+  int labelCount;
+
+  private HikariDataSource dataSource;
+  private LabelSelectorQueryCompiler compiler;
+  private NamedParameterJdbcTemplate sharedTemplate;
+  private String labelMatchQuery;
+  private String labelMatchOrQuery;
+  private String tenantId;
+  private Map<String, String> labels;
+
+  @Setup
+  public void setUp() throws Exception {
+    dataSource = new HikariDataSource();
+    dataSource.setJdbcUrl(System.getProperty("benchmark.jdbc.url",
+        "jdbc:mysql://localhost:3306/default?verifyServerCertificate=false&useSSL=false&requireSSL=false"));
+    dataSource.setUsername(System.getProperty("benchmark.jdbc.username", "dev"));
+    dataSource.setPassword(System.getProperty("benchmark.jdbc.password", "pass"));
+    // a single connection, so that every call reuses the same connection's statement cache
+    dataSource.setMaximumPoolSize(1);
+    dataSource.addDataSourceProperty("cachePrepStmts", cachePrepStmts);
+    dataSource.addDataSourceProperty("useServerPrepStmts", useServerPrepStmts);
+    dataSource.addDataSourceProperty("prepStmtCacheSize", prepStmtCacheSize);
+    dataSource.addDataSourceProperty("prepStmtCacheSqlLimit", prepStmtCacheSqlLimit);
+
+    compiler = new LabelSelectorQueryCompiler();
+    sharedTemplate = new NamedParameterJdbcTemplate(dataSource);
+    labelMatchQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_query.sql");
+    labelMatchOrQuery = SpringResourceUtils.readContent("sql-queries/resource_label_matching_OR_query.sql");
+
+    tenantId = System.getProperty("benchmark.tenant", "benchmark-tenant");
+    labels = new LinkedHashMap<>();
+    for (int i = 0; i < labelCount; i++) {
+      labels.put("key" + i, "value" + i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    dataSource.close();
+  }
+
+  @Benchmark
+  public List<Long> compiledWithSharedTemplate() {
+    final MapSqlParameterSource paramSource =
+        compiler.bind(labels, tenantId, logicalOperation);
+    addPage(paramSource);
+    return sharedTemplate.queryForList(
+        compiler.matchQuery(logicalOperation, labels.size()), paramSource, Long.class);
+  }
+
+  @Benchmark
+  public List<Long> formattedWithTemplatePerCall() {
+    final MapSqlParameterSource paramSource = new MapSqlParameterSource();
+    paramSource.addValue("tenantId", tenantId);
+    final StringBuilder builder = new StringBuilder();
+    int i = 0;
+    for (Map.Entry<String, String> entry : labels.entrySet()) {
+      if (i > 0) {
+        builder.append(" OR ");
+      }
+      builder.append("(labels = :label").append(i)
+          .append(" AND labels_key = :labelKey").append(i)
+          .append(")");
+      paramSource.addValue("label" + i, entry.getValue());
+      paramSource.addValue("labelKey" + i, entry.getKey());
+      i++;
+    }
+    final NamedParameterJdbcTemplate namedParameterTemplate =
+        new NamedParameterJdbcTemplate(dataSource);
+    final String query;
+    if (logicalOperation.equals(LabelSelectorMethod.AND)) {
+      paramSource.addValue("i", i);
+      query = labelMatchQuery;
+    } else {
+      query = labelMatchOrQuery;
+    }
+    addPage(paramSource);
+    return namedParameterTemplate.queryForList(
+        String.format(query, builder.toString()), paramSource, Long.class);
+  }
+
+  private static void addPage(MapSqlParameterSource paramSource) {
+    paramSource.addValue("afterId", 0L);
+    paramSource.addValue("offset", 0);
+    paramSource.addValue("limit", 100);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(LabelSelectorQueryBenchmark.class.getSimpleName())
+        .build())
+        .run();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelExpression.Operator;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+
+public class LabelSelectorQueryCompilerTest {
+
+  private LabelSelectorQueryCompiler compiler;
+
+  @Before
+  public void setUp() throws Exception {
+    compiler = new LabelSelectorQueryCompiler();
+  }
+
+  @Test
+  public void testMatchQuery_reusedPerShape() {
+    final String first = compiler.matchQuery(LabelSelectorMethod.AND, 2);
+
+    assertThat(compiler.matchQuery(LabelSelectorMethod.AND, 2), sameInstance(first));
+    assertThat(compiler.matchQuery(LabelSelectorMethod.OR, 2), not(equalTo(first)));
+    assertThat(compiler.countQuery(LabelSelectorMethod.AND, 2), not(equalTo(first)));
+    assertThat(compiler.cachedQueryCount(), equalTo(3));
+
+    assertThat(first, containsString(
+        "(labels = :label0 AND labels_key = :labelKey0) OR (labels = :label1 AND labels_key = :labelKey1)"));
+    assertThat(first, containsString("HAVING COUNT(*) = :i"));
+    assertThat(first, containsString("LIMIT   :limit OFFSET :offset"));
+  }
+
+  @Test
+  public void testMatchQuery_largeSelectorsNotCached() {
+    final int labelCount = LabelSelectorQueryCompiler.MAX_CACHED_LABEL_COUNT + 1;
+
+    final String query = compiler.matchQuery(LabelSelectorMethod.OR, labelCount);
+
+    assertThat(query, containsString(":labelKey" + (labelCount - 1)));
+    assertThat(compiler.cachedQueryCount(), equalTo(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMatchQuery_noLabels() {
+    compiler.matchQuery(LabelSelectorMethod.AND, 0);
+  }
+
+  @Test
+  public void testBind() {
+    final Map<String, String> labels = new LinkedHashMap<>();
+    labels.put("os", "linux");
+    labels.put("env", "prod");
+
+    final MapSqlParameterSource and = compiler.bind(labels, "t-1", LabelSelectorMethod.AND);
+    assertThat(and.getValue("tenantId"), equalTo("t-1"));
+    assertThat(and.getValue("labelKey0"), equalTo("os"));
+    assertThat(and.getValue("label0"), equalTo("linux"));
+    assertThat(and.getValue("labelKey1"), equalTo("env"));
+    assertThat(and.getValue("label1"), equalTo("prod"));
+    assertThat(and.getValue("i"), equalTo(2));
+
+    final MapSqlParameterSource or = compiler.bind(labels, "t-1", LabelSelectorMethod.OR);
+    assertThat(or.hasValue("i"), equalTo(false));
+  }
+
+  @Test
+  public void testExpressionMatchQuery() {
+    final List<LabelExpression> expressions = List.of(
+        new LabelExpression("os", Operator.NOT, List.of("windows")),
+        new LabelExpression("env", Operator.IN, List.of("prod", "staging")),
+        new LabelExpression("owner", Operator.ABSENT, List.of())
+    );
+
+    final String query = compiler.expressionMatchQuery(expressions, LabelSelectorMethod.AND);
+
+    assertThat(query, containsString(
+        "NOT EXISTS (SELECT 1 FROM resource_labels AS rl WHERE rl.id = resources.id"
+            + " AND rl.labels_key = :key0 AND rl.labels = :value0)"
+            + " AND EXISTS (SELECT 1 FROM resource_labels AS rl WHERE rl.id = resources.id"
+            + " AND rl.labels_key = :key1 AND rl.labels IN (:value1))"
+            + " AND NOT EXISTS (SELECT 1 FROM resource_labels AS rl WHERE rl.id = resources.id"
+            + " AND rl.labels_key = :key2)"));
+    // the values don't affect the compiled query
+    assertThat(compiler.expressionMatchQuery(List.of(
+        new LabelExpression("arch", Operator.NOT, List.of("arm")),
+        new LabelExpression("zone", Operator.IN, List.of("a")),
+        new LabelExpression("team", Operator.ABSENT, List.of())
+    ), LabelSelectorMethod.AND), equalTo(query));
+    assertThat(compiler.expressionMatchQuery(expressions, LabelSelectorMethod.OR),
+        containsString(":value0) OR EXISTS"));
+    // built on each use rather than cached
+    assertThat(compiler.cachedQueryCount(), equalTo(0));
+  }
+
+  @Test
+  public void testBindExpressions() {
+    final MapSqlParameterSource params = compiler.bindExpressions(List.of(
+        new LabelExpression("env", Operator.IN, List.of("prod", "staging")),
+        new LabelExpression("host", Operator.PREFIX, List.of("web_1%")),
+        new LabelExpression("owner", Operator.EXISTS, List.of())
+    ), "t-1");
+
+    assertThat(params.getValue("tenantId"), equalTo("t-1"));
+    assertThat(params.getValue("key0"), equalTo("env"));
+    assertThat(params.getValue("value0"), equalTo(List.of("prod", "staging")));
+    assertThat(params.getValue("value1"), equalTo("web\\_1\\%%"));
+    assertThat(params.getValue("key2"), equalTo("owner"));
+    assertThat(params.hasValue("value2"), equalTo(false));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBindExpressions_missingValue() {
+    compiler.bindExpressions(List.of(new LabelExpression("os", Operator.EQUALS, List.of())), "t-1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testExpressionMatchQuery_unexpectedValue() {
+    compiler.expressionMatchQuery(
+        List.of(new LabelExpression("os", Operator.EXISTS, List.of("linux"))),
+        LabelSelectorMethod.AND);
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LabelSelectorResultCacheTest {
+
+  private static final Map<String, String> SELECTOR = Map.of("os", "linux");
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private LabelSelectorResultCache cache;
+  private AtomicInteger loads;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties()
+        .setLabelSelectorCacheMaxIds(100);
+    meterRegistry = new SimpleMeterRegistry();
+    cache = new LabelSelectorResultCache(properties, meterRegistry);
+    loads = new AtomicInteger();
+  }
+
+  @Test
+  public void testGetMatchingIds() {
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L, 2L)),
+        contains(1L, 2L));
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(3L)),
+        contains(1L, 2L));
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.OR, loader(1L));
+    cache.getMatchingIds("t-2", SELECTOR, LabelSelectorMethod.AND, loader(5L));
+
+    assertThat(loads.get(), equalTo(3));
+    assertThat(meterRegistry.get("label_selector_cache.lookups").tag("result", "hit")
+        .counter().count(), equalTo(1.0));
+    assertThat(meterRegistry.get("label_selector_cache.lookups").tag("result", "miss")
+        .counter().count(), equalTo(3.0));
+    assertThat(meterRegistry.get("label_selector_cache.size").gauge().value(), equalTo(3.0));
+    assertThat(meterRegistry.get("label_selector_cache.ids").gauge().value(), equalTo(7.0));
+  }
+
+  @Test
+  public void testGetMatchingIdsIfPresent() {
+    assertThat(cache.getMatchingIdsIfPresent("t-1", SELECTOR, LabelSelectorMethod.AND),
+        nullValue());
+
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L, 2L));
+
+    assertThat(cache.getMatchingIdsIfPresent("t-1", SELECTOR, LabelSelectorMethod.AND),
+        contains(1L, 2L));
+    assertThat(cache.getMatchingIdsIfPresent("t-1", SELECTOR, LabelSelectorMethod.OR),
+        nullValue());
+    assertThat(loads.get(), equalTo(1));
+  }
+
+  @Test
+  public void testGetMatchingIds_labelOrderIgnored() {
+    final Map<String, String> selector = new LinkedHashMap<>();
+    selector.put("os", "linux");
+    selector.put("env", "prod");
+    final Map<String, String> reordered = new LinkedHashMap<>();
+    reordered.put("env", "prod");
+    reordered.put("os", "linux");
+
+    cache.getMatchingIds("t-1", selector, LabelSelectorMethod.AND, loader(1L));
+    cache.getMatchingIds("t-1", reordered, LabelSelectorMethod.AND, loader(1L));
+
+    assertThat(loads.get(), equalTo(1));
+  }
+
+  @Test
+  public void testDisabled() {
+    properties.setLabelSelectorCacheMaxIds(0);
+
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L));
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L));
+
+    assertThat(loads.get(), equalTo(2));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    // each of these results counts as two IDs
+    properties.setLabelSelectorCacheMaxIds(3);
+
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L));
+    cache.getMatchingIds("t-2", SELECTOR, LabelSelectorMethod.AND, loader(2L));
+
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(3L)),
+        contains(3L));
+    assertThat(loads.get(), equalTo(3));
+    assertThat(meterRegistry.get("label_selector_cache.evictions").counter().count(),
+        equalTo(2.0));
+  }
+
+  @Test
+  public void testResultLargerThanCache_notRetained() {
+    properties.setLabelSelectorCacheMaxIds(3);
+
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.OR, loader(1L));
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L, 2L, 3L));
+
+    assertThat(cache.getMatchingIdsIfPresent("t-1", SELECTOR, LabelSelectorMethod.AND),
+        nullValue());
+    assertThat(cache.getMatchingIdsIfPresent("t-1", SELECTOR, LabelSelectorMethod.OR),
+        contains(1L));
+    assertThat(meterRegistry.get("label_selector_cache.evictions").counter().count(),
+        equalTo(0.0));
+  }
+
+  @Test
+  public void testInvalidateTenant() {
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L));
+    cache.getMatchingIds("t-2", SELECTOR, LabelSelectorMethod.AND, loader(2L));
+
+    cache.invalidateTenant("t-1");
+
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(3L)),
+        contains(3L));
+    assertThat(cache.getMatchingIds("t-2", SELECTOR, LabelSelectorMethod.AND, loader(4L)),
+        contains(2L));
+  }
+
+  @Test
+  public void testInvalidatedWhileLoading_notRetained() {
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, () -> {
+      cache.invalidateTenant("t-1");
+      return List.of(1L);
+    });
+
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(2L)),
+        contains(2L));
+  }
+
+  @Test
+  public void testHandleResourceEvent() {
+    cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(1L));
+
+    cache.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setReattachedEnvoyId("e-1"));
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(2L)),
+        contains(1L));
+
+    cache.handleResourceEvent(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setLabelsChanged(true));
+    assertThat(cache.getMatchingIds("t-1", SELECTOR, LabelSelectorMethod.AND, loader(2L)),
+        contains(2L));
+  }
+
+  private Supplier<List<Long>> loader(Long... ids) {
+    return () -> {
+      loads.incrementAndGet();
+      return List.of(ids);
+    };
+  }
+}
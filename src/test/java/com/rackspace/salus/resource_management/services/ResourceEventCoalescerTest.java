@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceEventCoalescerTest {
+
+  @Mock
+  KafkaEgress kafkaEgress;
+
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private ResourceEventCoalescer coalescer;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties();
+    meterRegistry = new SimpleMeterRegistry();
+  }
+
+  @After
+  public void tearDown() {
+    if (coalescer != null) {
+      coalescer.stop();
+    }
+  }
+
+  @Test
+  public void testSubmit_disabledPassesThrough() {
+    coalescer = new ResourceEventCoalescer(kafkaEgress, properties, meterRegistry);
+
+    final ResourceEvent event = new ResourceEvent()
+        .setTenantId("t-1")
+        .setResourceId("r-1")
+        .setLabelsChanged(true);
+    coalescer.submit(event);
+
+    verify(kafkaEgress).sendResourceEvent(event);
+  }
+
+  @Test
+  public void testFlush_mergesPerResource() {
+    // long enough that only the explicit flush sends
+    properties.setKafkaEgressCoalescingWindow(Duration.ofHours(1));
+    coalescer = new ResourceEventCoalescer(kafkaEgress, properties, meterRegistry);
+
+    coalescer.submit(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setLabelsChanged(true));
+    coalescer.submit(new ResourceEvent().setTenantId("t-1").setResourceId("r-2")
+        .setDeleted(true));
+    coalescer.submit(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setReattachedEnvoyId("e-1"));
+    coalescer.submit(new ResourceEvent().setTenantId("t-1").setResourceId("r-1"));
+
+    verifyZeroInteractions(kafkaEgress);
+
+    coalescer.flush();
+
+    final InOrder inOrder = inOrder(kafkaEgress);
+    inOrder.verify(kafkaEgress).sendResourceEvent(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true)
+            .setReattachedEnvoyId("e-1"));
+    inOrder.verify(kafkaEgress).sendResourceEvent(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-2")
+            .setDeleted(true));
+    verifyNoMoreInteractions(kafkaEgress);
+
+    assertThat(meterRegistry.get("resource_event_coalescer.received").counter().count(),
+        equalTo(4.0));
+    assertThat(meterRegistry.get("resource_event_coalescer.emitted").counter().count(),
+        equalTo(2.0));
+  }
+
+  @Test
+  public void testFlush_waitsForFlushInProgress() throws Exception {
+    properties.setKafkaEgressCoalescingWindow(Duration.ofHours(1));
+    coalescer = new ResourceEventCoalescer(kafkaEgress, properties, meterRegistry);
+
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      sending.countDown();
+      release.await();
+      return null;
+    }).when(kafkaEgress).sendResourceEvent(any());
+
+    coalescer.submit(new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+        .setLabelsChanged(true));
+    final CompletableFuture<Void> inProgress = CompletableFuture.runAsync(coalescer::flush);
+    assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+    // nothing is pending, but the flush must not return while the other is still sending
+    final CompletableFuture<Void> waiting = CompletableFuture.runAsync(coalescer::flush);
+    try {
+      waiting.get(200, TimeUnit.MILLISECONDS);
+      fail("Flush returned while another flush was sending");
+    } catch (TimeoutException e) {
+      // expected
+    }
+
+    release.countDown();
+    inProgress.get(5, TimeUnit.SECONDS);
+    waiting.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testMerge_deletionDropsReattachment() {
+    final ResourceEvent merged = ResourceEventCoalescer.merge(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true)
+            .setReattachedEnvoyId("e-1"),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setDeleted(true)
+    );
+
+    assertThat(merged, equalTo(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true)
+            .setDeleted(true)));
+  }
+
+  @Test
+  public void testMerge_laterUpdateKeepsEarlierReattachment() {
+    final ResourceEvent merged = ResourceEventCoalescer.merge(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setReattachedEnvoyId("e-1"),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true)
+    );
+
+    assertThat(merged, equalTo(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setLabelsChanged(true)
+            .setReattachedEnvoyId("e-1")));
+  }
+
+  @Test
+  public void testMerge_laterReattachmentWins() {
+    final ResourceEvent merged = ResourceEventCoalescer.merge(
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setReattachedEnvoyId("e-1"),
+        new ResourceEvent().setTenantId("t-1").setResourceId("r-1")
+            .setReattachedEnvoyId("e-2")
+    );
+
+    assertThat(merged.getReattachedEnvoyId(), equalTo("e-2"));
+  }
+}
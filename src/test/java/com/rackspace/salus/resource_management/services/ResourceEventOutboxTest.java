@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020 Rackspace US, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rackspace.salus.resource_management.services;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.config.ResourceManagementProperties;
+import com.rackspace.salus.resource_management.entities.ResourceEventOutboxEntry;
+import com.rackspace.salus.resource_management.repositories.ResourceEventOutboxRepository;
+import com.rackspace.salus.telemetry.messaging.ResourceEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResourceEventOutboxTest {
+
+  @Mock
+  ResourceEventOutboxRepository outboxRepository;
+
+  @Mock
+  KafkaEgress kafkaEgress;
+
+  @Mock
+  PlatformTransactionManager transactionManager;
+
+  @Captor
+  ArgumentCaptor<ResourceEventOutboxEntry> entryArg;
+
+  private ObjectMapper objectMapper = new ObjectMapper();
+  private ResourceManagementProperties properties;
+  private SimpleMeterRegistry meterRegistry;
+  private ResourceEventOutbox outbox;
+
+  @Before
+  public void setUp() {
+    properties = new ResourceManagementProperties()
+        .setOutboxEnabled(true);
+    meterRegistry = new SimpleMeterRegistry();
+    outbox = new ResourceEventOutbox(outboxRepository, kafkaEgress, objectMapper, properties,
+        transactionManager, meterRegistry);
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    final ResourceEvent event = new ResourceEvent()
+        .setTenantId("t-1")
+        .setResourceId("r-1")
+        .setLabelsChanged(true);
+
+    outbox.append(event);
+
+    verify(outboxRepository).save(entryArg.capture());
+    assertThat(entryArg.getValue().getTenantId(), equalTo("t-1"));
+    assertThat(entryArg.getValue().getResourceId(), equalTo("r-1"));
+    assertThat(objectMapper.readValue(entryArg.getValue().getPayload(), ResourceEvent.class),
+        equalTo(event));
+  }
+
+  @Test
+  public void testRelay_drainsAndDeletesAcknowledged() {
+    final List<ResourceEventOutboxEntry> entries = Arrays.asList(entry(1, "r-1"), entry(2, "r-2"));
+    when(outboxRepository.findAllByOrderByIdAsc(PageRequest.of(0, 500)))
+        .thenReturn(entries);
+    when(kafkaEgress.sendResourceEventAsync(any()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    outbox.relay();
+
+    verify(kafkaEgress).sendResourceEventAsync(event("r-1"));
+    verify(kafkaEgress).sendResourceEventAsync(event("r-2"));
+    verify(outboxRepository).deleteInBatch(entries);
+    assertThat(meterRegistry.get("resource_event_outbox.relayed").counter().count(),
+        equalTo(2.0));
+  }
+
+  @Test
+  public void testRelay_keepsFailedAndLaterEntries() {
+    final List<ResourceEventOutboxEntry> entries =
+        Arrays.asList(entry(1, "r-1"), entry(2, "r-2"), entry(3, "r-3"));
+    when(outboxRepository.findAllByOrderByIdAsc(PageRequest.of(0, 500)))
+        .thenReturn(entries);
+    when(kafkaEgress.sendResourceEventAsync(event("r-1")))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    when(kafkaEgress.sendResourceEventAsync(event("r-2")))
+        .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("broker unavailable")));
+    when(kafkaEgress.sendResourceEventAsync(event("r-3")))
+        .thenReturn(CompletableFuture.completedFuture(null));
+
+    outbox.relay();
+
+    verify(outboxRepository).deleteInBatch(Collections.singletonList(entries.get(0)));
+    assertThat(meterRegistry.get("resource_event_outbox.relay_failures").counter().count(),
+        equalTo(1.0));
+  }
+
+  @Test
+  public void testVerifyTable() {
+    outbox.verifyTable();
+
+    verify(outboxRepository).existsById(0L);
+  }
+
+  @Test
+  public void testVerifyTable_missing() {
+    when(outboxRepository.existsById(0L))
+        .thenThrow(new InvalidDataAccessResourceUsageException("Table doesn't exist"));
+
+    try {
+      outbox.verifyTable();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), startsWith("The resource event outbox is enabled"));
+    }
+  }
+
+  @Test
+  public void testVerifyTable_disabled() {
+    properties.setOutboxEnabled(false);
+
+    outbox.verifyTable();
+
+    verify(outboxRepository, never()).existsById(any());
+  }
+
+  @Test
+  public void testRelay_disabled() {
+    properties.setOutboxEnabled(false);
+
+    outbox.relay();
+
+    verify(outboxRepository, never()).findAllByOrderByIdAsc(any());
+  }
+
+  private ResourceEventOutboxEntry entry(long id, String resourceId) {
+    try {
+      return new ResourceEventOutboxEntry()
+          .setId(id)
+          .setTenantId("t-1")
+          .setResourceId(resourceId)
+          .setPayload(objectMapper.writeValueAsString(event(resourceId)));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static ResourceEvent event(String resourceId) {
+    return new ResourceEvent()
+        .setTenantId("t-1")
+        .setResourceId(resourceId)
+        .setLabelsChanged(true);
+  }
+}
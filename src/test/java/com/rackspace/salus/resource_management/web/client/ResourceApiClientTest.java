@@ -19,18 +19,26 @@ package com.rackspace.salus.resource_management.web.client;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.jsonPath;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
+import com.rackspace.salus.resource_management.web.model.LabelSelectorBatch;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.telemetry.model.LabelSelectorMethod;
 import com.rackspace.salus.telemetry.repositories.TenantMetadataRepository;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.Test;
@@ -41,6 +49,7 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
@@ -106,4 +115,155 @@ public class ResourceApiClientTest {
 
     assertThat(result, equalTo(tenantIds));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors() throws JsonProcessingException {
+    final LabelSelector selector = new LabelSelector();
+    selector.setName("m-1");
+    selector.setLabels(Collections.singletonMap("env", "prod"));
+    final LabelSelectorBatch batch = new LabelSelectorBatch();
+    batch.setSelectors(List.of(selector));
+    final Map<String, List<String>> expected = Map.of("m-1", List.of("r-1", "r-2"));
+
+    mockServer.expect(requestTo("/api/admin/resources-by-label-selectors/t-1"))
+        .andExpect(method(HttpMethod.POST))
+        .andExpect(content().json(objectMapper.writeValueAsString(batch)))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON
+        ));
+
+    final Map<String, List<String>> result = resourceApiClient
+        .getResourceIdsWithLabelSelectors("t-1", List.of(selector));
+
+    assertThat(result, equalTo(expected));
+  }
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors_splitIntoBatches() throws JsonProcessingException {
+    final List<LabelSelector> selectors = IntStream.range(0, LabelSelectorBatch.MAX_SELECTORS + 1)
+        .mapToObj(i -> {
+          final LabelSelector selector = new LabelSelector();
+          selector.setName("m-" + i);
+          selector.setLabels(Collections.singletonMap("env", "prod"));
+          return selector;
+        })
+        .collect(Collectors.toList());
+    final LabelSelectorBatch first = new LabelSelectorBatch();
+    first.setSelectors(selectors.subList(0, LabelSelectorBatch.MAX_SELECTORS));
+    final LabelSelectorBatch second = new LabelSelectorBatch();
+    second.setSelectors(selectors.subList(LabelSelectorBatch.MAX_SELECTORS, selectors.size()));
+
+    mockServer.expect(requestTo("/api/admin/resources-by-label-selectors/t-1"))
+        .andExpect(content().json(objectMapper.writeValueAsString(first)))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(Map.of("m-0", List.of("r-1"))),
+            MediaType.APPLICATION_JSON
+        ));
+    mockServer.expect(requestTo("/api/admin/resources-by-label-selectors/t-1"))
+        .andExpect(content().json(objectMapper.writeValueAsString(second)))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(
+                Map.of("m-" + LabelSelectorBatch.MAX_SELECTORS, List.of("r-2"))),
+            MediaType.APPLICATION_JSON
+        ));
+
+    final Map<String, List<String>> result = resourceApiClient
+        .getResourceIdsWithLabelSelectors("t-1", selectors);
+
+    mockServer.verify();
+    assertThat(result, equalTo(Map.of(
+        "m-0", List.of("r-1"),
+        "m-" + LabelSelectorBatch.MAX_SELECTORS, List.of("r-2"))));
+  }
+
+  @Test
+  public void testCountResourcesWithLabels() {
+    mockServer.expect(requestTo("/api/admin/resources-by-label/t-1/AND/count?env=prod"))
+        .andRespond(withSuccess("7", MediaType.APPLICATION_JSON));
+
+    assertThat(resourceApiClient.countResourcesWithLabels(
+        "t-1", Collections.singletonMap("env", "prod"), LabelSelectorMethod.AND), equalTo(7L));
+  }
+
+  @Test
+  public void testExistsResourcesWithLabels() {
+    mockServer.expect(requestTo("/api/admin/resources-by-label/t-1/OR/exists?env=prod"))
+        .andRespond(withSuccess("false", MediaType.APPLICATION_JSON));
+
+    assertThat(resourceApiClient.existsResourcesWithLabels(
+        "t-1", Collections.singletonMap("env", "prod"), LabelSelectorMethod.OR), equalTo(false));
+  }
+
+  @Test
+  public void testGetResourcesWithLabelExpressions() throws JsonProcessingException {
+    final List<ResourceDTO> expectedResources = IntStream.range(0, 2)
+        .mapToObj(value -> podamFactory.manufacturePojo(ResourceDTO.class))
+        .collect(Collectors.toList());
+    final List<LabelExpression> expressions = List.of(
+        new LabelExpression("env", LabelExpression.Operator.NOT, List.of("dev")));
+
+    mockServer.expect(requestTo("/api/admin/resources-by-label-expressions/t-1"))
+        .andExpect(method(HttpMethod.POST))
+        .andExpect(jsonPath("$.logicalOperator").value("AND"))
+        .andExpect(jsonPath("$.expressions[0].operator").value("NOT"))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(expectedResources), MediaType.APPLICATION_JSON
+        ));
+
+    final List<ResourceDTO> resources = resourceApiClient
+        .getResourcesWithLabelExpressions("t-1", expressions, LabelSelectorMethod.AND);
+
+    assertThat(resources, equalTo(expectedResources));
+  }
+
+  @Test
+  public void testGetTenantResourcesByCursor() throws JsonProcessingException {
+    final CursorPagedContent<ResourceDTO> expected = new CursorPagedContent<ResourceDTO>()
+        .setContent(List.of(podamFactory.manufacturePojo(ResourceDTO.class)))
+        .setNext(CursorPagedContent.encodeCursor(12));
+
+    mockServer.expect(requestTo("/api/tenant/t-1/resources-by-cursor?size=1&includeTotal=false&cursor="
+        + CursorPagedContent.encodeCursor(11)))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON
+        ));
+
+    final CursorPagedContent<ResourceDTO> result = resourceApiClient
+        .getTenantResourcesByCursor("t-1", CursorPagedContent.encodeCursor(11), 1, false);
+
+    assertThat(result, equalTo(expected));
+  }
+
+  @Test
+  public void testGetAllResourcesByCursor_firstPage() throws JsonProcessingException {
+    final CursorPagedContent<ResourceDTO> expected = new CursorPagedContent<ResourceDTO>()
+        .setContent(List.of())
+        .setTotalElements(0L);
+
+    mockServer.expect(requestTo("/api/admin/resources-by-cursor?size=10&includeTotal=true"))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON
+        ));
+
+    assertThat(resourceApiClient.getAllResourcesByCursor(null, 10, true), equalTo(expected));
+  }
+
+  @Test
+  public void testGetResourcesWithLabelsByCursor() throws JsonProcessingException {
+    final CursorPagedContent<ResourceDTO> expected = new CursorPagedContent<ResourceDTO>()
+        .setContent(List.of(podamFactory.manufacturePojo(ResourceDTO.class)))
+        .setNext(CursorPagedContent.encodeCursor(12));
+
+    mockServer.expect(requestTo("/api/tenant/t-1/resources-by-label/AND/cursor"
+        + "?os=linux&size=1&includeTotal=false&cursor=" + CursorPagedContent.encodeCursor(11)))
+        .andRespond(withSuccess(
+            objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON
+        ));
+
+    final CursorPagedContent<ResourceDTO> result = resourceApiClient.getResourcesWithLabelsByCursor(
+        "t-1", Map.of("os", "linux"), LabelSelectorMethod.AND,
+        CursorPagedContent.encodeCursor(11), 1, false);
+
+    assertThat(result, equalTo(expected));
+  }
+}
@@ -23,23 +23,35 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.stringContainsInOrder;
 import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rackspace.salus.common.util.SpringResourceUtils;
+import com.rackspace.salus.resource_management.config.RoleToViewProperties;
 import com.rackspace.salus.resource_management.services.ResourceManagement;
+import com.rackspace.salus.resource_management.web.model.CursorPagedContent;
+import com.rackspace.salus.resource_management.web.model.LabelExpression;
+import com.rackspace.salus.resource_management.web.model.LabelExpressionQuery;
+import com.rackspace.salus.resource_management.web.model.LabelSelector;
+import com.rackspace.salus.resource_management.web.model.LabelSelectorBatch;
 import com.rackspace.salus.resource_management.web.model.ResourceCreate;
 import com.rackspace.salus.resource_management.web.model.ResourceDTO;
 import com.rackspace.salus.resource_management.web.model.ResourceUpdate;
@@ -56,10 +68,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -72,11 +86,14 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.http.MediaType;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import uk.co.jemos.podam.api.PodamFactory;
@@ -85,7 +102,7 @@ import uk.co.jemos.podam.api.PodamFactoryImpl;
 @RunWith(SpringRunner.class)
 @WebMvcTest(controllers = ResourceApiController.class)
 @ActiveProfiles("test")
-@Import({SimpleMeterRegistry.class})
+@Import({SimpleMeterRegistry.class, RoleToViewProperties.class})
 public class ResourceApiControllerTest {
 
   // A timestamp to be used in tests that translates to "1970-01-02T03:46:40Z"
@@ -114,7 +131,7 @@ public class ResourceApiControllerTest {
     String resourceId = RandomStringUtils.randomAlphabetic( 8 );
     String errorMsg = String.format("No resource found for %s on tenant %s", resourceId, tenantId);
     NotFoundException exception = new NotFoundException(errorMsg);
-    when(resourceManagement.getResourceDTO(anyString(), anyString()))
+    when(resourceManagement.getResourceDTO(anyString(), anyString(), anyBoolean()))
         .thenThrow(exception);
     when(tenantMetadataRepository.existsByTenantId(tenantId))
         .thenReturn(true);
@@ -166,7 +183,7 @@ public class ResourceApiControllerTest {
         .setUpdatedTimestamp(DEFAULT_TIMESTAMP.toString())
         .setAssociatedWithEnvoy(true)
         .setId(1001L);
-    when(resourceManagement.getResourceDTO(any(), any()))
+    when(resourceManagement.getResourceDTO(any(), any(), anyBoolean()))
         .thenReturn(expectedResource);
 
     mockMvc.perform(get(
@@ -179,7 +196,7 @@ public class ResourceApiControllerTest {
             SpringResourceUtils.readContent(
                 "ResourceApiControllerTest/single_public_resource_customer.json"), true));
 
-    verify(resourceManagement).getResourceDTO("t-1", "r-1");
+    verify(resourceManagement).getResourceDTO("t-1", "r-1", false);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -196,7 +213,7 @@ public class ResourceApiControllerTest {
         .setUpdatedTimestamp(DEFAULT_TIMESTAMP.toString())
         .setAssociatedWithEnvoy(false)
         .setId(1001L);
-    when(resourceManagement.getResourceDTO(any(), any()))
+    when(resourceManagement.getResourceDTO(any(), any(), anyBoolean()))
         .thenReturn(expectedResource);
 
     mockMvc.perform(get(
@@ -209,7 +226,7 @@ public class ResourceApiControllerTest {
             SpringResourceUtils.readContent(
                 "ResourceApiControllerTest/single_public_resource_employee.json"), true));
 
-    verify(resourceManagement).getResourceDTO("t-1", "r-1");
+    verify(resourceManagement).getResourceDTO("t-1", "r-1", false);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -227,7 +244,7 @@ public class ResourceApiControllerTest {
         .setAssociatedWithEnvoy(false)
         .setEnvoyId("e-1")
         .setId(1001L);
-    when(resourceManagement.getResourceDTO(any(), any()))
+    when(resourceManagement.getResourceDTO(any(), any(), anyBoolean()))
         .thenReturn(expectedResource);
 
     mockMvc.perform(get(
@@ -240,7 +257,7 @@ public class ResourceApiControllerTest {
             SpringResourceUtils.readContent(
                 "ResourceApiControllerTest/single_public_resource_admin.json"), true));
 
-    verify(resourceManagement).getResourceDTO("t-1", "r-1");
+    verify(resourceManagement).getResourceDTO("t-1", "r-1", true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -250,7 +267,7 @@ public class ResourceApiControllerTest {
     String resourceId = RandomStringUtils.randomAlphabetic( 8 );
     String errorMsg = String.format("No resource found for %s on tenant %s", resourceId, tenantId);
     NotFoundException exception = new NotFoundException(errorMsg);
-    when(resourceManagement.getResourceDTO(anyString(), anyString()))
+    when(resourceManagement.getResourceDTO(anyString(), anyString(), anyBoolean()))
         .thenThrow(exception);
 
     mockMvc.perform(get("/api/tenant/{tenantId}/resources/{resourceId}", tenantId, resourceId)
@@ -281,13 +298,17 @@ public class ResourceApiControllerTest {
         PageRequest.of(page, pageSize),
         numberOfResources);
 
-    when(resourceManagement.getResourceDTOs(anyString(), any()))
-        .thenReturn(pageOfResources);
+    when(resourceManagement.getResourceDTOs(anyString(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(pageOfResources));
 
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
 
-    mockMvc.perform(get("/api/tenant/{tenantId}/resources", tenantId)
+    final MvcResult mvcResult = mockMvc.perform(get("/api/tenant/{tenantId}/resources", tenantId)
         .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk())
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
@@ -295,7 +316,7 @@ public class ResourceApiControllerTest {
         .andExpect(jsonPath("$.totalPages", equalTo(1)))
         .andExpect(jsonPath("$.totalElements", equalTo(numberOfResources)));
 
-    verify(resourceManagement).getResourceDTOs(tenantId, PageRequest.of(0, 20));
+    verify(resourceManagement).getResourceDTOs(tenantId, PageRequest.of(0, 20), true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -316,15 +337,19 @@ public class ResourceApiControllerTest {
 
     assertThat(pageOfResourceDTOs.getContent().size(), equalTo(pageSize));
 
-    when(resourceManagement.getResourceDTOs(anyString(), any()))
-        .thenReturn(pageOfResourceDTOs);
+    when(resourceManagement.getResourceDTOs(anyString(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(pageOfResourceDTOs));
 
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
 
-    mockMvc.perform(get("/api/tenant/{tenantId}/resources", tenantId)
+    final MvcResult mvcResult = mockMvc.perform(get("/api/tenant/{tenantId}/resources", tenantId)
         .contentType(MediaType.APPLICATION_JSON)
         .param("page", Integer.toString(page))
         .param("size", Integer.toString(pageSize)))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk())
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
@@ -332,7 +357,7 @@ public class ResourceApiControllerTest {
         .andExpect(jsonPath("$.totalPages", equalTo((numberOfResources + pageSize - 1) / pageSize)))
         .andExpect(jsonPath("$.totalElements", equalTo(numberOfResources)));
 
-    verify(resourceManagement).getResourceDTOs(tenantId, PageRequest.of(page, pageSize));
+    verify(resourceManagement).getResourceDTOs(tenantId, PageRequest.of(page, pageSize), true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -341,7 +366,7 @@ public class ResourceApiControllerTest {
     ResourceDTO resource = podamFactory.manufacturePojo(ResourceDTO.class);
     String resourceId = "resource28-13:databaseNode.com";
     resource.setResourceId(resourceId);
-    when(resourceManagement.createResource(anyString(), any()))
+    when(resourceManagement.createResource(anyString(), any(), anyBoolean()))
         .thenReturn(resource);
 
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
@@ -356,7 +381,27 @@ public class ResourceApiControllerTest {
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
 
-    verify(resourceManagement).createResource(tenantId, create);
+    verify(resourceManagement).createResource(tenantId, create, true);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @WithMockUser(roles = "CUSTOMER")
+  @Test
+  public void testCreateResourceAsCustomer() throws Exception {
+    ResourceDTO resource = podamFactory.manufacturePojo(ResourceDTO.class);
+    when(resourceManagement.createResource(anyString(), any(), anyBoolean()))
+        .thenReturn(resource);
+
+    ResourceCreate create = podamFactory.manufacturePojo(ResourceCreate.class);
+    create.setResourceId("r-1");
+    mockMvc.perform(post("/api/tenant/{tenantId}/resources", "t-1")
+        .content(objectMapper.writeValueAsString(create))
+        .contentType(MediaType.APPLICATION_JSON)
+        .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isCreated());
+
+    // the customer's view cannot see the envoy ID, so it is not looked up
+    verify(resourceManagement).createResource("t-1", create, false);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -364,7 +409,7 @@ public class ResourceApiControllerTest {
   public void testCreateDuplicateResource() throws Exception {
     String error = "Zone already exists with name z-1 on tenant t-1";
     String resourceId = RandomStringUtils.randomAlphabetic(8);
-    when(resourceManagement.createResource(anyString(), any()))
+    when(resourceManagement.createResource(anyString(), any(), anyBoolean()))
         .thenThrow(new AlreadyExistsException(error));
 
     String tenantId = RandomStringUtils.randomAlphabetic( 8 );
@@ -376,7 +421,7 @@ public class ResourceApiControllerTest {
         .characterEncoding(StandardCharsets.UTF_8.name()))
         .andExpect(status().isUnprocessableEntity());
 
-    verify(resourceManagement).createResource(tenantId, create);
+    verify(resourceManagement).createResource(tenantId, create, true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -439,7 +484,7 @@ public class ResourceApiControllerTest {
   @Test
   public void testUpdateResource() throws Exception {
     ResourceDTO resourceDTO = podamFactory.manufacturePojo(ResourceDTO.class);
-    when(resourceManagement.updateResource(anyString(), anyString(), any()))
+    when(resourceManagement.updateResource(anyString(), anyString(), any(), anyBoolean()))
         .thenReturn(resourceDTO);
     resourceDTO.setResourceId(RandomStringUtils.randomAlphabetic(8));
 
@@ -456,7 +501,7 @@ public class ResourceApiControllerTest {
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
 
-    verify(resourceManagement).updateResource(tenantId, resourceId, update);
+    verify(resourceManagement).updateResource(tenantId, resourceId, update, true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -477,11 +522,15 @@ public class ResourceApiControllerTest {
         PageRequest.of(page, pageSize),
         numberOfResources);
 
-    when(resourceManagement.getAllResourceDTOs(any()))
-        .thenReturn(pageOfResourceDTOs);
+    when(resourceManagement.getAllResourceDTOs(any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(pageOfResourceDTOs));
 
-    mockMvc.perform(get("/api/admin/resources")
+    final MvcResult mvcResult = mockMvc.perform(get("/api/admin/resources")
         .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk())
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
@@ -489,7 +538,7 @@ public class ResourceApiControllerTest {
         .andExpect(jsonPath("$.totalPages", equalTo(1)))
         .andExpect(jsonPath("$.totalElements", equalTo(numberOfResources)));
 
-    verify(resourceManagement).getAllResourceDTOs(PageRequest.of(0, 20));
+    verify(resourceManagement).getAllResourceDTOs(PageRequest.of(0, 20), true);
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -512,10 +561,11 @@ public class ResourceApiControllerTest {
         }).collect(Collectors.toList());
     assertThat(expectedData.size(), equalTo(resources.size()));
 
-    Stream<Resource> resourceStream = resources.stream();
-
-    when(resourceManagement.getResources(true))
-        .thenReturn(resourceStream);
+    doAnswer(invocation -> {
+      final Consumer<ResourceDTO> consumer = invocation.getArgument(1);
+      resources.forEach(r -> consumer.accept(new ResourceDTO(r, null)));
+      return null;
+    }).when(resourceManagement).forEachResourceDTO(eq(true), any());
 
     mockMvc.perform(get("/api/envoys"))
         .andDo(print())
@@ -523,7 +573,7 @@ public class ResourceApiControllerTest {
         .andExpect(content().contentTypeCompatibleWith("text/event-stream;charset=UTF-8"))
         .andExpect(content().string(stringContainsInOrder(expectedData)));
 
-    verify(resourceManagement).getResources(true);
+    verify(resourceManagement).forEachResourceDTO(eq(true), any());
     verifyNoMoreInteractions(resourceManagement);
   }
 
@@ -534,20 +584,25 @@ public class ResourceApiControllerTest {
         .mapToObj(value -> podamFactory.manufacturePojo(ResourceDTO.class))
         .collect(Collectors.toList());
 
-    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any()))
-        .thenReturn(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size()));
+    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size())));
 
-    mockMvc.perform(get(
+    final MvcResult mvcResult = mockMvc.perform(get(
         "/api/tenant/{tenantId}/resources-by-label/AND?env=prod",
         "t-1"
     ).accept(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk());
 
     verify(resourceManagement).getResourceDTOsFromLabels(
         Collections.singletonMap("env", "prod"),
         "t-1",
         LabelSelectorMethod.AND,
-        PageRequest.of(0, 20)
+        PageRequest.of(0, 20),
+        true
     );
 
     verifyNoMoreInteractions(resourceManagement);
@@ -560,10 +615,10 @@ public class ResourceApiControllerTest {
         .mapToObj(value -> podamFactory.manufacturePojo(ResourceDTO.class))
         .collect(Collectors.toList());
 
-    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any()))
-        .thenReturn(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size()));
+    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size())));
 
-    mockMvc.perform(
+    final MvcResult mvcResult = mockMvc.perform(
         get(
             "/api/tenant/{tenantId}/resources-by-label/AND",
             "t-1"
@@ -573,13 +628,18 @@ public class ResourceApiControllerTest {
             .param("size", "101")
             .accept(MediaType.APPLICATION_JSON)
     )
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk());
 
     verify(resourceManagement).getResourceDTOsFromLabels(
         Collections.singletonMap("env", "prod"),
         "t-1",
         LabelSelectorMethod.AND,
-        PageRequest.of(2, 101)
+        PageRequest.of(2, 101),
+        true
     );
 
     verifyNoMoreInteractions(resourceManagement);
@@ -595,10 +655,10 @@ public class ResourceApiControllerTest {
         .mapToObj(value -> podamFactory.manufacturePojo(ResourceDTO.class))
         .collect(Collectors.toList());
 
-    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any()))
-        .thenReturn(new PageImpl<>(expectedResources, PageRequest.of(0, maxPageSize), expectedResources.size()));
+    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl<>(expectedResources, PageRequest.of(0, maxPageSize), expectedResources.size())));
 
-    mockMvc.perform(
+    final MvcResult mvcResult = mockMvc.perform(
         get(
             "/api/tenant/{tenantId}/resources-by-label/AND",
             "t-1"
@@ -608,6 +668,10 @@ public class ResourceApiControllerTest {
             .param("size", String.valueOf(Integer.MAX_VALUE))
             .accept(MediaType.APPLICATION_JSON)
     )
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk());
 
     verify(resourceManagement).getResourceDTOsFromLabels(
@@ -615,7 +679,8 @@ public class ResourceApiControllerTest {
         "t-1",
         LabelSelectorMethod.AND,
         // Confirm the request page size was capped at the maxPageSize configured by Spring Boot
-        PageRequest.of(0, maxPageSize)
+        PageRequest.of(0, maxPageSize),
+        true
     );
 
     verifyNoMoreInteractions(resourceManagement);
@@ -628,10 +693,10 @@ public class ResourceApiControllerTest {
         .mapToObj(value -> podamFactory.manufacturePojo(ResourceDTO.class))
         .collect(Collectors.toList());
 
-    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any()))
-        .thenReturn(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size()));
+    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl<>(expectedResources, Pageable.unpaged(), expectedResources.size())));
 
-    mockMvc.perform(
+    final MvcResult mvcResult = mockMvc.perform(
         get(
             "/api/admin/resources-by-label/{tenantId}/{logicalOperator}",
             "t-1", "AND"
@@ -639,13 +704,18 @@ public class ResourceApiControllerTest {
             .param("env", "prod")
             .accept(MediaType.APPLICATION_JSON)
     )
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk());
 
     verify(resourceManagement).getResourceDTOsFromLabels(
         Collections.singletonMap("env", "prod"),
         "t-1",
         LabelSelectorMethod.AND,
-        Pageable.unpaged()
+        Pageable.unpaged(),
+        true
     );
 
     verifyNoMoreInteractions(resourceManagement);
@@ -720,19 +790,440 @@ public class ResourceApiControllerTest {
     final List<ResourceDTO> expectedResources = podamFactory.manufacturePojo(ArrayList.class, ResourceDTO.class);
 
 
-    when(resourceManagement.getResourcesBySearchString(any(), any(), any()))
-        .thenReturn(new PageImpl(expectedResources));
+    when(resourceManagement.getResourcesBySearchString(any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl(expectedResources)));
 
-    mockMvc.perform(get(
+    final MvcResult mvcResult = mockMvc.perform(get(
         "/api/tenant/{tenantId}/search",
         "t-1"
     ).param("q", "searchValue").accept(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(mvcResult))
         .andExpect(status().isOk())
         .andExpect(content()
             .contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
     Pageable page = PageRequest.of(0, 20);
-    verify(resourceManagement).getResourcesBySearchString("t-1", "searchValue", page);
+    verify(resourceManagement).getResourcesBySearchString("t-1", "searchValue", page, true);
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors() throws Exception {
+    final LabelSelector linux = new LabelSelector();
+    linux.setName("m-1");
+    linux.setLabels(Collections.singletonMap("os", "linux"));
+    final LabelSelector prod = new LabelSelector();
+    prod.setName("m-2");
+    prod.setLabels(Collections.singletonMap("env", "prod"));
+    prod.setLogicalOperator(LabelSelectorMethod.OR);
+    final LabelSelectorBatch batch = new LabelSelectorBatch();
+    batch.setSelectors(List.of(linux, prod));
+
+    when(resourceManagement.getResourceIdsFromLabelSelectors(anyString(), any()))
+        .thenReturn(Map.of("m-1", List.of("r-1", "r-2"), "m-2", List.of()));
+
+    mockMvc.perform(post("/api/admin/resources-by-label-selectors/{tenantId}", "t-1")
+        .content(objectMapper.writeValueAsString(batch))
+        .contentType(MediaType.APPLICATION_JSON)
+        .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$['m-1']", hasSize(2)))
+        .andExpect(jsonPath("$['m-1'][0]", is("r-1")))
+        .andExpect(jsonPath("$['m-2']", hasSize(0)));
 
+    verify(resourceManagement).getResourceIdsFromLabelSelectors("t-1", List.of(linux, prod));
     verifyNoMoreInteractions(resourceManagement);
   }
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors_noSelectors() throws Exception {
+    final LabelSelectorBatch batch = new LabelSelectorBatch();
+    batch.setSelectors(List.of());
+
+    mockMvc.perform(post("/api/admin/resources-by-label-selectors/{tenantId}", "t-1")
+        .content(objectMapper.writeValueAsString(batch))
+        .contentType(MediaType.APPLICATION_JSON)
+        .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors_tooManySelectors() throws Exception {
+    final LabelSelectorBatch batch = new LabelSelectorBatch();
+    batch.setSelectors(IntStream.range(0, LabelSelectorBatch.MAX_SELECTORS + 1)
+        .mapToObj(i -> {
+          final LabelSelector selector = new LabelSelector();
+          selector.setName("m-" + i);
+          return selector;
+        })
+        .collect(Collectors.toList()));
+
+    mockMvc.perform(post("/api/admin/resources-by-label-selectors/{tenantId}", "t-1")
+        .content(objectMapper.writeValueAsString(batch))
+        .contentType(MediaType.APPLICATION_JSON)
+        .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetResourceIdsWithLabelSelectors_tooManyLabels() throws Exception {
+    final LabelSelector selector = new LabelSelector();
+    selector.setName("m-1");
+    selector.setLabels(IntStream.range(0, LabelSelector.MAX_LABELS + 1)
+        .boxed()
+        .collect(Collectors.toMap(i -> "key" + i, i -> "value" + i)));
+    final LabelSelectorBatch batch = new LabelSelectorBatch();
+    batch.setSelectors(List.of(selector));
+
+    mockMvc.perform(post("/api/admin/resources-by-label-selectors/{tenantId}", "t-1")
+        .content(objectMapper.writeValueAsString(batch))
+        .contentType(MediaType.APPLICATION_JSON)
+        .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testCountTenantResourcesWithLabels() throws Exception {
+    when(resourceManagement.countResourcesFromLabels(any(), anyString(), any()))
+        .thenReturn(12L);
+
+    mockMvc.perform(get("/api/admin/resources-by-label/{tenantId}/{logicalOperator}/count",
+        "t-1", LabelSelectorMethod.AND)
+        .param("os", "linux")
+        .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(content().string("12"));
+
+    verify(resourceManagement).countResourcesFromLabels(
+        Collections.singletonMap("os", "linux"), "t-1", LabelSelectorMethod.AND);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testExistsTenantResourcesWithLabels() throws Exception {
+    when(resourceManagement.existsResourcesFromLabels(any(), anyString(), any()))
+        .thenReturn(true);
+
+    mockMvc.perform(get("/api/admin/resources-by-label/{tenantId}/{logicalOperator}/exists",
+        "t-1", LabelSelectorMethod.OR)
+        .param("os", "linux")
+        .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(content().string("true"));
+
+    verify(resourceManagement).existsResourcesFromLabels(
+        Collections.singletonMap("os", "linux"), "t-1", LabelSelectorMethod.OR);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetPagedResourcesWithLabelExpressions() throws Exception {
+    final Page<ResourceDTO> page = new PageImpl<>(
+        List.of(podamFactory.manufacturePojo(ResourceDTO.class)), PageRequest.of(0, 1), 1);
+    when(resourceManagement.getResourceDTOsFromLabelExpressions(any(), anyString(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(page));
+
+    final LabelExpressionQuery query = new LabelExpressionQuery();
+    query.setExpressions(List.of(
+        new LabelExpression("os", LabelExpression.Operator.IN, List.of("linux", "bsd"))));
+    query.setLogicalOperator(LabelSelectorMethod.OR);
+
+    final MvcResult result = mockMvc.perform(
+        post("/api/tenant/{tenantId}/resources-by-label-expressions", "t-1")
+            .param("size", "1")
+            .content(objectMapper.writeValueAsString(query))
+            .contentType(MediaType.APPLICATION_JSON)
+            .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content", hasSize(1)))
+        .andExpect(jsonPath("$.totalElements", is(1)));
+
+    verify(resourceManagement).getResourceDTOsFromLabelExpressions(
+        query.getExpressions(), "t-1", LabelSelectorMethod.OR, PageRequest.of(0, 1), true);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetPagedResourcesWithLabelExpressions_tooManyExpressions() throws Exception {
+    final LabelExpressionQuery query = new LabelExpressionQuery();
+    query.setExpressions(IntStream.range(0, LabelExpressionQuery.MAX_EXPRESSIONS + 1)
+        .mapToObj(i -> new LabelExpression("key" + i, LabelExpression.Operator.EXISTS, List.of()))
+        .collect(Collectors.toList()));
+
+    mockMvc.perform(
+        post("/api/tenant/{tenantId}/resources-by-label-expressions", "t-1")
+            .content(objectMapper.writeValueAsString(query))
+            .contentType(MediaType.APPLICATION_JSON)
+            .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetPagedResourcesWithLabelExpressions_tooManyValues() throws Exception {
+    final LabelExpressionQuery query = new LabelExpressionQuery();
+    query.setExpressions(List.of(new LabelExpression("os", LabelExpression.Operator.IN,
+        IntStream.range(0, LabelExpression.MAX_VALUES + 1)
+            .mapToObj(i -> "value" + i)
+            .collect(Collectors.toList()))));
+
+    mockMvc.perform(
+        post("/api/tenant/{tenantId}/resources-by-label-expressions", "t-1")
+            .content(objectMapper.writeValueAsString(query))
+            .contentType(MediaType.APPLICATION_JSON)
+            .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetPagedResourcesWithLabelExpressions_missingOperator() throws Exception {
+    final LabelExpressionQuery query = new LabelExpressionQuery();
+    query.setExpressions(List.of(new LabelExpression("os", null, List.of("linux"))));
+
+    mockMvc.perform(
+        post("/api/tenant/{tenantId}/resources-by-label-expressions", "t-1")
+            .content(objectMapper.writeValueAsString(query))
+            .contentType(MediaType.APPLICATION_JSON)
+            .characterEncoding(StandardCharsets.UTF_8.name()))
+        .andExpect(status().isBadRequest());
+
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetAllForTenantByCursor() throws Exception {
+    final CursorPagedContent<ResourceDTO> page = new CursorPagedContent<ResourceDTO>()
+        .setContent(List.of(podamFactory.manufacturePojo(ResourceDTO.class)))
+        .setNext(CursorPagedContent.encodeCursor(1001));
+    when(resourceManagement.getResourceDTOsAfter(anyString(), any(), anyInt(), anyBoolean(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(page));
+
+    final String cursor = CursorPagedContent.encodeCursor(1000);
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources-by-cursor", "t-1")
+            .param("cursor", cursor)
+            .param("size", "100000")
+            .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content", hasSize(1)))
+        .andExpect(jsonPath("$.next", is(page.getNext())))
+        .andExpect(jsonPath("$.totalElements", nullValue()));
+
+    verify(resourceManagement).getResourceDTOsAfter("t-1", cursor,
+        springDataWebProperties.getPageable().getMaxPageSize(), false, true);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetAllByCursor_invalidCursor() throws Exception {
+    when(resourceManagement.getResourceDTOsAfter(any(), any(), anyInt(), anyBoolean(), anyBoolean()))
+        .thenThrow(new IllegalArgumentException("Invalid cursor: bad"));
+
+    mockMvc.perform(get("/api/admin/resources-by-cursor")
+        .param("cursor", "bad")
+        .param("includeTotal", "true")
+        .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+
+    verify(resourceManagement).getResourceDTOsAfter(null, "bad",
+        springDataWebProperties.getPageable().getDefaultPageSize(), true, true);
+  }
+
+  @Test
+  public void testGetSlicedResourcesWithLabels() throws Exception {
+    final Slice<ResourceDTO> slice = new SliceImpl<>(
+        List.of(podamFactory.manufacturePojo(ResourceDTO.class)), PageRequest.of(1, 1), true);
+    when(resourceManagement.getResourceDTOSliceFromLabels(any(), anyString(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(slice));
+
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources-by-label/{logicalOperator}/slice", "t-1", "AND")
+            .param("os", "linux")
+            .param("page", "1")
+            .param("size", "1")
+            .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content", hasSize(1)))
+        .andExpect(jsonPath("$.number", is(1)))
+        .andExpect(jsonPath("$.first", is(false)))
+        .andExpect(jsonPath("$.hasNext", is(true)))
+        .andExpect(jsonPath("$.totalElements").doesNotExist());
+
+    verify(resourceManagement).getResourceDTOSliceFromLabels(Map.of("os", "linux"), "t-1",
+        LabelSelectorMethod.AND, PageRequest.of(1, 1), true);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetResourcesWithLabelsByCursor() throws Exception {
+    final CursorPagedContent<ResourceDTO> page = new CursorPagedContent<ResourceDTO>()
+        .setContent(List.of(podamFactory.manufacturePojo(ResourceDTO.class)))
+        .setNext(CursorPagedContent.encodeCursor(1001))
+        .setTotalElements(5L);
+    when(resourceManagement.getResourceDTOsFromLabelsAfter(any(), anyString(), any(), any(),
+        anyInt(), anyBoolean(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(page));
+
+    final String cursor = CursorPagedContent.encodeCursor(1000);
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources-by-label/{logicalOperator}/cursor", "t-1", "AND")
+            .param("os", "linux")
+            .param("cursor", cursor)
+            .param("size", "1")
+            .param("includeTotal", "true")
+            .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content", hasSize(1)))
+        .andExpect(jsonPath("$.next", is(page.getNext())))
+        .andExpect(jsonPath("$.totalElements", is(5)));
+
+    verify(resourceManagement).getResourceDTOsFromLabelsAfter(Map.of("os", "linux"), "t-1",
+        LabelSelectorMethod.AND, cursor, 1, true, true);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  @Test
+  public void testGetResourcesWithLabels_sliceIsALabel() throws Exception {
+    when(resourceManagement.getResourceDTOsFromLabels(any(), anyString(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(new PageImpl<>(List.of())));
+
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources-by-label/{logicalOperator}", "t-1", "AND")
+            .param("slice", "true")
+            .contentType(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk());
+
+    verify(resourceManagement).getResourceDTOsFromLabels(eq(Map.of("slice", "true")), eq("t-1"),
+        eq(LabelSelectorMethod.AND), any(), eq(true));
+  }
+
+  @WithMockUser(roles = "CUSTOMER")
+  @Test
+  public void testGetAllForTenantAsCustomer() throws Exception {
+    assertTenantResourcesEnvoyId(false);
+  }
+
+  @WithMockUser(roles = "EMPLOYEE")
+  @Test
+  public void testGetAllForTenantAsEmployee() throws Exception {
+    assertTenantResourcesEnvoyId(false);
+  }
+
+  @WithMockUser(roles = "ENGINEER")
+  @Test
+  public void testGetAllForTenantAsAdmin() throws Exception {
+    assertTenantResourcesEnvoyId(true);
+  }
+
+  @WithMockUser(roles = "CUSTOMER")
+  @Test
+  public void testGetResourcesWithLabelsAsCustomer() throws Exception {
+    assertResourcesWithLabelsEnvoyId(false);
+  }
+
+  @WithMockUser(roles = "EMPLOYEE")
+  @Test
+  public void testGetResourcesWithLabelsAsEmployee() throws Exception {
+    assertResourcesWithLabelsEnvoyId(false);
+  }
+
+  @WithMockUser(roles = "ENGINEER")
+  @Test
+  public void testGetResourcesWithLabelsAsAdmin() throws Exception {
+    assertResourcesWithLabelsEnvoyId(true);
+  }
+
+  /**
+   * Confirms the role-based JSON view is still applied when the paged response is rendered
+   * during the async dispatch.
+   */
+  private void assertTenantResourcesEnvoyId(boolean visible) throws Exception {
+    when(resourceManagement.getResourceDTOs(anyString(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(pageWithEnvoyId()));
+
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources", "t-1")
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content[0].resourceId", is("r-1")))
+        .andExpect(visible ?
+            jsonPath("$.content[0].envoyId", is("e-1")) :
+            jsonPath("$.content[0].envoyId").doesNotExist());
+
+    verify(resourceManagement).getResourceDTOs("t-1", PageRequest.of(0, 20), visible);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  private void assertResourcesWithLabelsEnvoyId(boolean visible) throws Exception {
+    when(resourceManagement.getResourceDTOsFromLabels(any(), any(), any(), any(), anyBoolean()))
+        .thenReturn(CompletableFuture.completedFuture(pageWithEnvoyId()));
+
+    final MvcResult result = mockMvc.perform(
+        get("/api/tenant/{tenantId}/resources-by-label/{logicalOperator}", "t-1", "AND")
+            .param("env", "prod")
+            .accept(MediaType.APPLICATION_JSON))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.content[0].resourceId", is("r-1")))
+        .andExpect(visible ?
+            jsonPath("$.content[0].envoyId", is("e-1")) :
+            jsonPath("$.content[0].envoyId").doesNotExist());
+
+    verify(resourceManagement).getResourceDTOsFromLabels(Map.of("env", "prod"), "t-1",
+        LabelSelectorMethod.AND, PageRequest.of(0, 20), visible);
+    verifyNoMoreInteractions(resourceManagement);
+  }
+
+  private Page<ResourceDTO> pageWithEnvoyId() {
+    final ResourceDTO resource = new ResourceDTO()
+        .setLabels(Collections.singletonMap("env", "prod"))
+        .setMetadata(Collections.singletonMap("custom", "new"))
+        .setResourceId("r-1")
+        .setTenantId("t-1")
+        .setCreatedTimestamp(DEFAULT_TIMESTAMP.toString())
+        .setUpdatedTimestamp(DEFAULT_TIMESTAMP.toString())
+        .setAssociatedWithEnvoy(true)
+        .setEnvoyId("e-1")
+        .setId(1001L);
+    return new PageImpl<>(List.of(resource), PageRequest.of(0, 20), 1);
+  }
 }